@@ -18,6 +18,8 @@ package org.gwtproject.core;
 import com.google.gwt.junit.tools.GWTTestSuite;
 import junit.framework.Test;
 import org.gwtproject.core.client.*;
+import org.gwtproject.core.client.impl.SchedulerImplBenchmarkTest;
+import org.gwtproject.core.client.impl.SchedulerImplMetricsTest;
 import org.gwtproject.core.client.impl.SchedulerImplTest;
 
 public class CoreSuite {
@@ -32,6 +34,8 @@ public class CoreSuite {
     suite.addTestSuite(JsArrayMixedTest.class);
     suite.addTestSuite(SchedulerTest.class);
     suite.addTestSuite(SchedulerImplTest.class);
+    suite.addTestSuite(SchedulerImplBenchmarkTest.class);
+    suite.addTestSuite(SchedulerImplMetricsTest.class);
     suite.addTestSuite(ScriptInjectorTest.class);
 
     return suite;
@@ -50,36 +50,50 @@ public class SchedulerTest extends GWTTestCase {
     delayTestFinish(TEST_DELAY);
   }
 
-  //    /**
-  //     * Tests that an entry command can schedule a finally command where the whole
-  //     * thing is kicked off by a deferred command.
-  //     */
-  //    public void testEndToEndLegacy() {
-  //        final boolean[] ranEntry = {false};
-  //
-  //        final ScheduledCommand finallyCommand = new ScheduledCommand() {
-  //            @Override
-  //            public void execute() {
-  //                assertTrue(ranEntry[0]);
-  //                finishTest();
-  //            }
-  //        };
-  //
-  //        Scheduler.get().scheduleEntry(new ScheduledCommand() {
-  //            @Override
-  //            public void execute() {
-  //                ranEntry[0] = true;
-  //                Scheduler.get().scheduleFinally(finallyCommand);
-  //            }
-  //        });
-  //
-  //        Scheduler.get().scheduleDeferred(new ScheduledCommand() {
-  //            @Override
-  //            public void execute() {
-  //                assertTrue(ranEntry[0]);
-  //            }
-  //        });
-  //
-  //        delayTestFinish(TEST_DELAY);
-  //    }
+  /** Tests that a deferred computation can be chained with a finally computation. */
+  public void testComputeDeferred() {
+    Scheduler.get()
+        .computeDeferred(() -> 1)
+        .then(value -> value + 1)
+        .thenCompose(value -> Scheduler.get().computeFinally(() -> value * 10))
+        .whenDone(
+            new Callback<Integer, Throwable>() {
+              @Override
+              public void onFailure(Throwable reason) {
+                fail(reason.getMessage());
+              }
+
+              @Override
+              public void onSuccess(Integer result) {
+                assertEquals(20, (int) result);
+                finishTest();
+              }
+            });
+    delayTestFinish(TEST_DELAY);
+  }
+
+  /**
+   * Tests that an entry command can schedule a finally command where the whole thing is kicked off
+   * by a deferred command.
+   */
+  public void testEndToEndLegacy() {
+    final boolean[] ranEntry = {false};
+
+    final ScheduledCommand finallyCommand =
+        () -> {
+          assertTrue(ranEntry[0]);
+          finishTest();
+        };
+
+    Scheduler.get()
+        .scheduleEntry(
+            () -> {
+              ranEntry[0] = true;
+              Scheduler.get().scheduleFinally(finallyCommand);
+            });
+
+    Scheduler.get().scheduleDeferred(() -> assertTrue(ranEntry[0]));
+
+    delayTestFinish(TEST_DELAY);
+  }
 }
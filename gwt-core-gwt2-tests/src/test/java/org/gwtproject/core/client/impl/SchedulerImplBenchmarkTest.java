@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import com.google.gwt.junit.client.GWTTestCase;
+import elemental2.dom.DomGlobal;
+import elemental2.dom.DomGlobal.SetTimeoutCallbackFn;
+import org.gwtproject.core.client.Duration;
+import org.gwtproject.core.client.GWT;
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+
+/**
+ * Measures the overhead of the scheduler itself. The results are written to the log, the tests only
+ * fail if the scheduler stops making progress.
+ */
+public class SchedulerImplBenchmarkTest extends GWTTestCase {
+
+  /** Number of deferred commands in a chain, each one scheduling the next. */
+  private static final int HOPS = 100;
+
+  /** Number of flushes in the allocation benchmark, after as many to warm up. */
+  private static final int FLUSHES = 200;
+
+  /** Number of event loop turns in the finally flush benchmark. */
+  private static final int TURNS = 200;
+
+  /** Number of finally commands scheduled per turn. */
+  private static final int BATCH = 10;
+
+  private static final int TEST_DELAY = 10000;
+
+  @Override
+  public String getModuleName() {
+    return "org.gwtproject.core.Core";
+  }
+
+  /** Compares the time between two deferred commands with timers and with MessageChannel. */
+  public void testDeferredHopLatency() {
+    final SchedulerImpl timers =
+        new SchedulerImpl() {
+          @Override
+          boolean useMessageChannel() {
+            return false;
+          }
+        };
+
+    measureDeferredHops(
+        timers,
+        "setTimeout",
+        () -> measureDeferredHops(new SchedulerImpl(), "MessageChannel", this::finishTest));
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  /**
+   * Compares the overhead finally commands add to an event loop turn outside of an entry, from
+   * scheduling the first one to running the last one, with queueMicrotask and with the Promise
+   * fallback.
+   */
+  public void testFinallyFlushOverhead() {
+    final SchedulerImpl promises =
+        new SchedulerImpl() {
+          @Override
+          boolean useQueueMicrotask() {
+            return false;
+          }
+        };
+
+    measureFinallyFlushes(
+        promises,
+        "Promise",
+        () -> {
+          if (SchedulerImpl.isQueueMicrotaskSupported()) {
+            measureFinallyFlushes(new SchedulerImpl(), "queueMicrotask", this::finishTest);
+          } else {
+            finishTest();
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  /**
+   * Checks that scheduling and flushing deferred, incremental and finally commands doesn't allocate
+   * queues once they have grown to their working size.
+   */
+  public void testSteadyStateAllocations() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    // Let the incremental commands finish in each flush, even on a slow machine
+    impl.setTimeSlicePolicy((interval, elapsedMillis) -> 1000);
+    final RepeatingCommand incremental =
+        new RepeatingCommand() {
+          private int count = 0;
+
+          @Override
+          public boolean execute() {
+            return ++count % 3 != 0;
+          }
+        };
+    final ScheduledCommand noop = () -> {};
+
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          private int flushes = 0;
+          private int warmAllocations;
+
+          @Override
+          public void execute() {
+            flushes++;
+            if (flushes == FLUSHES) {
+              warmAllocations = impl.getQueueAllocations();
+            } else if (flushes == 2 * FLUSHES) {
+              int allocations = impl.getQueueAllocations() - warmAllocations;
+              GWT.log(
+                  "Queue allocations: "
+                      + warmAllocations
+                      + " to warm up, "
+                      + allocations
+                      + " in "
+                      + FLUSHES
+                      + " flushes");
+              assertEquals(0, allocations);
+              finishTest();
+              return;
+            }
+            // Some browsers run the finally commands of several flushes together
+            boolean finallyRan = impl.finallyCommands.isEmpty();
+            for (int i = 0; i < 10; i++) {
+              impl.scheduleDeferred(noop);
+              if (finallyRan) {
+                impl.scheduleFinally(noop);
+              }
+            }
+            impl.scheduleIncremental(incremental);
+            impl.scheduleDeferred(this);
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  private void measureFinallyFlushes(
+      final SchedulerImpl impl, final String label, final ScheduledCommand next) {
+    final double[] turnStart = {0};
+    final double[] totalMillis = {0};
+    final int[] flushed = {0};
+    final ScheduledCommand noop = () -> flushed[0]++;
+    final ScheduledCommand last =
+        () -> {
+          flushed[0]++;
+          totalMillis[0] += DomGlobal.performance.now() - turnStart[0];
+        };
+
+    // Native timers, so that the turns are not entries that flush synchronously
+    DomGlobal.setTimeout(
+        new SetTimeoutCallbackFn() {
+          private int turns = 0;
+
+          @Override
+          public void onInvoke(Object... p0) {
+            turnStart[0] = DomGlobal.performance.now();
+            for (int i = 1; i < BATCH; i++) {
+              impl.scheduleFinally(noop);
+            }
+            impl.scheduleFinally(last);
+            if (++turns < TURNS) {
+              DomGlobal.setTimeout(this, 0);
+              return;
+            }
+            DomGlobal.setTimeout(
+                ignore -> {
+                  assertEquals(TURNS * BATCH, flushed[0]);
+                  GWT.log(
+                      "Finally flush overhead ("
+                          + label
+                          + "): "
+                          + (totalMillis[0] / TURNS)
+                          + "ms per turn");
+                  next.execute();
+                },
+                0);
+          }
+        },
+        0);
+  }
+
+  private void measureDeferredHops(
+      final SchedulerImpl impl, final String label, final ScheduledCommand next) {
+    final Duration duration = new Duration();
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          private int hops = 0;
+
+          @Override
+          public void execute() {
+            if (++hops < HOPS) {
+              impl.scheduleDeferred(this);
+              return;
+            }
+            GWT.log(
+                "Deferred hop latency ("
+                    + label
+                    + "): "
+                    + (duration.elapsedMillis() / (double) HOPS)
+                    + "ms");
+            next.execute();
+          }
+        });
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import com.google.gwt.junit.client.GWTTestCase;
+import org.gwtproject.core.client.Duration;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+
+/** Runs in a module that enables {@link SchedulerMetrics}. */
+public class SchedulerImplMetricsTest extends GWTTestCase {
+
+  private static final int TEST_DELAY = 5000;
+
+  @Override
+  public String getModuleName() {
+    return "org.gwtproject.core.CoreMetrics";
+  }
+
+  public void testMetrics() {
+    assertTrue(SchedulerMetrics.ENABLED);
+
+    final SchedulerImpl impl = new SchedulerImpl();
+    final SchedulerMetrics metrics = impl.getMetrics();
+    assertNotNull(metrics);
+
+    final int[] counts = {0, 3};
+    impl.scheduleDeferred(() -> {});
+    impl.scheduleDeferred(
+        () -> {
+          Duration duration = new Duration();
+          while (duration.elapsedMillis() < 2) {
+            // busy wait
+          }
+        });
+    impl.scheduleIncremental(() -> ++counts[0] < counts[1]);
+
+    metrics.setListener(
+        m -> {
+          if (!impl.isWorkQueued()) {
+            assertEquals(3, m.getMaxDeferredDepth());
+            assertEquals(3, m.getQueueDelay().getCount());
+            assertEquals(5, m.getExecutedCount());
+            assertEquals(5, m.getExecutionTime().getCount());
+            assertTrue(m.getExecutionTime().getMax() >= 2);
+            assertEquals(m.getFlushCount(), m.getFlushDuration().getCount());
+            finishTest();
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testCoalescedCount() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    final SchedulerMetrics metrics = impl.getMetrics();
+    final int[] counts = {0, 0};
+    final ScheduledCommand check =
+        () -> {
+          if (counts[0] + counts[1] == 2) {
+            // Any further execution would have happened by the next flush
+            impl.scheduleDeferred(
+                () -> {
+                  assertEquals(1, counts[0]);
+                  assertEquals(1, counts[1]);
+                  finishTest();
+                });
+          }
+        };
+
+    for (int i = 0; i < 5; i++) {
+      impl.scheduleDeferred(
+          "key",
+          () -> {
+            counts[0]++;
+            check.execute();
+          });
+      impl.scheduleFinally(
+          "key",
+          () -> {
+            counts[1]++;
+            check.execute();
+          });
+    }
+    assertEquals(8, metrics.getCoalescedCount());
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testRescue() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    final SchedulerMetrics metrics = impl.getMetrics();
+    impl.scheduleDeferred(
+        () -> {
+          assertEquals(1, metrics.getRescueCount());
+          finishTest();
+        });
+
+    // As if a slow script warning had interrupted a flush, the next one picks up the work
+    impl.flushRunning = true;
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testInterruptedEntry() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    final StringBuilder order = new StringBuilder();
+    // As if a slow script warning had interrupted an entry, before it could exit
+    impl.entryDepth = 1;
+
+    impl.scheduleEntry(() -> order.append("entry "));
+    impl.scheduleFinally(() -> order.append("finally "));
+    // Busy wait for both, the finally commands don't wait for an entry that won't end
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (order.indexOf("entry ") >= 0 && order.indexOf("finally ") >= 0) {
+              assertEquals(1, impl.entryDepth);
+              finishTest();
+            } else {
+              impl.scheduleDeferred(this);
+            }
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testInterruptedEntryWithoutFlush() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    final boolean[] ran = {false};
+    // As if a slow script warning had interrupted an entry, before it could exit
+    impl.entryDepth = 1;
+
+    // Nothing else is scheduled: the microtask queued even inside an entry runs the finally
+    // commands, and ends the entry that won't
+    impl.scheduleFinally(
+        () -> {
+          ran[0] = true;
+        });
+    new SchedulerImpl()
+        .scheduleFixedDelay(
+            () -> {
+              if (!ran[0]) {
+                return true;
+              }
+              assertEquals(0, impl.entryDepth);
+              finishTest();
+              return false;
+            },
+            10);
+
+    delayTestFinish(TEST_DELAY);
+  }
+}
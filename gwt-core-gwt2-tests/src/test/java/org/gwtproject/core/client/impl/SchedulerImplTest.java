@@ -16,11 +16,20 @@
 package org.gwtproject.core.client.impl;
 
 import com.google.gwt.junit.client.GWTTestCase;
-import elemental2.core.JsArray;
+import elemental2.dom.DomGlobal;
+import elemental2.dom.DomGlobal.RequestIdleCallbackCallbackFn;
+import elemental2.dom.DomGlobal.SetTimeoutCallbackFn;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.gwtproject.core.client.Duration;
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.FlushMode;
+import org.gwtproject.core.client.Scheduler.IdleCommand;
+import org.gwtproject.core.client.Scheduler.IdleDeadline;
+import org.gwtproject.core.client.Scheduler.Priority;
 import org.gwtproject.core.client.Scheduler.RepeatingCommand;
 import org.gwtproject.core.client.Scheduler.ScheduledCommand;
-import org.gwtproject.core.client.impl.SchedulerImpl.Task;
 
 public class SchedulerImplTest extends GWTTestCase {
 
@@ -59,6 +68,22 @@ public class SchedulerImplTest extends GWTTestCase {
     public void execute() {}
   }
 
+  /** A command that takes a while on a virtual clock, see {@link #createVirtualTimeScheduler}. */
+  static class BusyCommand implements ScheduledCommand {
+    private final double[] now;
+    private final int millis;
+
+    public BusyCommand(double[] now, int millis) {
+      this.now = now;
+      this.millis = millis;
+    }
+
+    @Override
+    public void execute() {
+      now[0] += millis;
+    }
+  }
+
   /**
    * The EntryCommand and FinallyCommand queues should have the same behavior, so we use this
    * interface to reuse the same test logic.
@@ -66,7 +91,7 @@ public class SchedulerImplTest extends GWTTestCase {
   interface QueueTester {
     void flush();
 
-    JsArray<Task> queue();
+    TaskQueue queue();
 
     void schedule(RepeatingCommand cmd);
 
@@ -102,19 +127,19 @@ public class SchedulerImplTest extends GWTTestCase {
     final boolean[] values = {false};
     impl.scheduleDeferred(new ArraySetterCommand(values));
 
-    assertEquals(1, impl.deferredCommands.length);
+    assertEquals(1, impl.deferredCommands.size());
 
     ScheduledCommand nullCommand = new NullCommand();
     impl.scheduleDeferred(nullCommand);
-    assertEquals(2, impl.deferredCommands.length);
-    assertSame(nullCommand, impl.deferredCommands.getAt(1).getScheduled());
+    assertEquals(2, impl.deferredCommands.size());
+    assertSame(nullCommand, impl.deferredCommands.getScheduled(1));
 
     impl.scheduleDeferred(
         new ScheduledCommand() {
           @Override
           public void execute() {
             assertTrue(values[0]);
-            assertNull(impl.deferredCommands);
+            assertTrue(impl.deferredCommands.isEmpty());
             finishTest();
           }
         });
@@ -164,31 +189,71 @@ public class SchedulerImplTest extends GWTTestCase {
     delayTestFinish(TEST_DELAY);
   }
 
-  //    public void testEntryCommands() {
-  //        final SchedulerImpl impl = new SchedulerImpl();
-  //
-  //        testQueue(new QueueTester() {
-  //            @Override
-  //            public void flush() {
-  //                impl.flushEntryCommands();
-  //            }
-  //
-  //            @Override
-  //            public JsArray<Task> queue() {
-  //                return impl.entryCommands;
-  //            }
-  //
-  //            @Override
-  //            public void schedule(RepeatingCommand cmd) {
-  //                impl.scheduleEntry(cmd);
-  //            }
-  //
-  //            @Override
-  //            public void schedule(ScheduledCommand cmd) {
-  //                impl.scheduleEntry(cmd);
-  //            }
-  //        });
-  //    }
+  public void testEntryCommands() {
+    final SchedulerImpl impl = new SchedulerImpl();
+
+    testQueue(
+        new QueueTester() {
+          @Override
+          public void flush() {
+            impl.flushEntryCommands();
+          }
+
+          @Override
+          public TaskQueue queue() {
+            return impl.entryCommands;
+          }
+
+          @Override
+          public void schedule(RepeatingCommand cmd) {
+            impl.scheduleEntry(cmd);
+          }
+
+          @Override
+          public void schedule(ScheduledCommand cmd) {
+            impl.scheduleEntry(cmd);
+          }
+        });
+  }
+
+  public void testRunEntry() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    final List<String> order = new ArrayList<>();
+    impl.scheduleEntry(
+        () -> {
+          order.add("entry");
+        });
+
+    impl.entry(
+            () -> {
+              order.add("callback");
+              impl.scheduleFinally(
+                  () -> {
+                    order.add("finally");
+                  });
+              // Nested entries neither run the entry commands nor the finally commands
+              impl.scheduleEntry(
+                  () -> {
+                    order.add("next entry");
+                  });
+              impl.runEntry(() -> order.add("nested"));
+            })
+        .execute();
+
+    // The finally commands ran before the entry returned, without waiting for a microtask
+    assertEquals(Arrays.asList("entry", "callback", "nested", "finally"), order);
+    assertTrue(impl.finallyCommands.isEmpty());
+    assertEquals(1, impl.entryCommands.size());
+
+    // The flushes of the scheduler are entries too
+    impl.scheduleDeferred(
+        () -> {
+          assertEquals("next entry", order.get(4));
+          finishTest();
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
 
   public void testFinallyCommands() {
     final SchedulerImpl impl = new SchedulerImpl();
@@ -201,7 +266,7 @@ public class SchedulerImplTest extends GWTTestCase {
           }
 
           @Override
-          public JsArray<Task> queue() {
+          public TaskQueue queue() {
             return impl.finallyCommands;
           }
 
@@ -217,6 +282,48 @@ public class SchedulerImplTest extends GWTTestCase {
         });
   }
 
+  /** Tests that finally commands scheduled outside of an entry run in a microtask. */
+  public void testFinallyFlushFromMicrotask() {
+    final SchedulerImpl promises =
+        new SchedulerImpl() {
+          @Override
+          boolean useQueueMicrotask() {
+            return false;
+          }
+        };
+    final SchedulerImpl impl = new SchedulerImpl();
+    final int[] counts = {0, 0};
+    for (int i = 0; i < 2; i++) {
+      impl.scheduleFinally(
+          () -> {
+            counts[0]++;
+          });
+      promises.scheduleFinally(
+          () -> {
+            counts[1]++;
+          });
+    }
+    assertEquals(0, counts[0] + counts[1]);
+
+    // Busy wait, since some browsers run microtasks late
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (counts[0] + counts[1] < 4) {
+              impl.scheduleDeferred(this);
+              return;
+            }
+            assertEquals(2, counts[0]);
+            assertEquals(2, counts[1]);
+            assertTrue(impl.finallyCommands.isEmpty());
+            finishTest();
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
   public void testFixedDelayCommands() {
     final SchedulerImpl impl = new SchedulerImpl();
     final int[] values = {0, 4};
@@ -265,6 +372,130 @@ public class SchedulerImplTest extends GWTTestCase {
     delayTestFinish(TEST_DELAY);
   }
 
+  public void testHiddenTimerPolicy() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    impl.setHiddenTimerPolicy(HiddenTimerPolicy.STRETCH);
+    final int[] values = {0, 4};
+    final int[] pausedValues = {0, 4};
+
+    // The test document is visible, so the commands run as scheduled
+    assertFalse(SchedulerImpl.isDocumentHidden());
+    impl.scheduleFixedPeriod(new CountingCommand(values), 20);
+    impl.scheduleFixedDelay(
+        new CountingCommand(pausedValues), 20, HiddenTimerPolicy.PAUSE_CATCH_UP);
+
+    // Busy wait for the counters
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (values[0] == values[1] && pausedValues[0] == pausedValues[1]) {
+              finishTest();
+            } else {
+              impl.scheduleDeferred(this);
+            }
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testIdleCommands() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    final int[] values = {0, 4};
+
+    impl.scheduleIdle(
+        deadline -> {
+          assertTrue(deadline.timeRemaining() > 0);
+          values[0]++;
+          return values[0] < values[1];
+        });
+    assertEquals(1, impl.idleCommands.length);
+    // Idle commands are not flushed with deferred and incremental commands
+    assertFalse(impl.isWorkQueued());
+
+    // Busy wait for the counter
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (values[0] == values[1]) {
+              assertNull(impl.idleCommands);
+              finishTest();
+            } else {
+              impl.scheduleDeferred(this);
+            }
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testIdleFallbackDeadline() {
+    final SchedulerImpl impl =
+        new SchedulerImpl() {
+          @Override
+          void requestIdleCallback(
+              RequestIdleCallbackCallbackFn callback, SetTimeoutCallbackFn fallbackCallback) {
+            DomGlobal.setTimeout(fallbackCallback, 0);
+          }
+        };
+    impl.setTimeSlicePolicy(TimeSlicePolicy.fixed(5));
+
+    // The idle period is the time slice, not a whole task
+    impl.scheduleIdle(
+        deadline -> {
+          double timeRemaining = deadline.timeRemaining();
+          assertTrue(timeRemaining > 0);
+          assertTrue(timeRemaining <= 5);
+          finishTest();
+          return false;
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testIdleCommandRescheduling() {
+    final int[] pending = {0};
+    final SchedulerImpl impl =
+        new SchedulerImpl() {
+          @Override
+          void requestIdleCallback(
+              RequestIdleCallbackCallbackFn callback, SetTimeoutCallbackFn fallbackCallback) {
+            pending[0]++;
+            super.requestIdleCallback(
+                deadline -> {
+                  pending[0]--;
+                  callback.onInvoke(deadline);
+                },
+                ignore -> {
+                  pending[0]--;
+                  fallbackCallback.onInvoke(ignore);
+                });
+          }
+        };
+
+    impl.scheduleIdle(
+        new IdleCommand() {
+          private int count = 0;
+
+          @Override
+          public boolean execute(IdleDeadline deadline) {
+            if (++count == 10) {
+              finishTest();
+              return false;
+            }
+            // Rescheduling during the flush arms a single callback
+            impl.scheduleIdle(this);
+            assertEquals(1, pending[0]);
+            return false;
+          }
+        });
+    assertEquals(1, pending[0]);
+
+    delayTestFinish(TEST_DELAY);
+  }
+
   public void testIncrementalCommands() {
     final SchedulerImpl impl = new SchedulerImpl();
 
@@ -273,31 +504,723 @@ public class SchedulerImplTest extends GWTTestCase {
     impl.scheduleIncremental(counter);
 
     // The first pass is scheduled as a deferred command
-    assertEquals(1, impl.deferredCommands.length);
+    assertEquals(1, impl.deferredCommands.size());
 
     impl.scheduleDeferred(
         new ScheduledCommand() {
           @Override
           public void execute() {
             // After the incremental command has fired, it's moved to a new queue
-            assertNull(impl.deferredCommands);
+            assertTrue(impl.deferredCommands.isEmpty());
             assertTrue(String.valueOf(values[0]), values[0] <= values[1]);
 
             if (values[0] == values[1]) {
-              // Haven't yet cleared the queue, still in flushPostEventPumpCommands
-              assertNotNull(impl.incrementalCommands);
-              assertEquals(0, impl.incrementalCommands.length);
+              // The incremental command is done and has been removed from its queue
+              assertEquals(0, impl.incrementalCommands.size());
+              finishTest();
+            } else {
+              assertEquals(1, impl.incrementalCommands.size());
+              assertSame(counter, impl.incrementalCommands.getRepeating(0));
+              impl.scheduleDeferred(this);
+            }
+          }
+        });
+
+    assertEquals(2, impl.deferredCommands.size());
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  /**
+   * Creates a scheduler that times incremental commands with a virtual clock, which only advances
+   * when the commands say so.
+   */
+  private static SchedulerImpl createVirtualTimeScheduler(final double[] now) {
+    return createVirtualTimeScheduler(now, null);
+  }
+
+  /**
+   * Like {@link #createVirtualTimeScheduler(double[])}, and collects the exceptions thrown by
+   * commands in <code>reported</code> instead of reporting them to the browser.
+   */
+  private static SchedulerImpl createVirtualTimeScheduler(
+      final double[] now, final List<Throwable> reported) {
+    return new SchedulerImpl() {
+      @Override
+      void reportUncaughtException(Throwable e) {
+        if (reported == null) {
+          super.reportUncaughtException(e);
+        } else {
+          reported.add(e);
+        }
+      }
+
+      @Override
+      Duration createDuration() {
+        final double start = now[0];
+        return new Duration() {
+          @Override
+          public int elapsedMillis() {
+            return (int) (now[0] - start);
+          }
+        };
+      }
+
+      @Override
+      public double currentTimeMillis() {
+        return now[0];
+      }
+    };
+  }
+
+  public void testIncrementalFairness() {
+    final double[] now = {0};
+    final SchedulerImpl impl = createVirtualTimeScheduler(now);
+    impl.setTimeSlicePolicy((interval, elapsedMillis) -> 16);
+    final int[] heavyCount = {0};
+    final boolean[] done = {false};
+
+    // A heavy command, that takes 4ms per invocation
+    impl.scheduleIncremental(
+        () -> {
+          now[0] += 4;
+          heavyCount[0]++;
+          return !done[0];
+        });
+    // A light command, that takes 1ms per invocation
+    impl.scheduleIncremental(
+        new RepeatingCommand() {
+          private int count = 0;
+
+          @Override
+          public boolean execute() {
+            now[0] += 1;
+            if (++count < 100) {
+              return true;
+            }
+            done[0] = true;
+            // Both got half of the time, up to one share of 8ms. Taking turns, both commands would
+            // have run as often
+            double heavyMillis = heavyCount[0] * 4;
+            assertTrue(String.valueOf(heavyMillis), Math.abs(heavyMillis - 100) <= 8);
+            finishTest();
+            return false;
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testIncrementalWeights() {
+    final double[] now = {0};
+    final SchedulerImpl impl = createVirtualTimeScheduler(now);
+    impl.setTimeSlicePolicy((interval, elapsedMillis) -> 16);
+    final int[] counts = {0, 0};
+    final boolean[] done = {false};
+
+    impl.scheduleIncremental(
+        () -> {
+          now[0] += 2;
+          counts[0]++;
+          return !done[0];
+        },
+        3);
+    impl.scheduleIncremental(
+        () -> {
+          now[0] += 2;
+          counts[1]++;
+          return !done[0];
+        },
+        1);
+
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (impl.getTimeSliceCount() < 10) {
+              impl.scheduleDeferred(this);
+              return;
+            }
+            done[0] = true;
+            // Three times as often, up to their first runs, which are not shared by weight. With
+            // equal weights it would be as often
+            assertTrue(counts[0] + " " + counts[1], Math.abs(counts[0] - 3 * counts[1]) <= 3);
+            finishTest();
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testIncrementalException() {
+    final double[] now = {0};
+    final List<Throwable> reported = new ArrayList<>();
+    final SchedulerImpl impl = createVirtualTimeScheduler(now, reported);
+    impl.setTimeSlicePolicy((interval, elapsedMillis) -> 16);
+    final int[] counts = {0, 0};
+    final boolean[] done = {false};
+
+    impl.scheduleIncremental(
+        () -> {
+          now[0] += 2;
+          if (++counts[0] == 3) {
+            throw new IllegalStateException("expected");
+          }
+          return true;
+        },
+        3);
+    impl.scheduleIncremental(
+        () -> {
+          now[0] += 2;
+          counts[1]++;
+          return !done[0];
+        },
+        1);
+
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (impl.getTimeSliceCount() < 5) {
+              impl.scheduleDeferred(this);
+              return;
+            }
+            done[0] = true;
+            // The command that threw is dropped, and the other one gets the whole time slices
+            assertEquals(3, counts[0]);
+            assertEquals(1, reported.size());
+            assertTrue(String.valueOf(counts[1]), counts[1] >= 4 * 16 / 2);
+            finishTest();
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testDeferredTimeBudget() {
+    final double[] now = {0};
+    final int[] flushes = {0};
+    final SchedulerImpl impl =
+        new SchedulerImpl() {
+          @Override
+          void flushPostEventPumpCommands() {
+            flushes[0]++;
+            super.flushPostEventPumpCommands();
+          }
+
+          @Override
+          public double currentTimeMillis() {
+            return now[0];
+          }
+        };
+    impl.setDeferredTimeBudget(5);
+    final List<Integer> order = new ArrayList<>();
+    final int[] flushOf = new int[20];
+
+    for (int i = 0; i < 20; i++) {
+      final int index = i;
+      impl.scheduleDeferred(
+          () -> {
+            new BusyCommand(now, 1).execute();
+            order.add(index);
+            flushOf[index] = flushes[0];
+            if (index == 0) {
+              // Runs after the commands that were queued before
+              impl.scheduleDeferred(() -> order.add(20));
+            }
+          });
+    }
+
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (order.size() < 21) {
+              impl.scheduleDeferred(this);
+              return;
+            }
+            for (int i = 0; i < order.size(); i++) {
+              assertEquals(i, (int) order.get(i));
+            }
+            // 20ms of commands, in flushes of 5ms
+            for (int i = 0; i < 20; i++) {
+              assertEquals(flushOf[0] + i / 5, flushOf[i]);
+            }
+            finishTest();
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testYieldToInput() {
+    final boolean[] inputPending = {false};
+    final int[] flushes = {0};
+    final SchedulerImpl impl =
+        new SchedulerImpl() {
+          @Override
+          void flushPostEventPumpCommands() {
+            flushes[0]++;
+            super.flushPostEventPumpCommands();
+          }
+
+          @Override
+          boolean isInputPending(double elapsedMillis) {
+            return inputPending[0];
+          }
+        };
+    impl.setTimeSlicePolicy((interval, elapsedMillis) -> 1000);
+    final List<Integer> order = new ArrayList<>();
+    final int[] flushOf = new int[11];
+
+    for (int i = 0; i < 10; i++) {
+      final int index = i;
+      impl.scheduleDeferred(
+          () -> {
+            order.add(index);
+            flushOf[index] = flushes[0];
+            if (index == 2) {
+              inputPending[0] = true;
+              // Runs after the commands that the flush leaves queued
+              impl.scheduleDeferred(() -> order.add(10));
+            } else if (index == 4) {
+              inputPending[0] = false;
+            }
+          });
+    }
+
+    final int[] invocations = {0, 0};
+    impl.scheduleFixedDelay(
+        () -> {
+          assertEquals(11, order.size());
+          for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, (int) order.get(i));
+          }
+          // The flush yielded after command 2 and 3, but not after 4
+          assertEquals(flushOf[0], flushOf[2]);
+          assertEquals(flushOf[2] + 1, flushOf[3]);
+          assertEquals(flushOf[3] + 1, flushOf[4]);
+          assertEquals(flushOf[4], flushOf[9]);
+
+          // Incremental commands yield too
+          inputPending[0] = true;
+          impl.scheduleIncremental(
+              () -> {
+                if (invocations[1] != flushes[0]) {
+                  invocations[1] = flushes[0];
+                  invocations[0] = 0;
+                }
+                // The first flush also runs the first invocation
+                assertTrue(++invocations[0] <= 2);
+                return inputPending[0];
+              });
+          impl.scheduleFixedDelay(
+              () -> {
+                inputPending[0] = false;
+                finishTest();
+                return false;
+              },
+              100);
+          return false;
+        },
+        100);
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testAnimationFrameFlushMode() {
+    final SchedulerImpl impl = new SchedulerImpl(FlushMode.ANIMATION_FRAME);
+
+    final int[] values = {0, 4};
+    impl.scheduleIncremental(new CountingCommand(values));
+
+    // Deferred and incremental commands share the queues of the default flush mode
+    assertEquals(1, impl.deferredCommands.size());
+
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (values[0] == values[1]) {
               finishTest();
             } else {
-              assertNotNull(impl.incrementalCommands);
-              assertEquals(1, impl.incrementalCommands.length);
-              assertSame(counter, impl.incrementalCommands.getAt(0).getRepeating());
               impl.scheduleDeferred(this);
             }
           }
         });
 
-    assertEquals(2, impl.deferredCommands.length);
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testDefaultTimeSlicePolicy() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    // A fixed time slice, whatever the frame rate and the work already done in the frame
+    assertEquals(16.0, impl.timeSlicePolicy.getTimeSlice(16.7, 10), 0);
+    assertEquals(16.0, impl.timeSlicePolicy.getTimeSlice(8.3, 0), 0);
+  }
+
+  public void testTimeSlicePolicy() {
+    final double[] now = {0};
+    final SchedulerImpl impl = createVirtualTimeScheduler(now);
+    final double[] frameInterval = {0};
+    impl.setTimeSlicePolicy(
+        (interval, elapsedMillis) -> {
+          frameInterval[0] = interval;
+          return 1;
+        });
+
+    // The first invocation is a deferred command, the second one overruns the time slice
+    impl.scheduleIncremental(
+        new RepeatingCommand() {
+          private boolean firstTime = true;
+
+          @Override
+          public boolean execute() {
+            if (firstTime) {
+              firstTime = false;
+              return true;
+            }
+            now[0] += 5;
+            return false;
+          }
+        });
+
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (impl.getTimeSliceCount() == 0) {
+              impl.scheduleDeferred(this);
+              return;
+            }
+            assertTrue(frameInterval[0] > 0);
+            assertEquals(1, impl.getTimeSliceCount());
+            assertEquals(1, impl.getTimeSliceOverrunCount());
+            assertEquals(4, impl.getTimeSliceOverrunMillis(), 0);
+            finishTest();
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testPriorities() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    // Leave enough time for all background commands
+    impl.setTimeSlicePolicy((interval, elapsedMillis) -> TEST_DELAY);
+
+    final StringBuilder order = new StringBuilder();
+    for (int i = 1; i <= 5; i++) {
+      final String name = "N" + i;
+      impl.scheduleDeferred(() -> order.append(name).append(' '), Priority.NORMAL);
+    }
+    impl.scheduleDeferred(() -> order.append("B1 "), Priority.BACKGROUND);
+    impl.scheduleDeferred(() -> order.append("U1 "), Priority.USER_BLOCKING);
+    impl.scheduleDeferred(
+        () -> {
+          // User-blocking first, then one background command per four normal ones
+          assertEquals("U1 N1 N2 N3 N4 B1 N5 ", order.toString());
+          finishTest();
+        },
+        Priority.BACKGROUND);
+
+    assertEquals(5, impl.deferredCommands.size());
+    assertEquals(1, impl.userBlockingCommands.size());
+    assertEquals(2, impl.backgroundCommands.size());
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testBackgroundAging() {
+    final double[] now = {0};
+    final SchedulerImpl impl = createVirtualTimeScheduler(now);
+    // Never leave time for background commands
+    impl.setTimeSlicePolicy((interval, elapsedMillis) -> 0);
+
+    final boolean[] ran = {false};
+    impl.scheduleDeferred(
+        () -> {
+          // Runs in the first flush that starts a second after it was queued, after its normal
+          // command
+          assertEquals(1100, now[0], 0);
+          ran[0] = true;
+        },
+        Priority.BACKGROUND);
+    assertTrue(impl.isWorkQueued());
+
+    // Normal commands keep the scheduler busy, 100ms per flush
+    impl.scheduleDeferred(
+        new ScheduledCommand() {
+          @Override
+          public void execute() {
+            if (ran[0]) {
+              finishTest();
+              return;
+            }
+            now[0] += 100;
+            impl.scheduleDeferred(this);
+          }
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testCoalescedCount() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    for (int i = 0; i < 3; i++) {
+      impl.scheduleDeferred("key", () -> {});
+      impl.scheduleFinally("key", () -> {});
+    }
+    impl.scheduleDeferred("other", () -> {});
+    // Counted whether metrics are compiled in or not
+    assertEquals(4, impl.getCoalescedCount());
+  }
+
+  public void testQueueCapacity() {
+    final SchedulerImpl rejecting = new SchedulerImpl();
+    rejecting.setQueueCapacity(2, OverflowPolicy.REJECT);
+    for (int i = 0; i < 5; i++) {
+      rejecting.scheduleDeferred(() -> {});
+    }
+    assertEquals(2, rejecting.deferredCommands.size());
+    assertEquals(3, rejecting.getDroppedCount());
+    // A dropped keyed command releases its key
+    assertFalse(rejecting.scheduleDeferred("key", () -> {}));
+    assertFalse(rejecting.scheduleDeferred("key", () -> {}));
+    assertEquals(5, rejecting.getDroppedCount());
+
+    final SchedulerImpl droppingOldest = new SchedulerImpl();
+    droppingOldest.setQueueCapacity(1, OverflowPolicy.DROP_OLDEST);
+    droppingOldest.scheduleDeferred("key", () -> {});
+    droppingOldest.scheduleDeferred(() -> {});
+    assertEquals(1, droppingOldest.getDroppedCount());
+    assertFalse(droppingOldest.scheduleDeferred("key", () -> {}));
+    // Incremental commands are not dropped before their first run
+    final SchedulerImpl keepingIncremental = new SchedulerImpl();
+    keepingIncremental.setQueueCapacity(1, OverflowPolicy.DROP_OLDEST);
+    keepingIncremental.scheduleIncremental(() -> false);
+    keepingIncremental.scheduleDeferred(() -> {});
+    assertEquals(1, keepingIncremental.getDroppedCount());
+    assertTrue(keepingIncremental.deferredCommands.isRepeating(0));
+
+    final StringBuilder order = new StringBuilder();
+    final ScheduledCommand a = () -> order.append("a ");
+    final ScheduledCommand b = () -> order.append("b ");
+    final SchedulerImpl coalescing = new SchedulerImpl();
+    coalescing.setQueueCapacity(2, OverflowPolicy.COALESCE);
+    coalescing.scheduleDeferred(a);
+    coalescing.scheduleDeferred(b);
+    coalescing.scheduleDeferred(a);
+    coalescing.scheduleDeferred(() -> order.append("c "));
+    assertEquals(2, coalescing.deferredCommands.size());
+    assertEquals(1, coalescing.getMergedCount());
+    assertEquals(1, coalescing.getDroppedCount());
+
+    // Lambdas are never equal, keyed commands are merged by key up to twice the capacity
+    final SchedulerImpl coalescingKeys = new SchedulerImpl();
+    coalescingKeys.setQueueCapacity(2, OverflowPolicy.COALESCE);
+    coalescingKeys.scheduleDeferred(() -> order.append("d "));
+    coalescingKeys.scheduleDeferred(() -> order.append("d "));
+    coalescingKeys.scheduleDeferred(() -> order.append("d "));
+    assertEquals(1, coalescingKeys.getDroppedCount());
+    assertFalse(coalescingKeys.scheduleDeferred("a", () -> order.append("a1 ")));
+    assertTrue(coalescingKeys.scheduleDeferred("a", () -> order.append("a2 ")));
+    assertFalse(coalescingKeys.scheduleDeferred("b", () -> order.append("b ")));
+    assertFalse(coalescingKeys.scheduleDeferred("c", () -> order.append("c ")));
+    assertFalse(coalescingKeys.scheduleDeferred("c", () -> order.append("c ")));
+    assertEquals(4, coalescingKeys.deferredCommands.size());
+    assertEquals(1, coalescingKeys.getMergedCount());
+    assertEquals(3, coalescingKeys.getDroppedCount());
+  }
+
+  public void testQueueCapacityDropOldest() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    impl.setQueueCapacity(3, OverflowPolicy.DROP_OLDEST);
+    final StringBuilder order = new StringBuilder();
+
+    impl.scheduleDeferred(
+        () -> {
+          order.append("A ");
+          impl.scheduleFinally(
+              () -> {
+                order.append("| ");
+              });
+          // Fills the queue, then drops B, which the flush doesn't wait for
+          impl.scheduleDeferred(() -> order.append("D "));
+          impl.scheduleDeferred(
+              () -> {
+                assertEquals("A C | D ", order.toString());
+                assertEquals(1, impl.getDroppedCount());
+                finishTest();
+              });
+        });
+    impl.scheduleDeferred(() -> order.append("B "));
+    impl.scheduleDeferred(() -> order.append("C "));
+    assertEquals(0, impl.getDroppedCount());
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testBackpressure() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    impl.setQueueCapacity(2, OverflowPolicy.BLOCK_PRODUCER);
+    final StringBuilder order = new StringBuilder();
+    impl.setBackpressureListener(
+        new BackpressureListener() {
+          @Override
+          public void onQueueFull() {
+            order.append("full ");
+          }
+
+          @Override
+          public void onQueueDrained() {
+            assertEquals("full C1 C2 C3 C4 ", order.toString());
+            finishTest();
+          }
+        });
+
+    for (int i = 1; i <= 5; i++) {
+      final String name = "C" + i;
+      impl.scheduleDeferred(() -> order.append(name).append(' '));
+    }
+    // The commands are queued anyway up to twice the capacity, and the listener told once
+    assertEquals(4, impl.deferredCommands.size());
+    assertEquals("full ", order.toString());
+    assertEquals(1, impl.getDroppedCount());
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testCancellation() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    final int[] values = {0, 0, 0, 0};
+
+    CancellationToken deferredToken = new CancellationToken();
+    impl.scheduleDeferred(() -> values[0]++, deferredToken);
+    deferredToken.cancel();
+
+    final CancellationToken incrementalToken = new CancellationToken();
+    impl.scheduleIncremental(
+        () -> {
+          if (++values[1] == 2) {
+            incrementalToken.cancel();
+          }
+          return true;
+        },
+        incrementalToken);
+
+    final CancellationToken delayToken = new CancellationToken();
+    impl.scheduleFixedDelay(
+        () -> {
+          if (++values[2] == 2) {
+            delayToken.cancel();
+          }
+          return true;
+        },
+        10,
+        delayToken);
+
+    final CancellationToken periodToken = new CancellationToken();
+    impl.scheduleFixedPeriod(
+        () -> {
+          if (++values[3] == 2) {
+            periodToken.cancel();
+          }
+          return true;
+        },
+        10,
+        periodToken);
+
+    // Commands scheduled with a canceled token are dropped
+    impl.scheduleIdle(deadline -> values[0]++ < 0, deferredToken);
+    assertNull(impl.idleCommands);
+
+    impl.scheduleFixedDelay(
+        () -> {
+          assertEquals(0, values[0]);
+          assertEquals(2, values[1]);
+          assertEquals(2, values[2]);
+          assertEquals(2, values[3]);
+          assertFalse(impl.isWorkQueued());
+          finishTest();
+          return false;
+        },
+        200);
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testLongTaskWatchdog() {
+    final double[] now = {0};
+    final SchedulerImpl impl = createVirtualTimeScheduler(now);
+    final List<String> labels = new ArrayList<>();
+    impl.setLongTaskWatchdog(
+        20,
+        SchedulerImpl.createPerformanceTimelineSink(
+            (cmd, label, durationMillis) -> {
+              assertTrue(cmd instanceof BusyCommand);
+              assertEquals(30, durationMillis, 0);
+              labels.add(label);
+            }));
+
+    impl.scheduleFinally(new BusyCommand(now, 30));
+    impl.scheduleFinally(new NullCommand());
+    impl.flushFinallyCommands();
+    assertEquals(1, labels.size());
+    assertEquals(BusyCommand.class.getName(), labels.get(0));
+
+    // The command is reported, not the wrapper that cancels it
+    impl.scheduleDeferred(new BusyCommand(now, 30), new CancellationToken());
+    impl.scheduleDeferred(
+        () -> {
+          assertEquals(2, labels.size());
+          assertEquals(BusyCommand.class.getName(), labels.get(1));
+
+          impl.setLongTaskWatchdog(20, null);
+          impl.scheduleDeferred(new BusyCommand(now, 30));
+          impl.scheduleDeferred(
+              () -> {
+                assertEquals(2, labels.size());
+                finishTest();
+              });
+        });
+
+    delayTestFinish(TEST_DELAY);
+  }
+
+  public void testTracer() {
+    final SchedulerImpl impl = new SchedulerImpl();
+    final SchedulerTracer tracer = new SchedulerTracer(100);
+    tracer.setUserTiming(true);
+    impl.setTracer(tracer);
+
+    impl.scheduleDeferred(
+        SchedulerTracer.label(
+            "render",
+            () -> {
+              impl.scheduleFinally(
+                  SchedulerTracer.label(
+                      "commit",
+                      () -> {
+                        // nothing to do
+                      }));
+            }));
+    impl.scheduleIncremental(SchedulerTracer.label("load", () -> false));
+    impl.scheduleDeferred(
+        () -> {
+          // Unlabelled commands aren't traced, the next flush sees the whole first one
+          impl.scheduleDeferred(
+              () -> {
+                String trace = tracer.toChromeTrace();
+                assertEquals(5, tracer.getEventCount());
+                assertTrue(trace.contains("\"name\":\"render\",\"cat\":\"command\""));
+                assertTrue(trace.contains("\"name\":\"load\",\"cat\":\"command\""));
+                assertTrue(trace.contains("\"name\":\"commit\",\"cat\":\"command\""));
+                assertTrue(trace.contains("\"cat\":\"flush\""));
+                assertTrue(trace.contains("\"cat\":\"finally\""));
+                finishTest();
+              });
+        });
 
     delayTestFinish(TEST_DELAY);
   }
@@ -318,12 +1241,12 @@ public class SchedulerImplTest extends GWTTestCase {
           }
         });
 
-    assertEquals(3, impl.queue().length);
+    assertEquals(3, impl.queue().size());
 
     ScheduledCommand nullCommand = new NullCommand();
     impl.schedule(nullCommand);
-    assertEquals(4, impl.queue().length);
-    assertSame(nullCommand, impl.queue().getAt(3).getScheduled());
+    assertEquals(4, impl.queue().size());
+    assertSame(nullCommand, impl.queue().getScheduled(3));
 
     impl.flush();
 
@@ -332,12 +1255,12 @@ public class SchedulerImplTest extends GWTTestCase {
 
     // Test that the RepeatingCommand is still scheduled
     assertEquals(1, counterValues[0]);
-    assertEquals(1, impl.queue().length);
+    assertEquals(1, impl.queue().size());
     impl.flush();
 
     // Everything should be finished now
     assertEquals(2, counterValues[0]);
     assertTrue(oneShotValues[0]);
-    assertNull(impl.queue());
+    assertTrue(impl.queue().isEmpty());
   }
 }
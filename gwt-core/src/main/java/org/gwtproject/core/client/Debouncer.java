@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+
+/**
+ * Runs a command once a burst of calls to {@link #call()} is over, that is once no call was made
+ * for the wait time, for instance to validate a field once the user stopped typing.
+ *
+ * <p>By default the command runs on the trailing edge of the burst, after the wait time. It can
+ * also run on the leading edge, right on the first call, see {@link #setLeading(boolean)}, and at
+ * least every {@link #setMaxWaitMillis(int)} while the burst lasts.
+ *
+ * <p>Calls don't schedule a timer each: they only record the time of the call. A single timer is
+ * pending per Debouncer, and when it fires before the burst is over, it is scheduled again for the
+ * time left. The timer is scheduled with {@link Scheduler#scheduleFixedDelay(RepeatingCommand, int,
+ * CancellationToken)} on the clock of {@link Scheduler#currentTimeMillis()}, so Debouncers can be
+ * tested with {@link org.gwtproject.core.client.testing.VirtualTimeScheduler}.
+ */
+public class Debouncer {
+
+  private final Scheduler scheduler;
+  private final ScheduledCommand cmd;
+  private final int waitMillis;
+  private final TimerHandle timer;
+
+  private boolean leading;
+  private boolean trailing = true;
+  private int maxWaitMillis;
+
+  /** Whether a call is waiting for the command to run. */
+  private boolean pending;
+
+  private double lastCallMillis;
+
+  /** When the command last ran, or when the burst started if it didn't run yet. */
+  private double maxWaitStartMillis;
+
+  /**
+   * Creates a Debouncer that uses {@link Scheduler#get()}.
+   *
+   * @param cmd the command to run
+   * @param waitMillis how long after the last call the burst is over
+   */
+  public Debouncer(ScheduledCommand cmd, int waitMillis) {
+    this(Scheduler.get(), cmd, waitMillis);
+  }
+
+  /**
+   * @param scheduler schedules the timer
+   * @param cmd the command to run
+   * @param waitMillis how long after the last call the burst is over
+   */
+  public Debouncer(Scheduler scheduler, ScheduledCommand cmd, int waitMillis) {
+    assert waitMillis >= 0 : "waitMillis must not be negative";
+    this.scheduler = scheduler;
+    this.cmd = cmd;
+    this.waitMillis = waitMillis;
+    timer = new TimerHandle(scheduler, this::onTimer, this::cancel);
+  }
+
+  /** @param leading whether the command runs on the first call of a burst, default false */
+  public void setLeading(boolean leading) {
+    this.leading = leading;
+  }
+
+  /**
+   * @param trailing whether the command runs once a burst is over if it was called since it last
+   *     ran, default true
+   */
+  public void setTrailing(boolean trailing) {
+    this.trailing = trailing;
+  }
+
+  /**
+   * @param maxWaitMillis the longest time the command waits while calls keep coming, 0 to wait
+   *     until the burst is over, which is the default. It may be shorter than the wait time: the
+   *     first call of a burst waits for the shorter of the two
+   */
+  public void setMaxWaitMillis(int maxWaitMillis) {
+    assert maxWaitMillis >= 0 : "maxWaitMillis must not be negative";
+    this.maxWaitMillis = maxWaitMillis;
+  }
+
+  /**
+   * Ties the Debouncer to <code>token</code>: once the token is canceled, the pending run of the
+   * command is canceled, and calls are ignored.
+   *
+   * @param token cancels the Debouncer
+   */
+  public void setCancellationToken(CancellationToken token) {
+    timer.setCancellationToken(token);
+  }
+
+  /** Requests a run of the command, see {@link Debouncer}. */
+  public void call() {
+    CancellationToken cancellationToken = timer.getCancellationToken();
+    if (cancellationToken != null && cancellationToken.isCanceled()) {
+      return;
+    }
+    double now = scheduler.currentTimeMillis();
+    lastCallMillis = now;
+    if (timer.isScheduled()) {
+      pending = true;
+      return;
+    }
+    // The first call of a burst, the max wait may be shorter than the wait
+    maxWaitStartMillis = now;
+    timer.schedule(maxWaitMillis > 0 ? Math.min(waitMillis, maxWaitMillis) : waitMillis);
+    if (leading) {
+      run(now);
+    } else {
+      pending = true;
+    }
+  }
+
+  /** @return whether a call is waiting for the command to run */
+  public boolean isPending() {
+    return pending;
+  }
+
+  /** Cancels the pending run of the command, if any. */
+  public void cancel() {
+    pending = false;
+    timer.cancel();
+  }
+
+  /** Runs the command right away if a call is waiting for it, and ends the burst. */
+  public void flush() {
+    boolean wasPending = pending;
+    cancel();
+    if (wasPending) {
+      run(scheduler.currentTimeMillis());
+    }
+  }
+
+  private void onTimer() {
+    double now = scheduler.currentTimeMillis();
+    double quietMillis = now - lastCallMillis;
+    if (quietMillis >= waitMillis) {
+      // The burst is over
+      boolean wasPending = pending;
+      pending = false;
+      if (wasPending && trailing) {
+        run(now);
+      }
+      return;
+    }
+    double delay = waitMillis - quietMillis;
+    boolean maxWaitOver = false;
+    if (maxWaitMillis > 0 && pending) {
+      double maxWaitLeft = maxWaitMillis - (now - maxWaitStartMillis);
+      maxWaitOver = maxWaitLeft <= 0;
+      delay = maxWaitOver ? Math.min(delay, maxWaitMillis) : Math.min(delay, maxWaitLeft);
+    }
+    timer.schedule(delay);
+    if (maxWaitOver) {
+      run(now);
+    }
+  }
+
+  private void run(double now) {
+    pending = false;
+    maxWaitStartMillis = now;
+    cmd.execute();
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import java.util.List;
+
+/**
+ * A Scheduler that forwards all calls to another one, for decorators that only change some of them,
+ * see {@link Scheduler#decorate(Scheduler.Decorator)}. Every method is forwarded, including those
+ * that have a default implementation in Scheduler, so that the wrapped scheduler's own handling of
+ * priorities, weights and cancellation is kept. Only {@link #entry(ScheduledCommand)} is not, so
+ * that the wrapper it returns goes through {@link #runEntry(ScheduledCommand)} of the decorator.
+ *
+ * <pre>
+ * Scheduler.decorate(
+ *     scheduler -&gt;
+ *         new ForwardingScheduler(scheduler) {
+ *           &#64;Override
+ *           public void scheduleDeferred(ScheduledCommand cmd) {
+ *             super.scheduleDeferred(profile(cmd));
+ *           }
+ *         });
+ * </pre>
+ */
+public class ForwardingScheduler extends Scheduler {
+
+  private final Scheduler delegate;
+
+  /** @param delegate the scheduler to forward calls to */
+  public ForwardingScheduler(Scheduler delegate) {
+    assert delegate != null : "delegate";
+    this.delegate = delegate;
+  }
+
+  /** @return the scheduler calls are forwarded to */
+  public Scheduler getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public <T> Thenable<T> computeDeferred(ComputedCommand<T> cmd) {
+    return delegate.computeDeferred(cmd);
+  }
+
+  @Override
+  public <T> Thenable<List<T>> computeDeferredAll(
+      List<? extends ComputedCommand<? extends T>> cmds) {
+    return delegate.computeDeferredAll(cmds);
+  }
+
+  @Override
+  public <T> Thenable<T> computeFinally(ComputedCommand<T> cmd) {
+    return delegate.computeFinally(cmd);
+  }
+
+  @Override
+  public double currentTimeMillis() {
+    return delegate.currentTimeMillis();
+  }
+
+  @Override
+  public void runEntry(ScheduledCommand cmd) {
+    delegate.runEntry(cmd);
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd) {
+    delegate.scheduleDeferred(cmd);
+  }
+
+  @Override
+  public boolean scheduleDeferred(Object key, ScheduledCommand cmd) {
+    return delegate.scheduleDeferred(key, cmd);
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority) {
+    delegate.scheduleDeferred(cmd, priority);
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd, CancellationToken token) {
+    delegate.scheduleDeferred(cmd, token);
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority, CancellationToken token) {
+    delegate.scheduleDeferred(cmd, priority, token);
+  }
+
+  @Override
+  public void scheduleEntry(RepeatingCommand cmd) {
+    delegate.scheduleEntry(cmd);
+  }
+
+  @Override
+  public void scheduleEntry(ScheduledCommand cmd) {
+    delegate.scheduleEntry(cmd);
+  }
+
+  @Override
+  public void scheduleFinally(RepeatingCommand cmd) {
+    delegate.scheduleFinally(cmd);
+  }
+
+  @Override
+  public void scheduleFinally(RepeatingCommand cmd, CancellationToken token) {
+    delegate.scheduleFinally(cmd, token);
+  }
+
+  @Override
+  public void scheduleFinally(ScheduledCommand cmd) {
+    delegate.scheduleFinally(cmd);
+  }
+
+  @Override
+  public boolean scheduleFinally(Object key, ScheduledCommand cmd) {
+    return delegate.scheduleFinally(key, cmd);
+  }
+
+  @Override
+  public void scheduleFinally(ScheduledCommand cmd, CancellationToken token) {
+    delegate.scheduleFinally(cmd, token);
+  }
+
+  @Override
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs) {
+    delegate.scheduleFixedDelay(cmd, delayMs);
+  }
+
+  @Override
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    delegate.scheduleFixedDelay(cmd, delayMs, token);
+  }
+
+  @Override
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs) {
+    delegate.scheduleFixedPeriod(cmd, delayMs);
+  }
+
+  @Override
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    delegate.scheduleFixedPeriod(cmd, delayMs, token);
+  }
+
+  @Override
+  public void scheduleIdle(IdleCommand cmd) {
+    delegate.scheduleIdle(cmd);
+  }
+
+  @Override
+  public void scheduleIdle(IdleCommand cmd, CancellationToken token) {
+    delegate.scheduleIdle(cmd, token);
+  }
+
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd) {
+    delegate.scheduleIncremental(cmd);
+  }
+
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd, Priority priority) {
+    delegate.scheduleIncremental(cmd, priority);
+  }
+
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd, int weight) {
+    delegate.scheduleIncremental(cmd, weight);
+  }
+
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd, CancellationToken token) {
+    delegate.scheduleIncremental(cmd, token);
+  }
+
+  @Override
+  public void scheduleIncremental(
+      RepeatingCommand cmd, Priority priority, CancellationToken token) {
+    delegate.scheduleIncremental(cmd, priority, token);
+  }
+}
@@ -15,7 +15,12 @@
  */
 package org.gwtproject.core.client;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.gwtproject.core.client.impl.SchedulerImpl;
+import org.gwtproject.core.shared.GwtIncompatible;
 
 /**
  * This class provides low-level task scheduling primitives. Any exceptions thrown by the command
@@ -41,12 +46,454 @@ public abstract class Scheduler {
   }
 
   /**
-   * Returns the default implementation of the Scheduler API.
+   * The time budget passed to an {@link IdleCommand}, similar to the browser's <code>IdleDeadline
+   * </code>.
+   */
+  public interface IdleDeadline {
+    /** @return the number of milliseconds left in the current idle period, 0 once it is over */
+    double timeRemaining();
+  }
+
+  /** Command interface for commands that compute a result, see {@link Thenable}. */
+  public interface ComputedCommand<T> {
+    /** @return the result of the command */
+    T execute();
+  }
+
+  /** Command interface for work that should only be done while the browser is idle. */
+  public interface IdleCommand {
+    /**
+     * Invokes the command.
+     *
+     * @param deadline the time left in the current idle period
+     * @return true if the IdleCommand should be invoked again in a later idle period
+     */
+    boolean execute(IdleDeadline deadline);
+  }
+
+  /**
+   * Cancels the commands it was passed with when they were scheduled, similar to the browser's
+   * <code>AbortSignal</code>. Once canceled, the commands are not invoked again, and the scheduler
+   * releases them without waiting for their next turn. A token can be shared by a group of commands
+   * that are canceled together.
+   */
+  public static final class CancellationToken {
+    /**
+     * A command registered with {@link CancellationToken#onCancel}. Scheduler implementations
+     * remove it once the command it cancels completed, so that a long-lived token doesn't retain
+     * every command that was ever scheduled with it.
+     */
+    public static final class Registration {
+      private CancellationToken token;
+      private final ScheduledCommand cmd;
+      private Registration previous;
+      private Registration next;
+
+      private Registration(CancellationToken token, ScheduledCommand cmd) {
+        this.token = token;
+        this.cmd = cmd;
+      }
+
+      /** Removes the command from the token. Removing it again, or once canceled, does nothing. */
+      public void remove() {
+        CancellationToken token = this.token;
+        if (token == null) {
+          return;
+        }
+        synchronized (token) {
+          if (this.token == null) {
+            return;
+          }
+          if (previous == null) {
+            token.first = next;
+          } else {
+            previous.next = next;
+          }
+          if (next == null) {
+            token.last = previous;
+          } else {
+            next.previous = previous;
+          }
+          this.token = null;
+          previous = null;
+          next = null;
+        }
+      }
+    }
+
+    /*
+     * Guarded by this, for implementations that can be called from several threads. The registered
+     * commands run without holding the lock.
+     */
+    private volatile boolean canceled;
+    /* The registered commands, in a doubly-linked list so that they are removed in constant time. */
+    private Registration first;
+    private Registration last;
+
+    /** Cancels all commands scheduled with this token. Canceling a token again does nothing. */
+    public void cancel() {
+      Registration registration;
+      synchronized (this) {
+        if (canceled) {
+          return;
+        }
+        canceled = true;
+        registration = first;
+        first = null;
+        last = null;
+      }
+      while (registration != null) {
+        Registration next = registration.next;
+        registration.token = null;
+        registration.previous = null;
+        registration.next = null;
+        registration.cmd.execute();
+        registration = next;
+      }
+    }
+
+    /** @return true if {@link #cancel()} has been called */
+    public boolean isCanceled() {
+      return canceled;
+    }
+
+    /**
+     * Registers a command that is executed when this token is canceled, or right away if it already
+     * is. Scheduler implementations use this to remove the commands scheduled with this token from
+     * their queues and timers.
+     *
+     * @param cmd the command to execute on cancellation
+     * @return the registration, to remove once the command is no longer needed
+     */
+    public Registration onCancel(ScheduledCommand cmd) {
+      Registration registration = new Registration(null, cmd);
+      synchronized (this) {
+        if (!canceled) {
+          registration.token = this;
+          registration.previous = last;
+          if (last == null) {
+            first = registration;
+          } else {
+            last.next = registration;
+          }
+          last = registration;
+          return registration;
+        }
+      }
+      cmd.execute();
+      return registration;
+    }
+  }
+
+  /** Selects what drives the flushing of deferred and incremental commands. */
+  public enum FlushMode {
+    /** Commands are flushed from a timer, as soon as possible after the browser event loop. */
+    DEFAULT,
+    /**
+     * Commands are flushed from <code>requestAnimationFrame</code>, and incremental commands only
+     * use the part of the frame left before the browser paints. While the document is hidden, or if
+     * the browser has no <code>requestAnimationFrame</code>, this behaves like {@link #DEFAULT}.
+     */
+    ANIMATION_FRAME
+  }
+
+  /** The priority of a deferred or incremental command, relative to other queued commands. */
+  public enum Priority {
+    /**
+     * For work the user is waiting on, such as updating the UI in response to input. These commands
+     * run before all other deferred and incremental commands.
+     */
+    USER_BLOCKING,
+    /** The priority of commands scheduled without an explicit priority. */
+    NORMAL,
+    /**
+     * For work the user is not waiting on, such as logging or prefetching. These commands only run
+     * in the time left after higher priority commands, but are not postponed indefinitely.
+     */
+    BACKGROUND
+  }
+
+  /** The budget passed to idle commands by the default implementation of {@link #scheduleIdle}. */
+  private static final double IDLE_TIME_SLICE = 16;
+
+  /**
+   * A keyed command that is queued, whose command is replaced by later ones with the same key until
+   * it runs.
+   */
+  private static final class KeyedCommand implements ScheduledCommand {
+    private final Map<Object, KeyedCommand> pending;
+    private final Object key;
+    private ScheduledCommand cmd;
+
+    KeyedCommand(Map<Object, KeyedCommand> pending, Object key, ScheduledCommand cmd) {
+      this.pending = pending;
+      this.key = key;
+      this.cmd = cmd;
+    }
+
+    @Override
+    public void execute() {
+      ScheduledCommand current;
+      synchronized (pending) {
+        pending.remove(key);
+        current = cmd;
+      }
+      current.execute();
+    }
+
+    /** Removes the command from the pending ones, if it wasn't replaced by a later one. */
+    void release() {
+      synchronized (pending) {
+        if (pending.get(key) == this) {
+          pending.remove(key);
+        }
+      }
+    }
+  }
+
+  /* The queued keyed commands, by key. */
+  private final Map<Object, KeyedCommand> keyedDeferredCommands = new HashMap<>();
+  private final Map<Object, KeyedCommand> keyedFinallyCommands = new HashMap<>();
+
+  /**
+   * Wraps the default implementations of the Scheduler API, for instance to profile or log the
+   * commands, see {@link #decorate(Decorator)}.
+   */
+  public interface Decorator {
+    /**
+     * @param scheduler the scheduler to wrap
+     * @return the scheduler to use instead, usually a {@link ForwardingScheduler}
+     */
+    Scheduler decorate(Scheduler scheduler);
+  }
+
+  /** Finds the default implementations, on the JVM and in the browser. */
+  private static final GwtImpl IMPL = new JreImpl();
+
+  /*
+   * The JVM implementation can be used from several threads, so these are volatile, and the
+   * default implementations are created under the lock of this class.
+   */
+
+  /** The scheduler replacing the default ones, see {@link #install(Scheduler)}. */
+  private static volatile Scheduler installed;
+
+  /** All decorators, composed in the order they were added. */
+  private static volatile Decorator decorator;
+
+  /* The decorated default implementations, created on first use. */
+  private static volatile Scheduler defaultInstance;
+  private static volatile Scheduler animationFrameInstance;
+
+  /**
+   * Returns the default implementation of the Scheduler API, unless another one was installed. On
+   * the JVM, this is a {@link org.gwtproject.core.client.impl.JreSchedulerImpl}, which runs the
+   * commands on an event loop thread.
    *
    * @return instance of Scheduler
    */
   public static Scheduler get() {
-    return SchedulerImpl.INSTANCE;
+    Scheduler scheduler = installed;
+    if (scheduler != null) {
+      return scheduler;
+    }
+    scheduler = defaultInstance;
+    return scheduler != null ? scheduler : createDefaultInstance();
+  }
+
+  /**
+   * Returns an implementation of the Scheduler API that flushes its commands as described by <code>
+   * mode</code>, unless another one was installed. On the JVM, the mode is ignored.
+   *
+   * @param mode how deferred and incremental commands are flushed
+   * @return instance of Scheduler
+   */
+  public static Scheduler get(FlushMode mode) {
+    Scheduler scheduler = installed;
+    if (scheduler != null) {
+      return scheduler;
+    }
+    if (mode != FlushMode.ANIMATION_FRAME) {
+      return get();
+    }
+    scheduler = animationFrameInstance;
+    return scheduler != null ? scheduler : createAnimationFrameInstance();
+  }
+
+  private static synchronized Scheduler createDefaultInstance() {
+    if (defaultInstance == null) {
+      defaultInstance = decorateDefault(IMPL.get());
+    }
+    return defaultInstance;
+  }
+
+  private static synchronized Scheduler createAnimationFrameInstance() {
+    if (animationFrameInstance == null) {
+      Scheduler scheduler = IMPL.get(FlushMode.ANIMATION_FRAME);
+      // Where both modes share an implementation, they share its decorator too
+      animationFrameInstance = scheduler == IMPL.get() ? get() : decorateDefault(scheduler);
+    }
+    return animationFrameInstance;
+  }
+
+  /**
+   * Installs the scheduler returned by {@link #get()} and {@link #get(FlushMode)} from now on, such
+   * as a {@link org.gwtproject.core.client.testing.VirtualTimeScheduler} in tests, or a replacement
+   * implementation of the Scheduler API. Commands that were already scheduled still run on the
+   * scheduler they were scheduled with, and so do those scheduled through instances that callers
+   * kept, so applications should install their scheduler before the first use, at the start of
+   * their entry point.
+   *
+   * <p>The installed scheduler is not decorated, see {@link #decorate(Decorator)}.
+   *
+   * @param scheduler the scheduler to install, or <code>null</code> to restore the default ones
+   */
+  public static void install(Scheduler scheduler) {
+    installed = scheduler;
+  }
+
+  /**
+   * Wraps the default implementations returned by {@link #get()} and {@link #get(FlushMode)} from
+   * now on. Decorators are applied in the order they were added, so the last one added is the
+   * outermost. As with {@link #install(Scheduler)}, callers that kept an instance keep using it, so
+   * decorators should be added before the first use.
+   *
+   * @param decorator wraps each default implementation once
+   */
+  public static synchronized void decorate(Decorator decorator) {
+    Decorator previous = Scheduler.decorator;
+    Scheduler.decorator =
+        previous == null
+            ? decorator
+            : scheduler -> decorator.decorate(previous.decorate(scheduler));
+    defaultInstance = null;
+    animationFrameInstance = null;
+  }
+
+  /** there for testing */
+  static synchronized void removeDecorators() {
+    decorator = null;
+    defaultInstance = null;
+    animationFrameInstance = null;
+  }
+
+  private static Scheduler decorateDefault(Scheduler scheduler) {
+    return decorator == null ? scheduler : decorator.decorate(scheduler);
+  }
+
+  private static class GwtImpl {
+    Scheduler get() {
+      return SchedulerImpl.INSTANCE;
+    }
+
+    Scheduler get(FlushMode mode) {
+      if (mode == FlushMode.ANIMATION_FRAME) {
+        return SchedulerImpl.ANIMATION_FRAME_INSTANCE;
+      }
+      return get();
+    }
+  }
+
+  private static class JreImpl extends GwtImpl {
+    @GwtIncompatible
+    @Override
+    Scheduler get() {
+      return org.gwtproject.core.client.impl.JreSchedulerImpl.INSTANCE;
+    }
+
+    @GwtIncompatible
+    @Override
+    Scheduler get(FlushMode mode) {
+      return org.gwtproject.core.client.impl.JreSchedulerImpl.INSTANCE;
+    }
+  }
+
+  /**
+   * Schedules a deferred command that computes a result, see {@link
+   * #scheduleDeferred(ScheduledCommand)}. The callbacks of the returned Thenable run right after
+   * the command, in the same flush, so that a chain of computations doesn't take a flush per step.
+   *
+   * @param cmd the command to execute
+   * @return completes with the result of <code>cmd</code>, or the exception it threw
+   */
+  public <T> Thenable<T> computeDeferred(ComputedCommand<T> cmd) {
+    Thenable<T> result = new Thenable<>();
+    scheduleDeferred(() -> result.complete(cmd));
+    return result;
+  }
+
+  /**
+   * Schedules several commands that compute a result as a single deferred command, so that they run
+   * in the same flush, one after the other, and take a single place in the queue.
+   *
+   * @param cmds the commands to execute, in order
+   * @return completes with the results of <code>cmds</code>, in order, or the first exception one
+   *     of them threw; the other commands still run
+   */
+  public <T> Thenable<List<T>> computeDeferredAll(
+      List<? extends ComputedCommand<? extends T>> cmds) {
+    List<Thenable<T>> results = new ArrayList<>(cmds.size());
+    for (int i = 0; i < cmds.size(); i++) {
+      results.add(new Thenable<>());
+    }
+    Thenable<List<T>> result = Thenable.all(results);
+    scheduleDeferred(
+        () -> {
+          for (int i = 0; i < cmds.size(); i++) {
+            results.get(i).complete(cmds.get(i));
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Schedules a finally command that computes a result, see {@link
+   * #scheduleFinally(ScheduledCommand)}.
+   *
+   * @param cmd the command to execute
+   * @return completes with the result of <code>cmd</code>, or the exception it threw
+   */
+  public <T> Thenable<T> computeFinally(ComputedCommand<T> cmd) {
+    Thenable<T> result = new Thenable<>();
+    scheduleFinally(() -> result.complete(cmd));
+    return result;
+  }
+
+  /**
+   * Returns the time of the clock that fixed-delay and fixed-period commands are scheduled on, for
+   * code that computes delays, such as {@link Debouncer}. This is {@link
+   * Duration#currentTimeMillis()} in the browser, and a virtual clock with {@link
+   * org.gwtproject.core.client.testing.VirtualTimeScheduler}.
+   *
+   * @return the current time in milliseconds
+   */
+  public double currentTimeMillis() {
+    return Duration.currentTimeMillis();
+  }
+
+  /**
+   * Wraps <code>cmd</code> so that each call runs it as an entry point, see {@link
+   * #runEntry(ScheduledCommand)}. The wrapper is meant to be registered once as a callback.
+   *
+   * @param cmd the command to wrap
+   * @return a command that runs <code>cmd</code> with {@link #runEntry(ScheduledCommand)}
+   */
+  public ScheduledCommand entry(ScheduledCommand cmd) {
+    return () -> runEntry(cmd);
+  }
+
+  /**
+   * Runs <code>cmd</code> as an entry point from the browser's event loop, such as an event
+   * listener or the callback of a request: the entry commands run before it, and the finally
+   * commands it schedules run right after it, synchronously, instead of in a microtask each.
+   *
+   * <p>Nested calls, and calls from commands run by the scheduler, which are entry points of their
+   * own, only run <code>cmd</code>. The default implementation only runs <code>cmd</code>.
+   *
+   * @param cmd the command to run
+   */
+  public void runEntry(ScheduledCommand cmd) {
+    cmd.execute();
   }
 
   /**
@@ -56,18 +503,79 @@ public abstract class Scheduler {
    */
   public abstract void scheduleDeferred(ScheduledCommand cmd);
 
+  /**
+   * Schedules a deferred command that replaces the one queued with the same key, if any, so that
+   * the work is only done once however often it is requested before the command runs. The command
+   * keeps the place in the queue of the first one scheduled with the key, and is invoked once. Once
+   * it has started, scheduling with the key queues a new command.
+   *
+   * <p>Commands only replace commands that were scheduled with this method, and the key is compared
+   * with {@link Object#equals(Object)}.
+   *
+   * @param key identifies the work done by the command, for instance the widget to lay out
+   * @param cmd the command to execute
+   * @return <code>true</code> if the command replaced a queued one, saving an execution
+   */
+  public boolean scheduleDeferred(Object key, ScheduledCommand cmd) {
+    KeyedCommand keyed = coalesce(keyedDeferredCommands, key, cmd);
+    if (keyed == null) {
+      return true;
+    }
+    scheduleDeferred(keyed);
+    return false;
+  }
+
+  /**
+   * A deferred command is executed after the browser event loop returns. Commands of a higher
+   * <code>priority</code> are executed before commands of a lower priority, regardless of the order
+   * in which they were scheduled.
+   *
+   * <p>Implementations that don't support priorities treat all commands as {@link Priority#NORMAL}.
+   *
+   * @param cmd the command to execute
+   * @param priority the priority of the command
+   */
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority) {
+    scheduleDeferred(cmd);
+  }
+
+  /**
+   * A deferred command is executed after the browser event loop returns, unless <code>token</code>
+   * is canceled first.
+   *
+   * @param cmd the command to execute
+   * @param token cancels the command
+   */
+  public void scheduleDeferred(ScheduledCommand cmd, CancellationToken token) {
+    scheduleDeferred(cmd, Priority.NORMAL, token);
+  }
+
+  /**
+   * A deferred command is executed after the browser event loop returns, unless <code>token</code>
+   * is canceled first, see {@link #scheduleDeferred(ScheduledCommand, Priority)}.
+   *
+   * @param cmd the command to execute
+   * @param priority the priority of the command
+   * @param token cancels the command
+   */
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority, CancellationToken token) {
+    scheduleDeferred(cancelable(cmd, token), priority);
+  }
+
   /**
    * An "entry" command will be executed before GWT-generated code is invoked by the browser's event
    * loop. The {@link RepeatingCommand} will be called once per entry from the event loop until
    * <code>false</code> is returned. This type of command is appropriate for instrumentation or code
    * that needs to know when "something happens."
    *
+   * <p>Entries are the calls to {@link #runEntry(ScheduledCommand)}, and the flushes and timers of
+   * the scheduler.
+   *
    * <p>If an entry command schedules another entry command, the second command will be executed
    * before control flow continues to the GWT-generated code.
    *
    * @param cmd the command to execute
    */
-  @Deprecated
   public abstract void scheduleEntry(RepeatingCommand cmd);
 
   /**
@@ -78,8 +586,8 @@ public abstract class Scheduler {
    * before control flow continues to the GWT-generated code.
    *
    * @param cmd the command to execute
+   * @see #scheduleEntry(RepeatingCommand)
    */
-  @Deprecated
   public abstract void scheduleEntry(ScheduledCommand cmd);
 
   /**
@@ -95,6 +603,17 @@ public abstract class Scheduler {
    */
   public abstract void scheduleFinally(RepeatingCommand cmd);
 
+  /**
+   * Schedules a "finally" command, see {@link #scheduleFinally(RepeatingCommand)}, that is no
+   * longer invoked once <code>token</code> is canceled.
+   *
+   * @param cmd the command to execute
+   * @param token cancels the command
+   */
+  public void scheduleFinally(RepeatingCommand cmd, CancellationToken token) {
+    scheduleFinally(cancelable(cmd, token));
+  }
+
   /**
    * A "finally" command will be executed before GWT-generated code returns control to the browser's
    * event loop. This type of command is used to aggregate small amounts of work before performing a
@@ -119,6 +638,34 @@ public abstract class Scheduler {
    */
   public abstract void scheduleFinally(ScheduledCommand cmd);
 
+  /**
+   * Schedules a finally command that replaces the one queued with the same key, if any, see {@link
+   * #scheduleDeferred(Object, ScheduledCommand)}.
+   *
+   * @param key identifies the work done by the command, for instance the widget to lay out
+   * @param cmd the command to execute
+   * @return <code>true</code> if the command replaced a queued one, saving an execution
+   */
+  public boolean scheduleFinally(Object key, ScheduledCommand cmd) {
+    KeyedCommand keyed = coalesce(keyedFinallyCommands, key, cmd);
+    if (keyed == null) {
+      return true;
+    }
+    scheduleFinally(keyed);
+    return false;
+  }
+
+  /**
+   * Schedules a "finally" command, see {@link #scheduleFinally(ScheduledCommand)}, that is not
+   * executed if <code>token</code> is canceled first.
+   *
+   * @param cmd the command to execute
+   * @param token cancels the command
+   */
+  public void scheduleFinally(ScheduledCommand cmd, CancellationToken token) {
+    scheduleFinally(cancelable(cmd, token));
+  }
+
   /**
    * Schedules a repeating command that is scheduled with a constant delay. That is, the next
    * invocation of the command will be scheduled for <code>delayMs</code> milliseconds after the
@@ -132,6 +679,18 @@ public abstract class Scheduler {
    */
   public abstract void scheduleFixedDelay(RepeatingCommand cmd, int delayMs);
 
+  /**
+   * Schedules a repeating command with a constant delay, see {@link #scheduleFixedDelay(
+   * RepeatingCommand, int)}, that is no longer invoked once <code>token</code> is canceled.
+   *
+   * @param cmd the command to execute
+   * @param delayMs the amount of time to wait after one invocation ends before the next invocation
+   * @param token cancels the command
+   */
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    scheduleFixedDelay(cancelable(cmd, token), delayMs);
+  }
+
   /**
    * Schedules a repeating command that is scheduled with a constant periodicity. That is, the
    * command will be invoked every <code>delayMs</code> milliseconds, regardless of how long the
@@ -142,6 +701,50 @@ public abstract class Scheduler {
    */
   public abstract void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs);
 
+  /**
+   * Schedules a repeating command with a constant periodicity, see {@link #scheduleFixedPeriod(
+   * RepeatingCommand, int)}, that is no longer invoked once <code>token</code> is canceled.
+   *
+   * @param cmd the command to execute
+   * @param delayMs the period with which the command is executed
+   * @param token cancels the command
+   */
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    scheduleFixedPeriod(cancelable(cmd, token), delayMs);
+  }
+
+  /**
+   * Schedules a repeating command that is only invoked while the browser is idle, so that it never
+   * competes with input handling or rendering. This type of command is appropriate for cache
+   * warming or prefetching. The command should return before the time left in the passed {@link
+   * IdleDeadline} is used up, and will be invoked again in a later idle period until <code>false
+   * </code> is returned.
+   *
+   * <p>Implementations that cannot detect idle periods run the command as an incremental command
+   * instead, with a budget of 16ms per invocation.
+   *
+   * @param cmd the command to execute
+   */
+  public void scheduleIdle(IdleCommand cmd) {
+    scheduleIncremental(
+        () -> {
+          // On the scheduler's clock, so that the deadline is virtual in tests
+          double deadline = currentTimeMillis() + IDLE_TIME_SLICE;
+          return cmd.execute(() -> Math.max(0, deadline - currentTimeMillis()));
+        });
+  }
+
+  /**
+   * Schedules a command that is only invoked while the browser is idle, see {@link
+   * #scheduleIdle(IdleCommand)}, and that is no longer invoked once <code>token</code> is canceled.
+   *
+   * @param cmd the command to execute
+   * @param token cancels the command
+   */
+  public void scheduleIdle(IdleCommand cmd, CancellationToken token) {
+    scheduleIdle(deadline -> !token.isCanceled() && cmd.execute(deadline));
+  }
+
   /**
    * Schedules a repeating command that performs incremental work. This type of command is
    * encouraged for long-running processes that perform computation or that manipulate the DOM. The
@@ -151,4 +754,118 @@ public abstract class Scheduler {
    * @param cmd the command to execute
    */
   public abstract void scheduleIncremental(RepeatingCommand cmd);
+
+  /**
+   * Schedules a repeating command that performs incremental work, see {@link
+   * #scheduleIncremental(RepeatingCommand)}. The first invocation of the command is ordered like a
+   * deferred command of the same <code>priority</code>.
+   *
+   * <p>Implementations that don't support priorities treat all commands as {@link Priority#NORMAL}.
+   *
+   * @param cmd the command to execute
+   * @param priority the priority of the command
+   */
+  public void scheduleIncremental(RepeatingCommand cmd, Priority priority) {
+    scheduleIncremental(cmd);
+  }
+
+  /**
+   * Schedules a repeating command that performs incremental work, see {@link
+   * #scheduleIncremental(RepeatingCommand)}, with a weight. Each incremental command gets a share
+   * of the time incremental commands may run that is proportional to its weight, so that a command
+   * that does a lot of work per invocation doesn't starve the others; {@link
+   * #scheduleIncremental(RepeatingCommand)} uses a weight of 1.
+   *
+   * <p>Implementations that don't share time between incremental commands ignore the weight.
+   *
+   * @param cmd the command to execute
+   * @param weight the weight of the command, at least 1
+   */
+  public void scheduleIncremental(RepeatingCommand cmd, int weight) {
+    scheduleIncremental(cmd);
+  }
+
+  /**
+   * Schedules a repeating command that performs incremental work, see {@link
+   * #scheduleIncremental(RepeatingCommand)}, that is no longer invoked once <code>token</code> is
+   * canceled.
+   *
+   * @param cmd the command to execute
+   * @param token cancels the command
+   */
+  public void scheduleIncremental(RepeatingCommand cmd, CancellationToken token) {
+    scheduleIncremental(cmd, Priority.NORMAL, token);
+  }
+
+  /**
+   * Schedules a repeating command that performs incremental work, see {@link
+   * #scheduleIncremental(RepeatingCommand, Priority)}, that is no longer invoked once <code>token
+   * </code> is canceled.
+   *
+   * @param cmd the command to execute
+   * @param priority the priority of the command
+   * @param token cancels the command
+   */
+  public void scheduleIncremental(
+      RepeatingCommand cmd, Priority priority, CancellationToken token) {
+    scheduleIncremental(cancelable(cmd, token), priority);
+  }
+
+  /**
+   * Replaces the command of the queued keyed command with <code>cmd</code>, or creates a new keyed
+   * command if there is none.
+   *
+   * @return the keyed command to queue, or <code>null</code> if the command was replaced
+   */
+  private static KeyedCommand coalesce(
+      Map<Object, KeyedCommand> pending, Object key, ScheduledCommand cmd) {
+    // Implementations that can be called from several threads need the lock
+    synchronized (pending) {
+      KeyedCommand keyed = pending.get(key);
+      if (keyed != null) {
+        keyed.cmd = cmd;
+        return null;
+      }
+      keyed = new KeyedCommand(pending, key, cmd);
+      pending.put(key, keyed);
+      return keyed;
+    }
+  }
+
+  /**
+   * Tells that a command was dropped from a queue without being executed, for implementations that
+   * bound their queues. A keyed command releases its key, so that the next command scheduled with
+   * it is queued rather than merged with the dropped one.
+   *
+   * @param cmd the command that was passed to one of the scheduling methods
+   */
+  protected static void onDropped(Object cmd) {
+    if (cmd instanceof KeyedCommand) {
+      ((KeyedCommand) cmd).release();
+    }
+  }
+
+  /**
+   * Tells whether a command was scheduled with a key, for implementations that bound their queues.
+   *
+   * @param cmd the command that was passed to one of the scheduling methods
+   * @return <code>true</code> if later commands scheduled with the same key are merged into it
+   */
+  protected static boolean isKeyed(Object cmd) {
+    return cmd instanceof KeyedCommand;
+  }
+
+  /* Fallbacks for implementations that don't remove canceled commands themselves. */
+
+  private static ScheduledCommand cancelable(ScheduledCommand cmd, CancellationToken token) {
+    return () -> {
+      if (!token.isCanceled()) {
+        cmd.execute();
+      }
+    };
+  }
+
+  private static RepeatingCommand cancelable(RepeatingCommand cmd, CancellationToken token) {
+    return () -> !token.isCanceled() && cmd.execute();
+  }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.gwtproject.core.shared.GwtIncompatible;
+
+/**
+ * The eventual result of a command run by the {@link Scheduler}, see {@link
+ * Scheduler#computeDeferred(Scheduler.ComputedCommand)}.
+ *
+ * <p>Unlike a <code>Promise</code>, a Thenable calls its callbacks synchronously as soon as it
+ * completes, in the same flush as the command that produced the result, instead of in a later
+ * microtask. A chain of {@link #then(Function)} calls therefore runs in one go, without a round
+ * trip through the event loop per step. Callbacks added once the Thenable is done are called
+ * immediately.
+ *
+ * <p>A Thenable is rejected with the exception thrown by its command or callback, which is passed
+ * on along the chain until {@link #recover(Function)} or {@link #whenDone(Callback)} handles it.
+ * Exceptions that are never handled are lost, like those of a <code>Promise</code> without a
+ * rejection handler.
+ *
+ * @param <T> the type of the result
+ */
+public final class Thenable<T> {
+
+  /** Computes a value from the result of a Thenable. */
+  public interface Function<T, R> {
+    /**
+     * @param value the result
+     * @return the computed value
+     */
+    R apply(T value);
+  }
+
+  /** Reports the exceptions thrown by callbacks to the browser. */
+  private static class GwtImpl {
+    void reportUncaughtException(Throwable e) {
+      GWT.reportUncaughtException(e);
+    }
+  }
+
+  /** Reports the exceptions thrown by callbacks to the current thread on the JVM. */
+  private static class JreImpl extends GwtImpl {
+    @GwtIncompatible
+    @Override
+    void reportUncaughtException(Throwable e) {
+      Thread thread = Thread.currentThread();
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+  }
+
+  private static final GwtImpl IMPL = new JreImpl();
+
+  private boolean done;
+  private T value;
+  private Throwable error;
+  private List<Callback<? super T, Throwable>> callbacks;
+
+  Thenable() {}
+
+  /**
+   * @param value the result
+   * @return a Thenable that is already fulfilled with <code>value</code>
+   */
+  public static <T> Thenable<T> resolved(T value) {
+    Thenable<T> thenable = new Thenable<>();
+    thenable.resolve(value);
+    return thenable;
+  }
+
+  /**
+   * @param error the reason of the failure
+   * @return a Thenable that is already rejected with <code>error</code>
+   */
+  public static <T> Thenable<T> rejected(Throwable error) {
+    Thenable<T> thenable = new Thenable<>();
+    thenable.reject(error);
+    return thenable;
+  }
+
+  /**
+   * Combines several Thenables, like <code>Promise.all()</code>.
+   *
+   * @param thenables the Thenables to combine
+   * @return a Thenable fulfilled with the results of all <code>thenables</code>, in order, or
+   *     rejected as soon as one of them is
+   */
+  public static <T> Thenable<List<T>> all(List<? extends Thenable<? extends T>> thenables) {
+    Thenable<List<T>> result = new Thenable<>();
+    List<T> values = new ArrayList<>(thenables.size());
+    for (int i = 0; i < thenables.size(); i++) {
+      values.add(null);
+    }
+    int[] remaining = {thenables.size()};
+    if (remaining[0] == 0) {
+      result.resolve(values);
+    }
+    for (int i = 0; i < thenables.size(); i++) {
+      int index = i;
+      thenables
+          .get(i)
+          .whenDone(
+              new Callback<T, Throwable>() {
+                @Override
+                public void onFailure(Throwable reason) {
+                  result.reject(reason);
+                }
+
+                @Override
+                public void onSuccess(T value) {
+                  values.set(index, value);
+                  if (--remaining[0] == 0) {
+                    result.resolve(values);
+                  }
+                }
+              });
+    }
+    return result;
+  }
+
+  /** @return whether the Thenable was fulfilled or rejected */
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  /** @return whether the Thenable was rejected */
+  public synchronized boolean isRejected() {
+    return done && error != null;
+  }
+
+  /**
+   * Computes a value from the result once the Thenable is fulfilled.
+   *
+   * @param onFulfilled computes the value
+   * @return a Thenable fulfilled with the computed value, or rejected with the exception of this
+   *     Thenable or of <code>onFulfilled</code>
+   */
+  public <R> Thenable<R> then(Function<? super T, ? extends R> onFulfilled) {
+    Thenable<R> result = new Thenable<>();
+    whenDone(
+        new Callback<T, Throwable>() {
+          @Override
+          public void onFailure(Throwable reason) {
+            result.reject(reason);
+          }
+
+          @Override
+          public void onSuccess(T value) {
+            R next;
+            try {
+              next = onFulfilled.apply(value);
+            } catch (Throwable e) {
+              result.reject(e);
+              return;
+            }
+            result.resolve(next);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Continues with another asynchronous computation once the Thenable is fulfilled, such as another
+   * command scheduled with {@link Scheduler#computeDeferred(Scheduler.ComputedCommand)}.
+   *
+   * @param onFulfilled starts the computation
+   * @return a Thenable completed like the one returned by <code>onFulfilled</code>
+   */
+  public <R> Thenable<R> thenCompose(Function<? super T, Thenable<R>> onFulfilled) {
+    Thenable<R> result = new Thenable<>();
+    whenDone(
+        new Callback<T, Throwable>() {
+          @Override
+          public void onFailure(Throwable reason) {
+            result.reject(reason);
+          }
+
+          @Override
+          public void onSuccess(T value) {
+            Thenable<R> next;
+            try {
+              next = onFulfilled.apply(value);
+            } catch (Throwable e) {
+              result.reject(e);
+              return;
+            }
+            next.whenDone(
+                new Callback<R, Throwable>() {
+                  @Override
+                  public void onFailure(Throwable reason) {
+                    result.reject(reason);
+                  }
+
+                  @Override
+                  public void onSuccess(R value) {
+                    result.resolve(value);
+                  }
+                });
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Computes a result from the exception once the Thenable is rejected.
+   *
+   * @param onRejected computes the result
+   * @return a Thenable fulfilled with the result of this Thenable or of <code>onRejected</code>, or
+   *     rejected with the exception of <code>onRejected</code>
+   */
+  public Thenable<T> recover(Function<Throwable, ? extends T> onRejected) {
+    Thenable<T> result = new Thenable<>();
+    whenDone(
+        new Callback<T, Throwable>() {
+          @Override
+          public void onFailure(Throwable reason) {
+            T next;
+            try {
+              next = onRejected.apply(reason);
+            } catch (Throwable e) {
+              result.reject(e);
+              return;
+            }
+            result.resolve(next);
+          }
+
+          @Override
+          public void onSuccess(T value) {
+            result.resolve(value);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Calls <code>callback</code> once the Thenable is done. Exceptions thrown by the callback are
+   * reported to the {@link GWT.UncaughtExceptionHandler}, and don't keep the other callbacks from
+   * being called.
+   *
+   * @param callback called with the result or the exception
+   */
+  public void whenDone(Callback<? super T, Throwable> callback) {
+    synchronized (this) {
+      if (!done) {
+        if (callbacks == null) {
+          callbacks = new ArrayList<>();
+        }
+        callbacks.add(callback);
+        return;
+      }
+    }
+    invoke(callback);
+  }
+
+  /** Runs <code>cmd</code>, and completes with its result or exception. */
+  void complete(Scheduler.ComputedCommand<? extends T> cmd) {
+    T result;
+    try {
+      result = cmd.execute();
+    } catch (Throwable e) {
+      reject(e);
+      return;
+    }
+    resolve(result);
+  }
+
+  void resolve(T value) {
+    complete(value, null);
+  }
+
+  void reject(Throwable error) {
+    assert error != null : "error";
+    complete(null, error);
+  }
+
+  private void complete(T value, Throwable error) {
+    List<Callback<? super T, Throwable>> pending;
+    synchronized (this) {
+      if (done) {
+        return;
+      }
+      done = true;
+      this.value = value;
+      this.error = error;
+      pending = callbacks;
+      callbacks = null;
+    }
+    if (pending != null) {
+      for (Callback<? super T, Throwable> callback : pending) {
+        invoke(callback);
+      }
+    }
+  }
+
+  private void invoke(Callback<? super T, Throwable> callback) {
+    try {
+      if (error != null) {
+        callback.onFailure(error);
+      } else {
+        callback.onSuccess(value);
+      }
+    } catch (Throwable e) {
+      IMPL.reportUncaughtException(e);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+
+/**
+ * Runs a command at most once per interval however often {@link #call()} is called, for instance to
+ * update a view while the user scrolls.
+ *
+ * <p>By default the command runs on the leading edge, right on a call if it didn't run for an
+ * interval, and on the trailing edge, at the end of the interval if it was called in the meantime.
+ * Either edge can be turned off.
+ *
+ * <p>As with {@link Debouncer}, calls don't schedule a timer each: a single timer is pending per
+ * Throttler while the command is called, on the clock of {@link Scheduler#currentTimeMillis()}.
+ */
+public class Throttler {
+
+  private final Scheduler scheduler;
+  private final ScheduledCommand cmd;
+  private final int intervalMillis;
+  private final TimerHandle timer;
+
+  private boolean leading = true;
+  private boolean trailing = true;
+
+  /** Whether a call is waiting for the command to run. */
+  private boolean pending;
+
+  private double lastRunMillis = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Creates a Throttler that uses {@link Scheduler#get()}.
+   *
+   * @param cmd the command to run
+   * @param intervalMillis the shortest time between two runs of the command
+   */
+  public Throttler(ScheduledCommand cmd, int intervalMillis) {
+    this(Scheduler.get(), cmd, intervalMillis);
+  }
+
+  /**
+   * @param scheduler schedules the timer
+   * @param cmd the command to run
+   * @param intervalMillis the shortest time between two runs of the command
+   */
+  public Throttler(Scheduler scheduler, ScheduledCommand cmd, int intervalMillis) {
+    assert intervalMillis > 0 : "intervalMillis must be positive";
+    this.scheduler = scheduler;
+    this.cmd = cmd;
+    this.intervalMillis = intervalMillis;
+    timer = new TimerHandle(scheduler, this::onTimer, this::cancel);
+  }
+
+  /**
+   * @param leading whether a call runs the command right away if it didn't run for an interval,
+   *     default true
+   */
+  public void setLeading(boolean leading) {
+    this.leading = leading;
+  }
+
+  /**
+   * @param trailing whether calls made while the command can't run run it at the end of the
+   *     interval, default true
+   */
+  public void setTrailing(boolean trailing) {
+    this.trailing = trailing;
+  }
+
+  /**
+   * Ties the Throttler to <code>token</code>: once the token is canceled, the pending run of the
+   * command is canceled, and calls are ignored.
+   *
+   * @param token cancels the Throttler
+   */
+  public void setCancellationToken(CancellationToken token) {
+    timer.setCancellationToken(token);
+  }
+
+  /** Requests a run of the command, see {@link Throttler}. */
+  public void call() {
+    CancellationToken cancellationToken = timer.getCancellationToken();
+    if (cancellationToken != null && cancellationToken.isCanceled()) {
+      return;
+    }
+    if (timer.isScheduled()) {
+      pending = true;
+      return;
+    }
+    double now = scheduler.currentTimeMillis();
+    double sinceLastRun = now - lastRunMillis;
+    if (leading && sinceLastRun >= intervalMillis) {
+      timer.schedule(intervalMillis);
+      run(now);
+    } else {
+      pending = true;
+      timer.schedule(leading ? intervalMillis - sinceLastRun : intervalMillis);
+    }
+  }
+
+  /** @return whether a call is waiting for the command to run */
+  public boolean isPending() {
+    return pending;
+  }
+
+  /** Cancels the pending run of the command, if any. */
+  public void cancel() {
+    pending = false;
+    timer.cancel();
+  }
+
+  /** Runs the command right away if a call is waiting for it, and starts a new interval. */
+  public void flush() {
+    boolean wasPending = pending;
+    cancel();
+    if (wasPending) {
+      run(scheduler.currentTimeMillis());
+    }
+  }
+
+  private void onTimer() {
+    if (pending && trailing) {
+      // Calls made during the next interval wait for its end
+      timer.schedule(intervalMillis);
+      run(scheduler.currentTimeMillis());
+    }
+    pending = false;
+  }
+
+  private void run(double now) {
+    pending = false;
+    lastRunMillis = now;
+    cmd.execute();
+  }
+}
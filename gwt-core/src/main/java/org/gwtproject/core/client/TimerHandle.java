@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+
+/**
+ * The single timer of a {@link Debouncer} or a {@link Throttler}, which is scheduled again for the
+ * time left rather than replaced when calls keep coming.
+ *
+ * <p>The timer command and its CancellationToken are reused each time the timer is scheduled, until
+ * the timer is canceled. The owner is tied to the token passed to {@link
+ * #setCancellationToken(CancellationToken)} only while the timer is scheduled, so that a long-lived
+ * token doesn't collect a registration per burst.
+ */
+final class TimerHandle {
+
+  private final Scheduler scheduler;
+  private final RepeatingCommand timer;
+  private final ScheduledCommand onCancel;
+
+  /** Cancels the scheduled timer; a canceled token is replaced on the next schedule. */
+  private CancellationToken timerToken;
+
+  private boolean scheduled;
+  private CancellationToken cancellationToken;
+  private CancellationToken.Registration cancellationRegistration;
+
+  /**
+   * @param scheduler schedules the timer
+   * @param onTimer runs when the timer fires
+   * @param onCancel cancels the owner when the token of the owner is canceled
+   */
+  TimerHandle(Scheduler scheduler, ScheduledCommand onTimer, ScheduledCommand onCancel) {
+    this.scheduler = scheduler;
+    this.onCancel = onCancel;
+    timer =
+        () -> {
+          scheduled = false;
+          onTimer.execute();
+          if (!scheduled) {
+            releaseCancellationToken();
+          }
+          return false;
+        };
+  }
+
+  /** @return the token of the owner, if any */
+  CancellationToken getCancellationToken() {
+    return cancellationToken;
+  }
+
+  /** Replaces the token of the owner, which cancels the owner while the timer is scheduled. */
+  void setCancellationToken(CancellationToken token) {
+    releaseCancellationToken();
+    cancellationToken = token;
+    if (scheduled) {
+      cancellationRegistration = token.onCancel(onCancel);
+    }
+  }
+
+  boolean isScheduled() {
+    return scheduled;
+  }
+
+  /** Schedules the timer, which must not be scheduled already. */
+  void schedule(double delayMillis) {
+    assert !scheduled : "The timer is already scheduled";
+    if (timerToken == null) {
+      timerToken = new CancellationToken();
+    }
+    scheduled = true;
+    scheduler.scheduleFixedDelay(timer, (int) Math.ceil(delayMillis), timerToken);
+    if (cancellationToken != null && cancellationRegistration == null) {
+      cancellationRegistration = cancellationToken.onCancel(onCancel);
+    }
+  }
+
+  /** Cancels the timer, if it is scheduled. */
+  void cancel() {
+    if (scheduled) {
+      scheduled = false;
+      timerToken.cancel();
+      timerToken = null;
+    }
+    releaseCancellationToken();
+  }
+
+  private void releaseCancellationToken() {
+    if (cancellationRegistration != null) {
+      cancellationRegistration.remove();
+      cancellationRegistration = null;
+    }
+  }
+}
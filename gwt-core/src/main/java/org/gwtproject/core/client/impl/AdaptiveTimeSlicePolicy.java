@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+/**
+ * A {@link TimeSlicePolicy} that fits incremental commands in the frames of the display. It leaves
+ * a share of each frame to the browser for style, layout and paint, subtracts the work already done
+ * in the frame, and learns by how much incremental commands usually overrun their time slice so
+ * that it can stop them early enough.
+ *
+ * <p>At 60 frames per second this leaves incremental commands about 10 milliseconds, less than the
+ * fixed time slice {@link SchedulerImpl} uses by default, so it is only used once installed with
+ * {@link SchedulerImpl#setTimeSlicePolicy}.
+ */
+public class AdaptiveTimeSlicePolicy implements TimeSlicePolicy {
+
+  /** The share of a frame that is left to the browser. */
+  private static final double RENDER_SHARE = 0.4;
+
+  /** Lower bound for the time slice, so that incremental commands always make progress. */
+  private static final double MIN_TIME_SLICE = 1;
+
+  /** Weight of the latest time slice in the running average of overruns. */
+  private static final double OVERRUN_WEIGHT = 0.25;
+
+  private double averageOverrun = 0;
+
+  @Override
+  public double getTimeSlice(double frameInterval, double elapsedMillis) {
+    double available = frameInterval * (1 - RENDER_SHARE) - elapsedMillis - averageOverrun;
+    return Math.max(MIN_TIME_SLICE, available);
+  }
+
+  @Override
+  public void onTimeSliceEnd(double timeSlice, double usedMillis) {
+    double overrun = Math.max(0, usedMillis - timeSlice);
+    averageOverrun += (overrun - averageOverrun) * OVERRUN_WEIGHT;
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+/**
+ * Tells the producers of deferred and incremental commands when to pause, so that a flood of
+ * commands, for instance from a WebSocket, doesn't grow the queues of a {@link SchedulerImpl}
+ * without limit. See {@link SchedulerImpl#setQueueCapacity} and {@link
+ * SchedulerImpl#setBackpressureListener}.
+ */
+public interface BackpressureListener {
+
+  /** Called when a command is scheduled while its queue is full, once until the queues drain. */
+  void onQueueFull();
+
+  /** Called at the end of a flush that left every queue at most half full, after a full queue. */
+  void onQueueDrained();
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import elemental2.dom.DomGlobal;
+import elemental2.dom.FrameRequestCallback;
+import org.gwtproject.core.client.Duration;
+
+/**
+ * Keeps a running average of the time between two frames of the display, which is 16.7ms at 60Hz
+ * but only 8.3ms at 120Hz. Consecutive animation frames can be reported with {@link #record}, or
+ * sampled with {@link #sample} when nothing else requests animation frames.
+ */
+class FrameIntervalMeter {
+
+  /** The frame interval assumed until one has been measured. */
+  private static final double DEFAULT_FRAME_INTERVAL = 1000.0 / 60;
+
+  /** Intervals above this are missed frames rather than the refresh rate of a display. */
+  private static final double MAX_FRAME_INTERVAL = 50;
+
+  /** The minimum time between two calls to {@link #sample} that request animation frames. */
+  private static final double SAMPLE_PERIOD = 1000;
+
+  /** Weight of the latest interval in the running average. */
+  private static final double SAMPLE_WEIGHT = 0.2;
+
+  private final FrameRequestCallback firstFrame = this::onFirstFrame;
+  private final FrameRequestCallback secondFrame = this::onSecondFrame;
+
+  private double frameInterval = DEFAULT_FRAME_INTERVAL;
+  private double firstFrameTimestamp;
+  private double lastSampleMillis = -SAMPLE_PERIOD;
+  private boolean sampling = false;
+
+  /** @return the average time between two frames, in milliseconds */
+  double getFrameInterval() {
+    return frameInterval;
+  }
+
+  /**
+   * Records the time between two consecutive animation frames.
+   *
+   * @param interval difference of the timestamps passed to the two frame callbacks
+   */
+  void record(double interval) {
+    if (interval > 0 && interval <= MAX_FRAME_INTERVAL) {
+      frameInterval += (interval - frameInterval) * SAMPLE_WEIGHT;
+    }
+  }
+
+  /** Measures the interval of the next two animation frames, unless that was done recently. */
+  void sample() {
+    double now = Duration.currentTimeMillis();
+    if (sampling
+        || now - lastSampleMillis < SAMPLE_PERIOD
+        || SchedulerImpl.isDocumentHidden()
+        || !SchedulerImpl.isAnimationFrameSupported()) {
+      return;
+    }
+    sampling = true;
+    lastSampleMillis = now;
+    DomGlobal.requestAnimationFrame(firstFrame);
+  }
+
+  private void onFirstFrame(double timestamp) {
+    firstFrameTimestamp = timestamp;
+    DomGlobal.requestAnimationFrame(secondFrame);
+  }
+
+  private void onSecondFrame(double timestamp) {
+    sampling = false;
+    record(timestamp - firstFrameTimestamp);
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+/**
+ * What the fixed-delay and fixed-period commands of a {@link SchedulerImpl} do while the document
+ * is hidden, for instance in a background tab, see {@link SchedulerImpl#setHiddenTimerPolicy}.
+ * Browsers throttle the timers of hidden documents, but still run them; these policies keep
+ * commands that poll a server or update the DOM from doing work nobody sees.
+ */
+public enum HiddenTimerPolicy {
+  /** The command runs as scheduled, subject only to the throttling of the browser. */
+  RUN,
+
+  /**
+   * The command runs at most once every 10 seconds, or once per its own delay if that is longer.
+   * When the document is visible again, it runs by its normal deadline, right away if that has
+   * passed.
+   */
+  STRETCH,
+
+  /**
+   * The command doesn't run. When the document is visible again, it runs right away if it missed
+   * its deadline, once however many runs it missed, and then resumes its schedule.
+   */
+  PAUSE_CATCH_UP,
+
+  /**
+   * The command doesn't run. When the document is visible again, the runs it missed are skipped: a
+   * fixed-delay command waits for its delay again, a fixed-period command for its next period.
+   */
+  PAUSE_SKIP
+}
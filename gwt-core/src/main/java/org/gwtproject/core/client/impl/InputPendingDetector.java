@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import elemental2.dom.AddEventListenerOptions;
+import elemental2.dom.DomGlobal;
+import jsinterop.annotations.JsPackage;
+import jsinterop.annotations.JsType;
+import jsinterop.base.Js;
+import org.gwtproject.core.client.Duration;
+
+/**
+ * Tells {@link SchedulerImpl} whether it should yield to the browser because the user is
+ * interacting with the page.
+ *
+ * <p>Where <code>navigator.scheduling.isInputPending()</code> is available, it tells whether there
+ * actually is input waiting to be dispatched. Elsewhere input cannot be seen while script runs, so
+ * the detector listens to discrete input events instead, and reports input as pending once a flush
+ * has run for {@link #INTERACTIVE_SLICE_MILLIS} within {@link #RECENT_INPUT_MILLIS} of the last
+ * one: while the user is typing or clicking, the next event is likely to come soon.
+ */
+class InputPendingDetector {
+
+  /** <code>navigator.scheduling</code>, see https://wicg.github.io/is-input-pending/. */
+  @JsType(isNative = true, name = "Object", namespace = JsPackage.GLOBAL)
+  private static class NativeScheduling {
+    public native boolean isInputPending();
+  }
+
+  /** How long after an input event more input is expected. */
+  static final double RECENT_INPUT_MILLIS = 100;
+
+  /** How long a flush may run while more input is expected. */
+  static final double INTERACTIVE_SLICE_MILLIS = 5;
+
+  /** Discrete input events, continuous ones like <code>mousemove</code> don't count. */
+  private static final String[] INPUT_EVENTS = {
+    "keydown", "keyup", "mousedown", "mouseup", "pointerdown", "pointerup", "touchstart", "touchend"
+  };
+
+  private static InputPendingDetector instance;
+
+  /** @return the detector shared by all schedulers, listening to the input of the window */
+  static InputPendingDetector get() {
+    if (instance == null) {
+      instance = new InputPendingDetector(getNativeScheduling());
+      if (instance.nativeScheduling == null) {
+        instance.listen();
+      }
+    }
+    return instance;
+  }
+
+  private static NativeScheduling getNativeScheduling() {
+    Object scheduling = Js.asPropertyMap(DomGlobal.navigator).get("scheduling");
+    if (scheduling != null
+        && "function".equals(Js.typeof(Js.asPropertyMap(scheduling).get("isInputPending")))) {
+      return Js.uncheckedCast(scheduling);
+    }
+    return null;
+  }
+
+  private final NativeScheduling nativeScheduling;
+
+  private double lastInputMillis = Double.NEGATIVE_INFINITY;
+
+  /** there for testing */
+  InputPendingDetector() {
+    this(null);
+  }
+
+  private InputPendingDetector(NativeScheduling nativeScheduling) {
+    this.nativeScheduling = nativeScheduling;
+  }
+
+  /**
+   * @param nowMillis the current time
+   * @param elapsedMillis the time the current flush has been running
+   * @return whether the flush should yield to input
+   */
+  boolean isInputPending(double nowMillis, double elapsedMillis) {
+    if (nativeScheduling != null) {
+      return nativeScheduling.isInputPending();
+    }
+    return elapsedMillis >= INTERACTIVE_SLICE_MILLIS
+        && nowMillis - lastInputMillis < RECENT_INPUT_MILLIS;
+  }
+
+  /** Records an input event dispatched at <code>nowMillis</code>. */
+  void onInput(double nowMillis) {
+    lastInputMillis = nowMillis;
+  }
+
+  private void listen() {
+    AddEventListenerOptions options = AddEventListenerOptions.create();
+    options.setCapture(true);
+    options.setPassive(true);
+    for (String type : INPUT_EVENTS) {
+      DomGlobal.window.addEventListener(
+          type, ignore -> onInput(Duration.currentTimeMillis()), options);
+    }
+  }
+}
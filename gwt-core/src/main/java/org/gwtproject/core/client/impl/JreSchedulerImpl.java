@@ -0,0 +1,647 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.gwtproject.core.client.Scheduler;
+import org.gwtproject.core.shared.GwtIncompatible;
+
+/**
+ * An implementation of the Scheduler API for the JVM, returned by {@link Scheduler#get()} outside
+ * the browser, so that shared code can schedule commands in server-side rendering and plain JUnit
+ * tests.
+ *
+ * <p>Like the browser, the scheduler runs all commands on a single thread, its event loop, in the
+ * same order as {@link SchedulerImpl}: each flush runs the deferred commands that were queued when
+ * it started, user-blocking ones first, then normal and background ones interleaved {@link
+ * #NORMAL_WEIGHT} to one, followed by the incremental commands for a time slice of {@link
+ * #TIME_SLICE_MILLIS}. Finally commands run at the end of the task of the event loop that scheduled
+ * them, or in a task of their own when they are scheduled from another thread, and entry commands
+ * at the start of each task. Commands may be scheduled from any thread.
+ *
+ * <p>The event loop thread comes from a {@link ThreadFactory}; {@link #virtualThreadFactory()}
+ * creates virtual threads where the JVM supports them. {@link #INSTANCE} uses one if the <code>
+ * gwt.scheduler.virtualThreads</code> system property is <code>true</code>, and a daemon platform
+ * thread otherwise.
+ */
+@GwtIncompatible
+public class JreSchedulerImpl extends Scheduler {
+
+  /** The instance returned by {@link Scheduler#get()} on the JVM. */
+  public static final JreSchedulerImpl INSTANCE =
+      new JreSchedulerImpl(
+          Boolean.getBoolean("gwt.scheduler.virtualThreads")
+              ? virtualThreadFactory()
+              : platformThreadFactory());
+
+  /**
+   * The number of normal priority commands run before each background command, while both are
+   * queued, as in {@link SchedulerImpl}.
+   */
+  static final int NORMAL_WEIGHT = 4;
+
+  /** How long incremental commands run per flush. */
+  static final long TIME_SLICE_MILLIS = 16;
+
+  private static final String THREAD_NAME = "gwt-scheduler";
+
+  /**
+   * Creates event loop threads that are daemon platform threads, so that they don't keep the JVM
+   * alive.
+   *
+   * @return the thread factory
+   */
+  public static ThreadFactory platformThreadFactory() {
+    return runnable -> {
+      Thread thread = new Thread(runnable, THREAD_NAME);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Creates event loop threads that are virtual threads, if the JVM supports them (Java 21 and
+   * later), and falls back to {@link #platformThreadFactory()} otherwise.
+   *
+   * @return the thread factory
+   */
+  public static ThreadFactory virtualThreadFactory() {
+    try {
+      // Thread.ofVirtual().name(THREAD_NAME).factory(), without requiring Java 21 to compile
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class).invoke(builder, THREAD_NAME);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return platformThreadFactory();
+    }
+  }
+
+  /**
+   * A fixed-delay or fixed-period command, which cancels its future once it no longer repeats or
+   * its {@link CancellationToken} is canceled. Canceled futures are removed from the executor's
+   * queue right away.
+   */
+  private final class TimerTask implements Runnable {
+    private final RepeatingCommand cmd;
+    private final int delayMs;
+    private final boolean fixedPeriod;
+    private ScheduledFuture<?> future;
+    private CancellationToken.Registration registration;
+    private boolean done;
+
+    TimerTask(RepeatingCommand cmd, int delayMs, boolean fixedPeriod) {
+      this.cmd = cmd;
+      this.delayMs = delayMs;
+      this.fixedPeriod = fixedPeriod;
+    }
+
+    @Override
+    public synchronized void run() {
+      if (done) {
+        return;
+      }
+      if (!runTimer(cmd)) {
+        cancel();
+      } else if (!fixedPeriod && !done && !executor.isShutdown()) {
+        future = executor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /** The task can't run before this returns, since it needs the lock. */
+    synchronized void start(CancellationToken token) {
+      if (fixedPeriod) {
+        // A period of 0 isn't allowed, but runs the command as often as possible in the browser
+        future =
+            executor.scheduleAtFixedRate(
+                this, delayMs, Math.max(1, delayMs), TimeUnit.MILLISECONDS);
+      } else {
+        future = executor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+      }
+      if (token != null) {
+        registration = token.onCancel(this::cancel);
+      }
+    }
+
+    synchronized void cancel() {
+      done = true;
+      future.cancel(false);
+      if (registration != null) {
+        registration.remove();
+      }
+    }
+  }
+
+  /**
+   * A ScheduledCommand that is taken out of its queue as soon as its {@link CancellationToken} is
+   * canceled. Once it ran, it is removed from the token in turn.
+   */
+  private final class CancelableScheduledCommand implements ScheduledCommand {
+    private volatile ScheduledCommand cmd;
+    private final CancellationToken.Registration registration;
+
+    CancelableScheduledCommand(ScheduledCommand cmd, CancellationToken token) {
+      this.cmd = cmd;
+      registration = token.onCancel(this::cancel);
+    }
+
+    @Override
+    public void execute() {
+      registration.remove();
+      ScheduledCommand cmd = this.cmd;
+      if (cmd != null) {
+        cmd.execute();
+      }
+    }
+
+    private void cancel() {
+      cmd = null;
+      remove(this);
+    }
+  }
+
+  /**
+   * A RepeatingCommand that is taken out of its queue as soon as its {@link CancellationToken} is
+   * canceled. Once it is done, it is removed from the token in turn.
+   */
+  private final class CancelableRepeatingCommand implements RepeatingCommand {
+    private volatile RepeatingCommand cmd;
+    private final CancellationToken.Registration registration;
+
+    CancelableRepeatingCommand(RepeatingCommand cmd, CancellationToken token) {
+      this.cmd = cmd;
+      registration = token.onCancel(this::cancel);
+    }
+
+    @Override
+    public boolean execute() {
+      boolean repeat = false;
+      try {
+        RepeatingCommand cmd = this.cmd;
+        repeat = cmd != null && cmd.execute();
+      } finally {
+        if (!repeat) {
+          registration.remove();
+        }
+      }
+      return repeat;
+    }
+
+    private void cancel() {
+      cmd = null;
+      remove(this);
+    }
+  }
+
+  private final ScheduledThreadPoolExecutor executor;
+
+  /* Work queues, guarded by this. Commands run without holding the lock. */
+  private final TaskQueue deferredCommands = new TaskQueue();
+  private final TaskQueue userBlockingCommands = new TaskQueue();
+  private final TaskQueue backgroundCommands = new TaskQueue();
+  private final TaskQueue entryCommands = new TaskQueue();
+  private final TaskQueue finallyCommands = new TaskQueue();
+  private final TaskQueue incrementalCommands = new TaskQueue();
+
+  /** Repeating finally commands, which run again on the next flush. */
+  private final TaskQueue rescheduledFinallyCommands = new TaskQueue();
+
+  /** Repeating entry commands, which run again on the next task. */
+  private final TaskQueue rescheduledEntryCommands = new TaskQueue();
+
+  /** All of the above, searched for canceled commands. */
+  private final TaskQueue[] queues = {
+    deferredCommands,
+    userBlockingCommands,
+    backgroundCommands,
+    entryCommands,
+    finallyCommands,
+    incrementalCommands,
+    rescheduledFinallyCommands,
+    rescheduledEntryCommands
+  };
+
+  /** The thread running the current task of the event loop, if any. */
+  private volatile Thread eventLoopThread;
+
+  /* Guarded by this. */
+  private boolean flushScheduled;
+  private boolean finallyFlushScheduled;
+  private int pendingTasks;
+  private boolean repeatingTasksRunning;
+
+  /**
+   * Creates a scheduler whose event loop runs on a thread created by <code>threadFactory</code>.
+   *
+   * @param threadFactory creates the event loop thread
+   */
+  public JreSchedulerImpl(ThreadFactory threadFactory) {
+    executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Waits until no deferred, incremental or finally commands are queued or running. Fixed-delay and
+   * fixed-period commands are not waited for.
+   *
+   * @param timeout the longest time to wait
+   * @param unit the unit of <code>timeout</code>
+   * @return <code>false</code> if the scheduler was still busy when the timeout expired
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+    assert Thread.currentThread() != eventLoopThread : "awaitIdle() called from the event loop";
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (pendingTasks > 0 || isWorkQueued()) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Stops the event loop. Commands that are queued don't run, and scheduling commands afterwards
+   * throws a {@link RejectedExecutionException}.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** Runs the queued entry commands, see {@link SchedulerImpl#flushEntryCommands()}. */
+  public void flushEntryCommands() {
+    // This loop handles commands scheduling commands
+    while (runFirstTask(entryCommands, rescheduledEntryCommands)) {}
+    synchronized (this) {
+      if (!rescheduledEntryCommands.isEmpty()) {
+        entryCommands.addAll(rescheduledEntryCommands);
+        rescheduledEntryCommands.clear();
+      }
+    }
+  }
+
+  /** Runs the queued finally commands, see {@link SchedulerImpl#flushFinallyCommands()}. */
+  public void flushFinallyCommands() {
+    // This loop handles commands scheduling commands
+    while (runFirstTask(finallyCommands, rescheduledFinallyCommands)) {}
+    synchronized (this) {
+      if (!rescheduledFinallyCommands.isEmpty()) {
+        finallyCommands.addAll(rescheduledFinallyCommands);
+        rescheduledFinallyCommands.clear();
+      }
+    }
+  }
+
+  @Override
+  public double currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Runs <code>cmd</code> right away on the event loop, and as a task of its own from other
+   * threads, so that commands never run outside of the event loop.
+   */
+  @Override
+  public void runEntry(ScheduledCommand cmd) {
+    if (Thread.currentThread() == eventLoopThread) {
+      // Already in a task of the event loop
+      execute(cmd);
+    } else {
+      post(() -> execute(cmd));
+    }
+  }
+
+  @Override
+  public synchronized void scheduleDeferred(ScheduledCommand cmd) {
+    deferredCommands.add(cmd);
+    maybeScheduleFlush();
+  }
+
+  @Override
+  public synchronized void scheduleDeferred(ScheduledCommand cmd, Priority priority) {
+    queueFor(priority).add(cmd);
+    maybeScheduleFlush();
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleDeferred(new CancelableScheduledCommand(cmd, token), priority);
+    }
+  }
+
+  @Override
+  public synchronized void scheduleEntry(RepeatingCommand cmd) {
+    entryCommands.add(cmd);
+  }
+
+  @Override
+  public synchronized void scheduleEntry(ScheduledCommand cmd) {
+    entryCommands.add(cmd);
+  }
+
+  @Override
+  public synchronized void scheduleFinally(RepeatingCommand cmd) {
+    finallyCommands.add(cmd);
+    maybeScheduleFinallyCommands();
+  }
+
+  @Override
+  public void scheduleFinally(RepeatingCommand cmd, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleFinally(new CancelableRepeatingCommand(cmd, token));
+    }
+  }
+
+  @Override
+  public synchronized void scheduleFinally(ScheduledCommand cmd) {
+    finallyCommands.add(cmd);
+    maybeScheduleFinallyCommands();
+  }
+
+  @Override
+  public void scheduleFinally(ScheduledCommand cmd, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleFinally(new CancelableScheduledCommand(cmd, token));
+    }
+  }
+
+  @Override
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs) {
+    new TimerTask(cmd, delayMs, false).start(null);
+  }
+
+  @Override
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    if (!token.isCanceled()) {
+      new TimerTask(cmd, delayMs, false).start(token);
+    }
+  }
+
+  @Override
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs) {
+    new TimerTask(cmd, delayMs, true).start(null);
+  }
+
+  @Override
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    if (!token.isCanceled()) {
+      new TimerTask(cmd, delayMs, true).start(token);
+    }
+  }
+
+  @Override
+  public synchronized void scheduleIncremental(RepeatingCommand cmd) {
+    // Push repeating commands onto the same initial queue for relative order
+    deferredCommands.add(cmd);
+    maybeScheduleFlush();
+  }
+
+  @Override
+  public synchronized void scheduleIncremental(RepeatingCommand cmd, Priority priority) {
+    queueFor(priority).add(cmd);
+    maybeScheduleFlush();
+  }
+
+  @Override
+  public void scheduleIncremental(
+      RepeatingCommand cmd, Priority priority, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleIncremental(new CancelableRepeatingCommand(cmd, token), priority);
+    }
+  }
+
+  /** there for testing */
+  int getQueuedTaskCount() {
+    return executor.getQueue().size();
+  }
+
+  /** there for testing */
+  synchronized boolean isWorkQueued() {
+    return !deferredCommands.isEmpty()
+        || !userBlockingCommands.isEmpty()
+        || !backgroundCommands.isEmpty()
+        || !incrementalCommands.isEmpty();
+  }
+
+  /** Takes a canceled command out of the queue it is in, if it is queued. */
+  private synchronized void remove(Object cmd) {
+    for (TaskQueue queue : queues) {
+      int index = queue.indexOf(cmd);
+      if (index >= 0) {
+        if (queue == incrementalCommands && repeatingTasksRunning) {
+          // The indexes of the running commands must not move; runRepeatingTasks() compacts
+          queue.clearAt(index);
+        } else {
+          queue.removeAt(index);
+        }
+        notifyAll();
+        return;
+      }
+    }
+  }
+
+  private TaskQueue queueFor(Priority priority) {
+    if (priority == Priority.USER_BLOCKING) {
+      return userBlockingCommands;
+    } else if (priority == Priority.BACKGROUND) {
+      return backgroundCommands;
+    }
+    return deferredCommands;
+  }
+
+  /** Guarded by this. */
+  private void maybeScheduleFlush() {
+    if (!flushScheduled) {
+      flushScheduled = true;
+      post(this::flush);
+    }
+  }
+
+  /** Guarded by this. */
+  private void maybeScheduleFinallyCommands() {
+    // On the event loop, finally commands run at the end of the current task
+    if (Thread.currentThread() != eventLoopThread && !finallyFlushScheduled) {
+      finallyFlushScheduled = true;
+      post(() -> {});
+    }
+  }
+
+  /** Submits a task to the event loop, which also runs the finally commands it schedules. */
+  private synchronized void post(Runnable task) {
+    // The task can't finish before this returns, since it needs the lock
+    executor.execute(
+        () -> {
+          try {
+            runTask(task);
+          } finally {
+            synchronized (this) {
+              pendingTasks--;
+              notifyAll();
+            }
+          }
+        });
+    pendingTasks++;
+  }
+
+  /** Runs a task of the event loop, between the entry and the finally commands. */
+  private void runTask(Runnable task) {
+    eventLoopThread = Thread.currentThread();
+    try {
+      flushEntryCommands();
+      task.run();
+    } finally {
+      synchronized (this) {
+        finallyFlushScheduled = false;
+      }
+      flushFinallyCommands();
+      eventLoopThread = null;
+    }
+  }
+
+  /** Runs a timer command as a task of the event loop. */
+  private boolean runTimer(RepeatingCommand cmd) {
+    boolean[] repeat = {false};
+    runTask(() -> repeat[0] = execute(cmd));
+    return repeat[0];
+  }
+
+  /** Runs the deferred commands, and then the incremental commands for a time slice. */
+  private void flush() {
+    synchronized (this) {
+      userBlockingCommands.startBatch();
+      deferredCommands.startBatch();
+      backgroundCommands.startBatch();
+    }
+    runScheduledTasks(userBlockingCommands);
+    for (int i = 1; runFirstTask(deferredCommands, true, incrementalCommands); i++) {
+      if (i % NORMAL_WEIGHT == 0) {
+        runFirstTask(backgroundCommands, true, incrementalCommands);
+      }
+    }
+    runScheduledTasks(backgroundCommands);
+
+    runRepeatingTasks();
+
+    synchronized (this) {
+      flushScheduled = false;
+      if (isWorkQueued()) {
+        maybeScheduleFlush();
+      }
+    }
+  }
+
+  /** Runs the batch of <code>tasks</code>, from which canceled commands are taken out. */
+  private void runScheduledTasks(TaskQueue tasks) {
+    while (runFirstTask(tasks, true, incrementalCommands)) {}
+  }
+
+  private boolean runFirstTask(TaskQueue tasks, TaskQueue rescheduled) {
+    return runFirstTask(tasks, false, rescheduled);
+  }
+
+  /**
+   * Removes the first command of <code>tasks</code> and executes it. If it is a RepeatingCommand
+   * that wants to repeat, it will be added to the <code>rescheduled</code> queue.
+   *
+   * @param batch whether to only run commands of the batch of <code>tasks</code>
+   * @return <code>false</code> if <code>tasks</code>, or its batch, was empty
+   */
+  private boolean runFirstTask(TaskQueue tasks, boolean batch, TaskQueue rescheduled) {
+    RepeatingCommand repeating;
+    ScheduledCommand scheduled;
+    synchronized (this) {
+      if (batch ? tasks.getBatchSize() == 0 : tasks.isEmpty()) {
+        return false;
+      }
+      boolean isRepeating = tasks.isRepeating(0);
+      repeating = isRepeating ? tasks.getRepeating(0) : null;
+      scheduled = isRepeating ? null : tasks.getScheduled(0);
+      tasks.removeFirst();
+    }
+    if (repeating == null) {
+      execute(scheduled);
+    } else if (execute(repeating)) {
+      synchronized (this) {
+        rescheduled.add(repeating);
+      }
+    }
+    return true;
+  }
+
+  /** Runs the incremental commands round-robin for a time slice. */
+  private void runRepeatingTasks() {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIME_SLICE_MILLIS);
+    // Only the event loop changes the queue, and doesn't add to it while commands run
+    int length;
+    synchronized (this) {
+      length = incrementalCommands.size();
+      repeatingTasksRunning = true;
+    }
+    boolean executedSomeTask = length > 0;
+    while (executedSomeTask && System.nanoTime() < deadline) {
+      executedSomeTask = false;
+      for (int i = 0; i < length; i++) {
+        RepeatingCommand cmd;
+        synchronized (this) {
+          cmd = incrementalCommands.getRepeating(i);
+        }
+        if (cmd == null) {
+          continue;
+        }
+        executedSomeTask = true;
+        if (!execute(cmd)) {
+          synchronized (this) {
+            incrementalCommands.clearAt(i);
+          }
+        }
+      }
+    }
+    synchronized (this) {
+      // Removes the commands that are done or were canceled
+      incrementalCommands.compact();
+      repeatingTasksRunning = false;
+    }
+  }
+
+  private static void execute(ScheduledCommand cmd) {
+    try {
+      cmd.execute();
+    } catch (Throwable e) {
+      reportUncaughtException(e);
+    }
+  }
+
+  private static boolean execute(RepeatingCommand cmd) {
+    try {
+      return cmd.execute();
+    } catch (Throwable e) {
+      reportUncaughtException(e);
+      return false;
+    }
+  }
+
+  private static void reportUncaughtException(Throwable e) {
+    Thread thread = Thread.currentThread();
+    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+  }
+}
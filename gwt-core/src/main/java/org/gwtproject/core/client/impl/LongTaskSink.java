@@ -0,0 +1,32 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+/**
+ * Receives the commands that ran longer than the threshold of the long task watchdog of a {@link
+ * SchedulerImpl}, see {@link SchedulerImpl#setLongTaskWatchdog}.
+ */
+public interface LongTaskSink {
+
+  /**
+   * Called right after a command returned, if it ran for at least the threshold.
+   *
+   * @param cmd the ScheduledCommand or RepeatingCommand that ran
+   * @param label the name of the class of <code>cmd</code>, which may be obfuscated in production
+   * @param durationMillis how long the command ran, in milliseconds
+   */
+  void onLongTask(Object cmd, String label, double durationMillis);
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+/**
+ * What a {@link SchedulerImpl} does with a deferred or incremental command scheduled while its
+ * queue is full, see {@link SchedulerImpl#setQueueCapacity}.
+ */
+public enum OverflowPolicy {
+  /** The new command is dropped. */
+  REJECT,
+
+  /**
+   * The oldest command of the queue is dropped to make room for the new one. Incremental commands
+   * are not dropped before their first run: when the oldest command is one, the new command is
+   * dropped instead.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Commands are merged by key, see {@link
+   * org.gwtproject.core.client.Scheduler#scheduleDeferred(Object,
+   * org.gwtproject.core.client.Scheduler.ScheduledCommand)}: while the queue is full, a keyed
+   * command with a new key is queued anyway, up to twice the capacity, as only its latest version
+   * will run. Other commands are merged with the same command if it is among the most recently
+   * queued ones, and dropped otherwise; as lambdas and anonymous commands are never equal to one
+   * another, producers should schedule their commands with a key to benefit from this policy.
+   */
+  COALESCE,
+
+  /**
+   * The new command is queued anyway, and the producer is expected to pause when its {@link
+   * BackpressureListener} is told that the queue is full, until it is told that the queue drained.
+   * This leaves the producer time to react, so the queue may hold up to twice its capacity; beyond
+   * that, new commands are dropped as with {@link #REJECT}.
+   */
+  BLOCK_PRODUCER
+}
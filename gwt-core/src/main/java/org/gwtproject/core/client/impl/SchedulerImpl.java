@@ -17,14 +17,18 @@ package org.gwtproject.core.client.impl;
 
 import elemental2.core.JsArray;
 import elemental2.dom.DomGlobal;
-import elemental2.dom.DomGlobal.SetIntervalCallbackFn;
+import elemental2.dom.DomGlobal.RequestIdleCallbackCallbackFn;
 import elemental2.dom.DomGlobal.SetTimeoutCallbackFn;
+import elemental2.dom.FrameRequestCallback;
+import elemental2.dom.MessageChannel;
+import elemental2.promise.IThenable.ThenOnFulfilledCallbackFn;
 import elemental2.promise.Promise;
+import jsinterop.annotations.JsFunction;
 import jsinterop.annotations.JsOverlay;
 import jsinterop.annotations.JsPackage;
 import jsinterop.annotations.JsType;
-import jsinterop.base.Any;
 import jsinterop.base.Js;
+import jsinterop.base.JsPropertyMap;
 import org.gwtproject.core.client.Duration;
 import org.gwtproject.core.client.GWT;
 import org.gwtproject.core.client.Scheduler;
@@ -32,321 +36,1502 @@ import org.gwtproject.core.client.Scheduler;
 /** This is used by Scheduler to collaborate with Impl in order to have FinallyCommands executed. */
 public class SchedulerImpl extends Scheduler {
   /**
-   * Metadata bag for command objects. It's a JSO so that a lightweight JsArray can be used instead
-   * of a Collections type.
+   * A ScheduledCommand that is released as soon as its {@link CancellationToken} is canceled. Once
+   * it ran, it is removed from the token in turn.
    */
-  @JsType(isNative = true, name = "Array", namespace = JsPackage.GLOBAL)
-  static final class Task extends JsArray<Any> {
+  private static final class CancelableScheduledCommand
+      implements ScheduledCommand, SchedulerTracer.Labelled {
+    private ScheduledCommand cmd;
+    private final CancellationToken.Registration registration;
+
+    CancelableScheduledCommand(ScheduledCommand cmd, CancellationToken token) {
+      this.cmd = cmd;
+      registration = token.onCancel(() -> this.cmd = null);
+    }
+
+    @Override
+    public void execute() {
+      release();
+      if (cmd != null) {
+        cmd.execute();
+      }
+    }
+
+    void release() {
+      registration.remove();
+    }
+
+    @Override
+    public String getLabel() {
+      return SchedulerTracer.getLabel(cmd);
+    }
+  }
+
+  /**
+   * A RepeatingCommand that is released as soon as its {@link CancellationToken} is canceled. Once
+   * it is done, it is removed from the token in turn.
+   */
+  private static final class CancelableRepeatingCommand
+      implements RepeatingCommand, SchedulerTracer.Labelled {
+    private RepeatingCommand cmd;
+    private final CancellationToken.Registration registration;
+
+    CancelableRepeatingCommand(RepeatingCommand cmd, CancellationToken token) {
+      this.cmd = cmd;
+      registration = token.onCancel(() -> this.cmd = null);
+    }
+
+    @Override
+    public boolean execute() {
+      boolean repeat = false;
+      try {
+        repeat = cmd != null && cmd.execute();
+      } finally {
+        if (!repeat) {
+          release();
+        }
+      }
+      return repeat;
+    }
+
+    void release() {
+      registration.remove();
+    }
+
+    @Override
+    public String getLabel() {
+      return SchedulerTracer.getLabel(cmd);
+    }
+  }
+
+  /** The browser's <code>performance</code>, with the options of User Timing Level 3. */
+  @JsType(isNative = true, name = "Object", namespace = JsPackage.GLOBAL)
+  static class NativePerformance {
+    @JsOverlay
+    static NativePerformance get() {
+      return Js.uncheckedCast(DomGlobal.performance);
+    }
+
+    public native double now();
+
+    public native Object measure(String measureName, JsPropertyMap<Object> options);
+  }
+
+  /** The browser's <code>window</code>, with <code>queueMicrotask()</code>. */
+  @JsType(isNative = true, name = "Object", namespace = JsPackage.GLOBAL)
+  private static class NativeWindow {
     @JsOverlay
-    public static Task create(RepeatingCommand cmd) {
-      return ((Task) new JsArray<Any>(Js.asAny(cmd), Js.asAny(true)));
+    static NativeWindow get() {
+      return Js.uncheckedCast(DomGlobal.window);
+    }
+
+    public native void queueMicrotask(MicrotaskCallback callback);
+  }
+
+  @JsFunction
+  private interface MicrotaskCallback {
+    void onInvoke();
+  }
+
+  /**
+   * An idle command that is released as soon as its {@link CancellationToken} is canceled. Once it
+   * is done, it is removed from the token in turn.
+   */
+  private static final class CancelableIdleCommand implements IdleCommand {
+    private IdleCommand cmd;
+    private final CancellationToken.Registration registration;
+
+    CancelableIdleCommand(IdleCommand cmd, CancellationToken token) {
+      this.cmd = cmd;
+      registration = token.onCancel(() -> this.cmd = null);
+    }
+
+    @Override
+    public boolean execute(IdleDeadline deadline) {
+      boolean repeat = false;
+      try {
+        repeat = cmd != null && cmd.execute(deadline);
+      } finally {
+        if (!repeat) {
+          registration.remove();
+        }
+      }
+      return repeat;
+    }
+  }
+
+  /**
+   * Calls {@link org.gwtproject.core.client.impl.SchedulerImpl#flushPostEventPumpCommands()}.
+   *
+   * <p>The trigger of the next flush is armed before the commands run rather than after, so that a
+   * flush interrupted by a slow script warning is followed by the next one like any other. This
+   * takes the place of a watchdog timer polling for interrupted flushes: under steady load the
+   * trigger armed ahead is the one the next flush needs anyway, and when the queues run empty it
+   * costs a single flush that finds nothing to do.
+   */
+  private final class Flusher implements RepeatingCommand {
+    public boolean execute() {
+      if (flushRunning) {
+        /*
+         * Since JS is single-threaded, if we're here, then than means that the
+         * previous flush started, but did not finish.
+         */
+        if (SchedulerMetrics.ENABLED) {
+          metrics.recordRescue();
+        }
+        flushRunning = false;
+      }
+      if (!isWorkQueued()) {
+        return shouldBeRunning = false;
+      }
+      scheduleFlusher();
+
+      enterFromEventLoop();
+      try {
+        flushRunning = true;
+        flushPostEventPumpCommands();
+        /*
+         * No finally here, we want this to be clear only on a normal exit. An
+         * abnormal exit would indicate that an exception isn't being caught
+         * correctly or that a slow script warning canceled the flush.
+         */
+        flushRunning = false;
+      } finally {
+        exit();
+      }
+      return shouldBeRunning = isWorkQueued();
+    }
+  }
+
+  /**
+   * Runs {@link Flusher} from the messages of a MessageChannel. Unlike nested timers, which
+   * browsers clamp to at least 4ms, a message only yields to the event loop, so chains of deferred
+   * commands that each schedule the next one are not slowed down.
+   *
+   * <p>Some environments dispatch messages ahead of all timers, so once the flusher has kept itself
+   * running through messages for {@link #MAX_MESSAGE_CHAIN}, it goes through a timer once.
+   */
+  private final class MessageFlusher implements RepeatingCommand {
+    private final MessageChannel channel = new MessageChannel();
+
+    /* Whether a message or a timer is on its way, so that it is armed only once. */
+    private boolean pending = false;
+    private boolean chaining = false;
+    private double timersRanMillis;
+
+    MessageFlusher() {
+      channel.port1.onmessage = ignore -> flush();
+    }
+
+    /** Timer fallback, runs a single flush. */
+    public boolean execute() {
+      timersRanMillis = Duration.currentTimeMillis();
+      flush();
+      return false;
+    }
+
+    void schedule() {
+      if (pending) {
+        return;
+      }
+      pending = true;
+      double now = Duration.currentTimeMillis();
+      if (!chaining) {
+        chaining = true;
+        timersRanMillis = now;
+      }
+      if (now - timersRanMillis < MAX_MESSAGE_CHAIN) {
+        channel.port2.postMessage(null);
+      } else {
+        scheduleFixedDelayImpl(this, FLUSHER_DELAY);
+      }
+    }
+
+    private void flush() {
+      pending = false;
+      if (!flusher.execute()) {
+        chaining = false;
+      }
+    }
+  }
+
+  /**
+   * Runs {@link Flusher} from requestAnimationFrame, limiting incremental commands to what is left
+   * of the frame. While the document is hidden, animation frames are not delivered, so a timer is
+   * used instead.
+   */
+  private final class FrameFlusher implements RepeatingCommand {
+    private final FrameRequestCallback callback = this::onAnimationFrame;
+    private final SetTimeoutCallbackFn watchCallback = ignore -> onWatch();
+
+    private boolean frameRequested = false;
+    private boolean timerPending = false;
+    private int frameHandle;
+    private double frameRequestedMillis;
+
+    /* Checks once on the first frame request of a chain, see rescueMissedFrame(). */
+    private boolean watchPending = false;
+    private double watchedRequestMillis;
+
+    /* Used to measure the frame interval when a frame requests the next one. */
+    private boolean inFrame = false;
+    private boolean requestedFromFrame = false;
+    private double lastFrameTimestamp;
+
+    /** Timer fallback, runs a single flush. */
+    public boolean execute() {
+      timerPending = false;
+      flush(0);
+      return false;
+    }
+
+    void schedule() {
+      if (frameRequested || timerPending) {
+        return;
+      }
+      if (isDocumentHidden() || !isAnimationFrameSupported()) {
+        timerPending = true;
+        scheduleFixedDelayImpl(this, FLUSHER_DELAY);
+      } else {
+        frameRequested = true;
+        requestedFromFrame = inFrame;
+        frameRequestedMillis = Duration.currentTimeMillis();
+        frameHandle = DomGlobal.requestAnimationFrame(callback);
+        if (!inFrame && !watchPending) {
+          watchPending = true;
+          watchedRequestMillis = frameRequestedMillis;
+          DomGlobal.setTimeout(watchCallback, RESCUE_DELAY);
+        }
+      }
+    }
+
+    /**
+     * Moves a frame request that is still pending after {@link #RESCUE_DELAY} over to a timer. This
+     * happens when the document got hidden after the request, or when the browser doesn't deliver
+     * frames at all. Checked whenever work is queued while a flush is pending, and once by a timer
+     * when a request doesn't come from a frame; frames that request the next one cost no timer.
+     */
+    void rescueMissedFrame() {
+      if (frameRequested && Duration.currentTimeMillis() - frameRequestedMillis >= RESCUE_DELAY) {
+        moveToTimer();
+      }
+    }
+
+    private void onWatch() {
+      watchPending = false;
+      // The timer may fire a little early, the same request is late regardless
+      if (frameRequested && frameRequestedMillis == watchedRequestMillis) {
+        moveToTimer();
+      }
+    }
+
+    private void moveToTimer() {
+      DomGlobal.cancelAnimationFrame(frameHandle);
+      frameRequested = false;
+      timerPending = true;
+      scheduleFixedDelayImpl(this, FLUSHER_DELAY);
+    }
+
+    private void onAnimationFrame(double timestamp) {
+      frameRequested = false;
+      if (requestedFromFrame) {
+        frameIntervalMeter.record(timestamp - lastFrameTimestamp);
+      }
+      lastFrameTimestamp = timestamp;
+
+      inFrame = true;
+      flush(DomGlobal.performance.now() - timestamp);
+      inFrame = false;
+    }
+
+    private void flush(double elapsedInFrame) {
+      frameElapsedMillis = elapsedInFrame;
+      flusher.execute();
+      frameElapsedMillis = 0;
+    }
+  }
+
+  /** Runs {@link #idleCommands} from requestIdleCallback, or from a timer if it is missing. */
+  private final class IdleFlusher implements IdleDeadline {
+    private final RequestIdleCallbackCallbackFn callback = this::onIdle;
+    private final SetTimeoutCallbackFn fallbackCallback = ignore -> onIdle(null);
+
+    private elemental2.dom.IdleDeadline nativeDeadline;
+    private double fallbackDeadline;
+    /* Whether a callback is pending, commands scheduled until then run with it. */
+    private boolean scheduled;
+
+    @Override
+    public double timeRemaining() {
+      if (nativeDeadline != null) {
+        return nativeDeadline.timeRemaining();
+      }
+      return Math.max(0, fallbackDeadline - currentTimeMillis());
+    }
+
+    void schedule() {
+      if (!scheduled) {
+        scheduled = true;
+        requestIdleCallback(callback, fallbackCallback);
+      }
+    }
+
+    private void onIdle(elemental2.dom.IdleDeadline deadline) {
+      scheduled = false;
+      nativeDeadline = deadline;
+      // Without requestIdleCallback, idle commands get no more time than incremental ones
+      fallbackDeadline =
+          currentTimeMillis()
+              + timeSlicePolicy.getTimeSlice(frameIntervalMeter.getFrameInterval(), 0);
+      enterFromEventLoop();
+      try {
+        flushIdleCommands(this);
+      } finally {
+        exit();
+      }
+      nativeDeadline = null;
+      if (idleCommands != null) {
+        schedule();
+      }
+    }
+  }
+
+  /** Use a GWT.create() here to make it simple to hijack the default implementation. */
+  public static final SchedulerImpl INSTANCE = new SchedulerImpl();
+
+  /** The instance returned for {@link FlushMode#ANIMATION_FRAME}. */
+  public static final SchedulerImpl ANIMATION_FRAME_INSTANCE =
+      new SchedulerImpl(FlushMode.ANIMATION_FRAME);
+
+  /**
+   * The delay between flushing the task queues. Due to browser implementations the actual delay may
+   * be longer.
+   */
+  private static final int FLUSHER_DELAY = 1;
+
+  /**
+   * The longest time the flusher reschedules itself through messages without giving timers a chance
+   * to run.
+   */
+  private static final double MAX_MESSAGE_CHAIN = 50;
+
+  /** The time slice of incremental commands, unless another {@link TimeSlicePolicy} is set. */
+  private static final double TIME_SLICE = 16;
+
+  /** The number of most recently queued commands that {@link OverflowPolicy#COALESCE} looks at. */
+  private static final int COALESCE_WINDOW = 16;
+
+  /**
+   * The number of normal priority commands run before each background command, while both are
+   * queued.
+   */
+  private static final int NORMAL_WEIGHT = 4;
+
+  /**
+   * The longest time background commands wait for a flush with time left for them. After that, they
+   * run regardless of the time slice.
+   */
+  private static final double MAX_BACKGROUND_WAIT = 1000;
+
+  /** How long a frame request may stay pending before the flush moves to a timer. */
+  private static final int RESCUE_DELAY = 50;
+
+  /** The resolved Promise the fallback chains the finally flush to, created on first use. */
+  private static Promise<Object> resolvedPromise;
+
+  static boolean isAnimationFrameSupported() {
+    return Js.asPropertyMap(DomGlobal.window).has("requestAnimationFrame");
+  }
+
+  private static boolean isMessageChannelSupported() {
+    return Js.asPropertyMap(DomGlobal.window).has("MessageChannel");
+  }
+
+  static boolean isQueueMicrotaskSupported() {
+    return Js.asPropertyMap(DomGlobal.window).has("queueMicrotask");
+  }
+
+  private static boolean isIdleCallbackSupported() {
+    return Js.asPropertyMap(DomGlobal.window).has("requestIdleCallback");
+  }
+
+  static boolean isDocumentHidden() {
+    return "hidden".equals(DomGlobal.document.visibilityState);
+  }
+
+  /** Extract boilerplate code. */
+  private static <T> JsArray<T> createQueue() {
+    return new JsArray<>();
+  }
+
+  /** Appends the items of <code>from</code> starting at <code>start</code>, lazily. */
+  private static <T> JsArray<T> pushAll(JsArray<T> queue, JsArray<T> from, int start) {
+    if (from != null) {
+      for (int i = start; i < from.length; i++) {
+        queue = push(queue, from.getAt(i));
+      }
+    }
+    return queue;
+  }
+
+  /** Called from scheduledFixedInterval to give $entry a static function. */
+  private static boolean execute(RepeatingCommand cmd) {
+    return cmd.execute();
+  }
+
+  /** Provides lazy-init pattern for the task queues. */
+  private static <T> JsArray<T> push(JsArray<T> queue, T task) {
+    if (queue == null) {
+      queue = createQueue();
+    }
+    queue.push(task);
+    return queue;
+  }
+
+  /**
+   * Execute the commands queued in <code>tasks</code>, removing them from the queue. Any
+   * RepeatingCommands that want to repeat will be added to the <code>rescheduled</code> queue.
+   * Commands scheduled while this method is executing are added after them.
+   */
+  private void runScheduledTasks(TaskQueue tasks, TaskQueue rescheduled) {
+    tasks.startBatch();
+    while (tasks.getBatchSize() > 0) {
+      runFirstTask(tasks, rescheduled);
+    }
+  }
+
+  /**
+   * Removes the first command of <code>tasks</code> and executes it. If it is a RepeatingCommand
+   * that wants to repeat, it will be added to the <code>rescheduled</code> queue.
+   */
+  private void runFirstTask(TaskQueue tasks, TaskQueue rescheduled) {
+    boolean isRepeating = tasks.isRepeating(0);
+    RepeatingCommand repeating = isRepeating ? tasks.getRepeating(0) : null;
+    ScheduledCommand scheduled = isRepeating ? null : tasks.getScheduled(0);
+    Object cmd = isRepeating ? repeating : scheduled;
+    SchedulerTracer tracer = this.tracer;
+    String label = tracer != null ? SchedulerTracer.getLabel(cmd) : null;
+    boolean timed = SchedulerMetrics.ENABLED || longTaskSink != null || label != null;
+    double start = timed ? currentTimeMillis() : 0;
+    if (SchedulerMetrics.ENABLED) {
+      metrics.getQueueDelay().record(start - tasks.getEnqueuedMillis(0));
+    }
+    int weight = tasks.getWeight(0);
+    tasks.removeFirst();
+    try {
+      // Move repeating commands to incremental commands queue
+      if (isRepeating) {
+        if (repeating.execute()) {
+          rescheduled.add(repeating, weight);
+        }
+      } else {
+        scheduled.execute();
+      }
+    } catch (Throwable e) {
+      reportUncaughtException(e);
+    }
+    if (timed) {
+      onExecuted(cmd, label, start, currentTimeMillis() - start);
+    }
+  }
+
+  /** Adds <code>creditPerWeight</code> times their weight to the credit of the commands. */
+  private static void addCredits(TaskQueue tasks, double creditPerWeight) {
+    for (int i = 0; i < tasks.size(); i++) {
+      double share = creditPerWeight * tasks.getWeight(i);
+      tasks.setCredit(i, Math.min(share, tasks.getCredit(i) + share));
+    }
+  }
+
+  /**
+   * Records the execution of a command in the metrics and the trace, and reports it if it was a
+   * long task. All of them share the timestamps taken around the command.
+   *
+   * @param label the label of the command if it is traced, or <code>null</code>
+   */
+  private void onExecuted(Object cmd, String label, double startMillis, double durationMillis) {
+    if (SchedulerMetrics.ENABLED) {
+      metrics.recordExecution(durationMillis);
+    }
+    if (label != null) {
+      tracer.record(SchedulerTracer.COMMAND, label, startMillis, durationMillis);
+    }
+    if (longTaskSink != null && durationMillis >= longTaskThresholdMillis) {
+      if (cmd instanceof CancelableScheduledCommand) {
+        cmd = ((CancelableScheduledCommand) cmd).cmd;
+      } else if (cmd instanceof CancelableRepeatingCommand) {
+        cmd = ((CancelableRepeatingCommand) cmd).cmd;
+      }
+      if (cmd != null) {
+        longTaskSink.onLongTask(cmd, cmd.getClass().getName(), durationMillis);
+      }
+    }
+  }
+
+  private static void scheduleFixedDelayImpl(RepeatingCommand cmd, int delayMs) {
+    DomGlobal.setTimeout(
+        new SetTimeoutCallbackFn() {
+          @Override
+          public void onInvoke(Object... p0) {
+            if (execute(cmd)) {
+              DomGlobal.setTimeout(this, delayMs);
+            }
+          }
+        },
+        delayMs);
+  }
+
+  /**
+   * A RepeatingCommand that calls flushPostEventPumpCommands(). It repeats if there are any
+   * outstanding deferred or incremental commands.
+   */
+  Flusher flusher;
+
+  /** Runs {@link #flusher} from a timer when neither messages nor frames are used. */
+  private SetTimeoutCallbackFn timerFlusher;
+
+  /** Whether {@link #timerFlusher} is pending, so that it is armed only once. */
+  private boolean timerFlushPending = false;
+
+  /** Used instead of scheduling {@link #flusher} on a timer when MessageChannel is available. */
+  private MessageFlusher messageFlusher;
+
+  /**
+   * Used instead of scheduling {@link #flusher} on a timer in {@link FlushMode#ANIMATION_FRAME}.
+   */
+  private FrameFlusher frameFlusher;
+
+  private final FlushMode flushMode;
+
+  /** Runs the fixed-delay and fixed-period commands, created when the first one is scheduled. */
+  private TimerWheel timerWheel;
+
+  /** Runs {@link #idleCommands}, created when the first idle command is scheduled. */
+  private IdleFlusher idleFlusher;
+
+  /** Decides how long incremental commands may run, see {@link #runRepeatingTasks}. */
+  TimeSlicePolicy timeSlicePolicy = TimeSlicePolicy.fixed(TIME_SLICE);
+
+  private final FrameIntervalMeter frameIntervalMeter = new FrameIntervalMeter();
+
+  /** The time spent in the current animation frame before the flush started. */
+  private double frameElapsedMillis = 0;
+
+  /** Only created when {@link SchedulerMetrics#ENABLED}. */
+  private final SchedulerMetrics metrics = SchedulerMetrics.ENABLED ? new SchedulerMetrics() : null;
+
+  /** When the current flush started. */
+  private double flushStartMillis;
+
+  /** How long deferred commands may run per flush. */
+  private double deferredTimeBudget = Double.POSITIVE_INFINITY;
+
+  /** Whether flushes stop early when the user interacts with the page. */
+  private boolean yieldToInput = true;
+
+  /* The bounds of the deferred queues, see setQueueCapacity(). */
+  private int queueCapacity = Integer.MAX_VALUE;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+  private BackpressureListener backpressureListener;
+
+  /** Whether a queue overflowed since the queues last drained. */
+  private boolean queueFull = false;
+
+  private int droppedCount = 0;
+  private int mergedCount = 0;
+  private int coalescedCount = 0;
+
+  /** Receives the long tasks, <code>null</code> unless the watchdog is on. */
+  private LongTaskSink longTaskSink;
+
+  /** Traces flushes and labelled commands, <code>null</code> unless tracing is on. */
+  private SchedulerTracer tracer;
+
+  private double longTaskThresholdMillis;
+
+  /* Statistics about the time slices of incremental commands. */
+  private int timeSliceCount = 0;
+  private int timeSliceOverrunCount = 0;
+  private double timeSliceOverrunMillis = 0;
+
+  /*
+   * Work queues. Timers are kept by the timer wheel, so we don't need to
+   * track them. The queues are reused across flushes, so that scheduling and
+   * flushing commands doesn't allocate once they have reached their working
+   * size.
+   */
+  final TaskQueue deferredCommands = new TaskQueue();
+  final TaskQueue userBlockingCommands = new TaskQueue();
+  final TaskQueue backgroundCommands = new TaskQueue();
+  final TaskQueue entryCommands = new TaskQueue();
+  final TaskQueue finallyCommands = new TaskQueue();
+  final TaskQueue incrementalCommands = new TaskQueue();
+  JsArray<IdleCommand> idleCommands;
+
+  /** Repeating finally commands, which run again on the next flush. */
+  private final TaskQueue rescheduledFinallyCommands = new TaskQueue();
+
+  /*
+   * Flush the finally commands from a microtask. The callbacks are allocated
+   * once, so that arming the flush doesn't allocate with queueMicrotask, and
+   * only the derived Promise with the fallback.
+   */
+  private final MicrotaskCallback finallyFlushCallback = this::onFinallyMicrotask;
+  private final ThenOnFulfilledCallbackFn<Object, Object> finallyFlushThen =
+      ignore -> {
+        onFinallyMicrotask();
+        return null;
+      };
+
+  /** Whether a microtask is queued to flush the finally commands. */
+  private boolean finallyFlushQueued = false;
+
+  /** Whether the finally flush uses queueMicrotask, decided on first use. */
+  private Boolean queueMicrotask;
+
+  /** Repeating entry commands, which run again on the next entry. */
+  private final TaskQueue rescheduledEntryCommands = new TaskQueue();
+
+  /**
+   * The number of nested entries running, see {@link #runEntry(ScheduledCommand)}. Tests set it to
+   * simulate an entry interrupted by a slow script warning.
+   */
+  int entryDepth = 0;
+
+  /** When background commands were queued or last got to run, for aging. */
+  private double backgroundProgressMillis;
+
+  /*
+   * These two flags are used to control the state of the flusher, and to
+   * detect a flush that was interrupted. Tests set flushRunning to simulate a
+   * flush interrupted by a slow script warning.
+   */
+  boolean flushRunning = false;
+  private boolean shouldBeRunning = false;
+
+  public SchedulerImpl() {
+    this(FlushMode.DEFAULT);
+  }
+
+  public SchedulerImpl(FlushMode flushMode) {
+    this.flushMode = flushMode;
+  }
+
+  public void flushEntryCommands() {
+    // This loop handles commands scheduling commands
+    while (!entryCommands.isEmpty()) {
+      runFirstTask(entryCommands, rescheduledEntryCommands);
+    }
+    if (!rescheduledEntryCommands.isEmpty()) {
+      entryCommands.addAll(rescheduledEntryCommands);
+      rescheduledEntryCommands.clear();
+    }
+  }
+
+  public void flushFinallyCommands() {
+    SchedulerTracer tracer = finallyCommands.isEmpty() ? null : this.tracer;
+    double traceStart = tracer != null ? currentTimeMillis() : 0;
+
+    // This loop handles commands scheduling commands
+    while (!finallyCommands.isEmpty()) {
+      runFirstTask(finallyCommands, rescheduledFinallyCommands);
+    }
+    if (!rescheduledFinallyCommands.isEmpty()) {
+      finallyCommands.addAll(rescheduledFinallyCommands);
+      rescheduledFinallyCommands.clear();
+    }
+
+    if (tracer != null) {
+      tracer.record(
+          SchedulerTracer.FINALLY, "finally", traceStart, currentTimeMillis() - traceStart);
+    }
+  }
+
+  /** @return the measured time between two frames of the display, in milliseconds */
+  public double getFrameInterval() {
+    return frameIntervalMeter.getFrameInterval();
+  }
+
+  /**
+   * Returns the metrics collected by this scheduler. They are only collected when the <code>
+   * gwt.scheduler.metrics</code> property is <code>true</code>, see {@link SchedulerMetrics}.
+   *
+   * @return the metrics, or <code>null</code> if they are not enabled
+   */
+  public SchedulerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** @return the number of time slices incremental commands have run for */
+  public int getTimeSliceCount() {
+    return timeSliceCount;
+  }
+
+  /** @return the number of time slices that incremental commands ran longer than */
+  public int getTimeSliceOverrunCount() {
+    return timeSliceOverrunCount;
+  }
+
+  /** @return the total time incremental commands ran longer than their time slices */
+  public double getTimeSliceOverrunMillis() {
+    return timeSliceOverrunMillis;
+  }
+
+  /** @return the number of commands dropped because their queue was full */
+  public int getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * @return the number of commands merged with a queued command, by key or because they were equal,
+   *     while their queue was full
+   */
+  public int getMergedCount() {
+    return mergedCount;
+  }
+
+  /**
+   * @return the number of keyed commands that replaced a queued one, which is the number of
+   *     executions saved, see {@link #scheduleDeferred(Object, ScheduledCommand)}
+   */
+  public int getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /**
+   * Sets how long deferred commands may run per flush. Once the budget is used up, the commands
+   * that didn't get to run stay at the head of the queue and run in the next flush, before the
+   * commands scheduled since, so the order of deferred commands is kept. Incremental commands only
+   * run in flushes that ran all their deferred commands. By default there is no budget, and each
+   * flush runs all the deferred commands that were queued when it started.
+   *
+   * <p>A budget keeps a burst of deferred commands, like the ones scheduled while rendering a large
+   * table, from blocking the browser in a single long task. A flush always runs at least one
+   * command, so a command that takes longer than the budget still runs.
+   *
+   * @param budgetMillis the budget in milliseconds, or {@link Double#POSITIVE_INFINITY} for none
+   */
+  public void setDeferredTimeBudget(double budgetMillis) {
+    assert budgetMillis > 0 : "budgetMillis";
+    this.deferredTimeBudget = budgetMillis;
+  }
+
+  /**
+   * Sets whether flushes of deferred and incremental commands stop early when the user interacts
+   * with the page, leaving the rest of their commands queued for the next flush. This keeps input
+   * latency low while large batches of commands run. It is on by default.
+   *
+   * <p>Pending input is detected with <code>navigator.scheduling.isInputPending()</code> where
+   * available; elsewhere, flushes are cut into short slices for a moment after each discrete input
+   * event. Since a flush always runs at least one command, it still makes progress.
+   *
+   * @param yieldToInput whether to yield to input
+   */
+  public void setYieldToInput(boolean yieldToInput) {
+    this.yieldToInput = yieldToInput;
+  }
+
+  /**
+   * Bounds the queues of deferred and incremental commands, so that a producer scheduling commands
+   * faster than they run, like a flood of WebSocket messages, can't grow them until the page runs
+   * out of memory. Each priority has its own queue of <code>capacity</code> commands; commands
+   * scheduled while it is full are handled according to <code>policy</code>, and counted in {@link
+   * #getDroppedCount()} and {@link #getMergedCount()}. The queues are unbounded by default.
+   *
+   * <p>Incremental commands only count until their first run. Finally and entry commands are not
+   * bounded. The {@link OverflowPolicy#BLOCK_PRODUCER} and {@link OverflowPolicy#COALESCE} policies
+   * let a queue grow up to twice <code>capacity</code>, the first to leave the producer time to
+   * react to the backpressure listener, the second for keyed commands.
+   *
+   * @param capacity the number of commands each queue holds, or {@link Integer#MAX_VALUE} for no
+   *     bound
+   * @param policy what to do with the commands scheduled while their queue is full
+   * @see #setBackpressureListener(BackpressureListener)
+   */
+  public void setQueueCapacity(int capacity, OverflowPolicy policy) {
+    assert capacity > 0 : "capacity";
+    assert policy != null : "policy";
+    this.queueCapacity = capacity;
+    this.overflowPolicy = policy;
+  }
+
+  /**
+   * Sets the listener that is told when a queue bounded by {@link #setQueueCapacity} is full, and
+   * when the queues drained again, whatever the overflow policy.
+   *
+   * @param listener the listener, or <code>null</code> for none
+   */
+  public void setBackpressureListener(BackpressureListener listener) {
+    this.backpressureListener = listener;
+  }
+
+  /**
+   * Turns the long task watchdog on or off. While it is on, each deferred, finally and incremental
+   * command is timed, and the ones that run for at least <code>thresholdMillis</code> are reported
+   * to <code>sink</code>, so that long tasks the browser reports can be traced back to a command.
+   *
+   * @param thresholdMillis the shortest duration that is reported, in milliseconds
+   * @param sink the sink to report long tasks to, or <code>null</code> to turn the watchdog off
+   * @see #createPerformanceTimelineSink(LongTaskSink)
+   */
+  public void setLongTaskWatchdog(double thresholdMillis, LongTaskSink sink) {
+    assert thresholdMillis >= 0 : "thresholdMillis";
+    this.longTaskThresholdMillis = thresholdMillis;
+    this.longTaskSink = sink;
+  }
+
+  /**
+   * Turns tracing on or off. While it is on, each flush of deferred and incremental commands, each
+   * batch of finally commands and each run of a command labelled with {@link SchedulerTracer#label}
+   * is recorded by <code>tracer</code>.
+   *
+   * @param tracer the tracer, or <code>null</code> to turn tracing off
+   */
+  public void setTracer(SchedulerTracer tracer) {
+    this.tracer = tracer;
+  }
+
+  /**
+   * Creates a sink that adds a <code>performance.measure()</code> entry for each long task, named
+   * after the command, so that it shows up in the performance timeline of the browser's developer
+   * tools. Browsers that don't support User Timing Level 3 are ignored.
+   *
+   * @param next another sink to report long tasks to, or <code>null</code>
+   * @return the sink, to pass to {@link #setLongTaskWatchdog}
+   */
+  public static LongTaskSink createPerformanceTimelineSink(LongTaskSink next) {
+    return new LongTaskSink() {
+      @Override
+      public void onLongTask(Object cmd, String label, double durationMillis) {
+        SchedulerTracer.measure(
+            label, NativePerformance.get().now() - durationMillis, durationMillis, null);
+        if (next != null) {
+          next.onLongTask(cmd, label, durationMillis);
+        }
+      }
+    };
+  }
+
+  /**
+   * Sets the time within which the deadlines of fixed-delay and fixed-period commands are
+   * coalesced, so that they run from the same native timer. Commands never run before their
+   * deadline, but may run up to <code>toleranceMs</code> after it. The default is 4ms, the minimum
+   * delay browsers apply to nested timers anyway.
+   *
+   * @param toleranceMs the tolerance in milliseconds, at least 1
+   */
+  public void setTimerTolerance(int toleranceMs) {
+    assert toleranceMs > 0 : "toleranceMs";
+    getTimerWheel().setTolerance(toleranceMs);
+  }
+
+  /**
+   * Sets what fixed-delay and fixed-period commands do while the document is hidden, unless they
+   * are scheduled with a policy of their own. Commands that are already scheduled keep theirs. The
+   * default is {@link HiddenTimerPolicy#RUN}.
+   *
+   * @param policy the policy of the commands scheduled without one
+   */
+  public void setHiddenTimerPolicy(HiddenTimerPolicy policy) {
+    assert policy != null : "policy";
+    getTimerWheel().setDefaultHiddenPolicy(policy);
+  }
+
+  /**
+   * Replaces the policy that decides how long incremental commands may run before control is
+   * returned to the browser. By default, incremental commands run for 16 milliseconds per flush; an
+   * {@link AdaptiveTimeSlicePolicy} fits them in the frames of the display instead.
+   *
+   * @param timeSlicePolicy the policy to use for subsequent flushes
+   */
+  public void setTimeSlicePolicy(TimeSlicePolicy timeSlicePolicy) {
+    assert timeSlicePolicy != null : "timeSlicePolicy";
+    this.timeSlicePolicy = timeSlicePolicy;
+  }
+
+  @Override
+  public void runEntry(ScheduledCommand cmd) {
+    enter();
+    try {
+      cmd.execute();
+    } catch (Throwable e) {
+      reportUncaughtException(e);
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd) {
+    if (admit(deferredCommands, cmd)) {
+      deferredCommands.add(cmd);
+      maybeSchedulePostEventPumpCommands();
+    }
+  }
+
+  @Override
+  public boolean scheduleDeferred(Object key, ScheduledCommand cmd) {
+    boolean coalesced = super.scheduleDeferred(key, cmd);
+    if (coalesced
+        && overflowPolicy == OverflowPolicy.COALESCE
+        && deferredCommands.size() >= queueCapacity) {
+      mergedCount++;
+    }
+    if (coalesced) {
+      coalescedCount++;
+      if (SchedulerMetrics.ENABLED) {
+        metrics.recordCoalesced();
+      }
+    }
+    return coalesced;
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority) {
+    TaskQueue queue = queueFor(priority);
+    if (admit(queue, cmd)) {
+      queue.add(cmd);
+      maybeSchedulePostEventPumpCommands();
     }
+  }
 
-    @JsOverlay
-    public static Task create(ScheduledCommand cmd) {
-      return ((Task) new JsArray<Any>(Js.asAny(cmd), Js.asAny(false)));
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleDeferred(new CancelableScheduledCommand(cmd, token), priority);
     }
+  }
 
-    @JsOverlay
-    public boolean executeRepeating() {
-      return getRepeating().execute();
-    }
+  @Override
+  public void scheduleEntry(RepeatingCommand cmd) {
+    entryCommands.add(cmd);
+  }
 
-    @JsOverlay
-    public void executeScheduled() {
-      getScheduled().execute();
-    }
+  @Override
+  public void scheduleEntry(ScheduledCommand cmd) {
+    entryCommands.add(cmd);
+  }
 
-    @JsOverlay
-    public RepeatingCommand getRepeating() {
-      return getAt(0).uncheckedCast();
-    }
+  @Override
+  public void scheduleFinally(RepeatingCommand cmd) {
+    maybeScheduleFinallyCommands();
+    finallyCommands.add(cmd);
+  }
 
-    @JsOverlay
-    public ScheduledCommand getScheduled() {
-      return getAt(0).uncheckedCast();
+  @Override
+  public void scheduleFinally(RepeatingCommand cmd, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleFinally(new CancelableRepeatingCommand(cmd, token));
     }
+  }
 
-    @JsOverlay
-    public boolean isRepeating() {
-      return getAt(1).asBoolean();
-    }
+  @Override
+  public void scheduleFinally(ScheduledCommand cmd) {
+    maybeScheduleFinallyCommands();
+    finallyCommands.add(cmd);
   }
 
-  /** Calls {@link org.gwtproject.core.client.impl.SchedulerImpl#flushPostEventPumpCommands()}. */
-  private final class Flusher implements RepeatingCommand {
-    public boolean execute() {
-      flushRunning = true;
-      flushPostEventPumpCommands();
-      /*
-       * No finally here, we want this to be clear only on a normal exit. An
-       * abnormal exit would indicate that an exception isn't being caught
-       * correctly or that a slow script warning canceled the timer.
-       */
-      flushRunning = false;
-      return shouldBeRunning = isWorkQueued();
+  @Override
+  public boolean scheduleFinally(Object key, ScheduledCommand cmd) {
+    boolean coalesced = super.scheduleFinally(key, cmd);
+    if (coalesced) {
+      coalescedCount++;
+      if (SchedulerMetrics.ENABLED) {
+        metrics.recordCoalesced();
+      }
     }
+    return coalesced;
   }
 
-  /** Keeps {@link Flusher} running. */
-  private final class Rescuer implements RepeatingCommand {
-    public boolean execute() {
-      if (flushRunning) {
-        /*
-         * Since JS is single-threaded, if we're here, then than means that
-         * FLUSHER.execute() started, but did not finish. Reschedule FLUSHER.
-         */
-        scheduleFixedDelay(flusher, FLUSHER_DELAY);
-      }
-      return shouldBeRunning;
+  @Override
+  public void scheduleFinally(ScheduledCommand cmd, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleFinally(new CancelableScheduledCommand(cmd, token));
     }
   }
 
-  /** Use a GWT.create() here to make it simple to hijack the default implementation. */
-  public static final SchedulerImpl INSTANCE = new SchedulerImpl();
+  @Override
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs) {
+    getTimerWheel().scheduleFixedDelay(cmd, delayMs, null);
+  }
+
+  @Override
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    if (!token.isCanceled()) {
+      getTimerWheel().scheduleFixedDelay(cmd, delayMs, token);
+    }
+  }
 
   /**
-   * The delay between flushing the task queues. Due to browser implementations the actual delay may
-   * be longer.
+   * Like {@link #scheduleFixedDelay(RepeatingCommand, int)}, with what the command does while the
+   * document is hidden.
+   *
+   * @param cmd the command to execute
+   * @param delayMs the amount of time to wait after one invocation ends before the next invocation
+   * @param policy what the command does while the document is hidden
    */
-  private static final int FLUSHER_DELAY = 1;
-
-  /** The delay between checking up on SSW problems. */
-  private static final int RESCUE_DELAY = 50;
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs, HiddenTimerPolicy policy) {
+    getTimerWheel().scheduleFixedDelay(cmd, delayMs, policy, null);
+  }
 
   /**
-   * The amount of time that we're willing to spend executing IncrementalCommands. 16ms allows
-   * control to be returned to the browser 60 times a second making it possible to keep the frame
-   * rate at 60fps.
+   * Like {@link #scheduleFixedDelay(RepeatingCommand, int, CancellationToken)}, with what the
+   * command does while the document is hidden.
+   *
+   * @param cmd the command to execute
+   * @param delayMs the amount of time to wait after one invocation ends before the next invocation
+   * @param policy what the command does while the document is hidden
+   * @param token cancels the command
    */
-  private static final double TIME_SLICE = 16;
-
-  /** Extract boilerplate code. */
-  private static JsArray<Task> createQueue() {
-    return new JsArray<>();
+  public void scheduleFixedDelay(
+      RepeatingCommand cmd, int delayMs, HiddenTimerPolicy policy, CancellationToken token) {
+    if (!token.isCanceled()) {
+      getTimerWheel().scheduleFixedDelay(cmd, delayMs, policy, token);
+    }
   }
 
-  /** Called from scheduledFixedInterval to give $entry a static function. */
-  private static boolean execute(RepeatingCommand cmd) {
-    return cmd.execute();
+  @Override
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs) {
+    getTimerWheel().scheduleFixedPeriod(cmd, delayMs, null);
   }
 
-  /** Provides lazy-init pattern for the task queues. */
-  private static JsArray<Task> push(JsArray<Task> queue, Task task) {
-    if (queue == null) {
-      queue = createQueue();
+  @Override
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    if (!token.isCanceled()) {
+      getTimerWheel().scheduleFixedPeriod(cmd, delayMs, token);
     }
-    queue.push(task);
-    return queue;
   }
 
   /**
-   * Execute a list of Tasks that hold both ScheduledCommands and RepeatingCommands. Any
-   * RepeatingCommands in the <code>tasks</code> queue that want to repeat will be pushed onto the
-   * <code>rescheduled</code> queue. The contents of <code>tasks</code> may not be altered while
-   * this method is executing.
+   * Like {@link #scheduleFixedPeriod(RepeatingCommand, int)}, with what the command does while the
+   * document is hidden.
    *
-   * @return <code>rescheduled</code> or a newly-allocated array if <code>rescheduled</code> is
-   *     null.
+   * @param cmd the command to execute
+   * @param delayMs the period with which the command is executed
+   * @param policy what the command does while the document is hidden
    */
-  private static JsArray<Task> runScheduledTasks(JsArray<Task> tasks, JsArray<Task> rescheduled) {
-    assert tasks != null : "tasks";
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs, HiddenTimerPolicy policy) {
+    getTimerWheel().scheduleFixedPeriod(cmd, delayMs, policy, null);
+  }
 
-    for (int i = 0, j = tasks.length; i < j; i++) {
-      assert tasks.length == j : "Working array length changed " + tasks.length + " != " + j;
-      Task t = tasks.getAt(i);
+  /**
+   * Like {@link #scheduleFixedPeriod(RepeatingCommand, int, CancellationToken)}, with what the
+   * command does while the document is hidden.
+   *
+   * @param cmd the command to execute
+   * @param delayMs the period with which the command is executed
+   * @param policy what the command does while the document is hidden
+   * @param token cancels the command
+   */
+  public void scheduleFixedPeriod(
+      RepeatingCommand cmd, int delayMs, HiddenTimerPolicy policy, CancellationToken token) {
+    if (!token.isCanceled()) {
+      getTimerWheel().scheduleFixedPeriod(cmd, delayMs, policy, token);
+    }
+  }
 
-      try {
-        // Move repeating commands to incremental commands queue
-        if (t.isRepeating()) {
-          if (t.executeRepeating()) {
-            rescheduled = push(rescheduled, t);
-          }
-        } else {
-          t.executeScheduled();
-        }
-      } catch (Throwable e) {
-        GWT.reportUncaughtException(e);
-      }
+  @Override
+  public void scheduleIdle(IdleCommand cmd) {
+    if (idleFlusher == null) {
+      idleFlusher = new IdleFlusher();
     }
-    return rescheduled;
+    idleFlusher.schedule();
+    idleCommands = push(idleCommands, cmd);
   }
 
-  private static void scheduleFixedDelayImpl(RepeatingCommand cmd, int delayMs) {
-    DomGlobal.setTimeout(
-        new SetTimeoutCallbackFn() {
-          @Override
-          public void onInvoke(Object... p0) {
-            if (execute(cmd)) {
-              DomGlobal.setTimeout(this, delayMs);
-            }
-          }
-        },
-        delayMs);
+  @Override
+  public void scheduleIdle(IdleCommand cmd, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleIdle(new CancelableIdleCommand(cmd, token));
+    }
+  }
+
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd) {
+    // Push repeating commands onto the same initial queue for relative order
+    if (admit(deferredCommands, cmd)) {
+      deferredCommands.add(cmd);
+      maybeSchedulePostEventPumpCommands();
+    }
   }
 
-  private static void scheduleFixedPeriodImpl(RepeatingCommand cmd, int delayMs) {
-    new SetIntervalCallbackFn() {
-      double intervalId;
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd, int weight) {
+    assert weight > 0 : "weight";
+    if (admit(deferredCommands, cmd)) {
+      deferredCommands.add(cmd, weight);
+      maybeSchedulePostEventPumpCommands();
+    }
+  }
 
-      // initializer exists to let us get the return value from scheduling
-      {
-        intervalId = DomGlobal.setInterval(this, delayMs);
-      }
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd, Priority priority) {
+    TaskQueue queue = queueFor(priority);
+    if (admit(queue, cmd)) {
+      queue.add(cmd);
+      maybeSchedulePostEventPumpCommands();
+    }
+  }
+
+  @Override
+  public void scheduleIncremental(
+      RepeatingCommand cmd, Priority priority, CancellationToken token) {
+    if (!token.isCanceled()) {
+      scheduleIncremental(new CancelableRepeatingCommand(cmd, token), priority);
+    }
+  }
 
+  /** there for testing */
+  TimerWheel createTimerWheel() {
+    return new TimerWheel() {
       @Override
-      public void onInvoke(Object... p0) {
-        if (!execute(cmd)) {
-          // Either canceled or threw an exception
-          DomGlobal.clearInterval(intervalId);
+      void advance() {
+        // Each native timer is an entry
+        enterFromEventLoop();
+        try {
+          super.advance();
+        } finally {
+          exit();
         }
       }
     };
   }
 
-  /**
-   * A RepeatingCommand that calls flushPostEventPumpCommands(). It repeats if there are any
-   * outstanding deferred or incremental commands.
-   */
-  Flusher flusher;
+  /** there for testing */
+  Duration createDuration() {
+    return new Duration();
+  }
 
   /**
-   * This provides some backup for the main flusher task in case it gets shut down by a slow-script
-   * warning.
+   * there for testing
+   *
+   * @param elapsedMillis the time the current flush has been running
    */
-  Rescuer rescue;
+  boolean isInputPending(double elapsedMillis) {
+    return InputPendingDetector.get().isInputPending(Duration.currentTimeMillis(), elapsedMillis);
+  }
 
-  /*
-   * Work queues. Timers store their state on the function, so we don't need to
-   * track them. They are not final so that we don't have to shorten them.
-   * Processing the values in the queues is a one-shot, and then the array is
-   * discarded.
-   */
-  JsArray<Task> deferredCommands;
-  //    JsArray<Task> entryCommands;
-  JsArray<Task> finallyCommands;
-  JsArray<Task> incrementalCommands;
+  /** there for testing */
+  void reportUncaughtException(Throwable e) {
+    GWT.reportUncaughtException(e);
+  }
 
-  /*
-   * These two flags are used to control the state of the flusher and rescuer
-   * commands.
-   */
-  private boolean flushRunning = false;
-  private boolean shouldBeRunning = false;
+  /** there for testing */
+  void requestIdleCallback(
+      RequestIdleCallbackCallbackFn callback, SetTimeoutCallbackFn fallbackCallback) {
+    if (isIdleCallbackSupported()) {
+      DomGlobal.requestIdleCallback(callback);
+    } else {
+      DomGlobal.setTimeout(fallbackCallback, FLUSHER_DELAY);
+    }
+  }
+
+  /** there for testing */
+  boolean useMessageChannel() {
+    return isMessageChannelSupported();
+  }
 
-  /** Unused, since we have no $entry used on every JS call */
-  //    public void flushEntryCommands() {
-  //        if (entryCommands != null) {
-  //            JsArray<Task> rescheduled = null;
-  //            // This do-while loop handles commands scheduling commands
-  //            do {
-  //                JsArray<Task> oldQueue = entryCommands;
-  //                entryCommands = null;
-  //                rescheduled = runScheduledTasks(oldQueue, rescheduled);
-  //            } while (entryCommands != null);
-  //            entryCommands = rescheduled;
-  //        }
-  //    }
+  /** there for testing */
+  boolean useQueueMicrotask() {
+    return isQueueMicrotaskSupported();
+  }
 
-  public void flushFinallyCommands() {
-    if (finallyCommands != null) {
-      JsArray<Task> rescheduled = null;
-      // This do-while loop handles commands scheduling commands
+  /** Called by Flusher. */
+  void flushPostEventPumpCommands() {
+    SchedulerTracer tracer = this.tracer;
+    double flushStart = currentTimeMillis();
+    flushStartMillis = flushStart;
+    if (SchedulerMetrics.ENABLED) {
+      metrics.recordFlushStart(
+          userBlockingCommands.size() + deferredCommands.size() + backgroundCommands.size(),
+          incrementalCommands.size());
+    }
+
+    // Incremental commands wait for the next flush if the deferred ones yielded
+    if (runDeferredTasks(flushStart)) {
+      double elapsedMillis = frameElapsedMillis + currentTimeMillis() - flushStart;
+      runRepeatingTasks(incrementalCommands, elapsedMillis);
+    }
+
+    if (queueFull) {
+      maybeReportDrained();
+    }
+    if (SchedulerMetrics.ENABLED || tracer != null) {
+      double flushMillis = currentTimeMillis() - flushStart;
+      if (SchedulerMetrics.ENABLED) {
+        metrics.recordFlushEnd(flushMillis);
+      }
+      if (tracer != null) {
+        tracer.record(SchedulerTracer.FLUSH, "flush", flushStart, flushMillis);
+      }
+    }
+  }
+
+  /** Runs idle commands round-robin until <code>deadline</code> expires. */
+  void flushIdleCommands(IdleDeadline deadline) {
+    while (idleCommands != null && deadline.timeRemaining() > 0) {
+      JsArray<IdleCommand> tasks = idleCommands;
+      idleCommands = null;
+      JsArray<IdleCommand> rescheduled = null;
+
+      int i = 0;
       do {
-        JsArray<Task> oldQueue = finallyCommands;
-        finallyCommands = null;
-        rescheduled = runScheduledTasks(oldQueue, rescheduled);
-      } while (finallyCommands != null);
-      finallyCommands = rescheduled;
+        IdleCommand cmd = tasks.getAt(i++);
+        try {
+          if (cmd.execute(deadline)) {
+            rescheduled = push(rescheduled, cmd);
+          }
+        } catch (Throwable e) {
+          reportUncaughtException(e);
+        }
+      } while (i < tasks.length && deadline.timeRemaining() > 0);
+
+      // Commands that didn't get to run go first, then the repeating and newly scheduled ones
+      JsArray<IdleCommand> scheduled = idleCommands;
+      idleCommands = pushAll(pushAll(pushAll(null, tasks, i), rescheduled, 0), scheduled, 0);
     }
   }
 
-  @Override
-  public void scheduleDeferred(ScheduledCommand cmd) {
-    deferredCommands = push(deferredCommands, Task.create(cmd));
-    maybeSchedulePostEventPumpCommands();
+  boolean isWorkQueued() {
+    return !deferredCommands.isEmpty()
+        || !userBlockingCommands.isEmpty()
+        || !backgroundCommands.isEmpty()
+        || !incrementalCommands.isEmpty();
   }
 
-  @Override
-  @Deprecated
-  public void scheduleEntry(RepeatingCommand cmd) {
-    // TODO possibly push to the old scheduler, if present
+  /** there for testing */
+  int getQueueAllocations() {
+    return deferredCommands.getAllocations()
+        + userBlockingCommands.getAllocations()
+        + backgroundCommands.getAllocations()
+        + entryCommands.getAllocations()
+        + rescheduledEntryCommands.getAllocations()
+        + finallyCommands.getAllocations()
+        + rescheduledFinallyCommands.getAllocations()
+        + incrementalCommands.getAllocations();
   }
 
-  @Override
-  @Deprecated
-  public void scheduleEntry(ScheduledCommand cmd) {
-    // TODO possibly push to the old scheduler, if present
+  private TimerWheel getTimerWheel() {
+    if (timerWheel == null) {
+      timerWheel = createTimerWheel();
+    }
+    return timerWheel;
   }
 
-  @Override
-  public void scheduleFinally(RepeatingCommand cmd) {
-    if (finallyCommands == null) {
-      Promise.resolve((Object) null)
-          .then(
-              ignore -> {
-                flushFinallyCommands();
-                return null;
-              });
+  private void maybeScheduleFinallyCommands() {
+    /*
+     * Entries run their finally commands when they end, but the microtask is
+     * queued anyway: it runs once the stack is empty, so if an entry is still
+     * open by then, it was interrupted by a slow script warning and would
+     * otherwise hold the finally commands back for good.
+     */
+    if (finallyFlushQueued) {
+      return;
+    }
+    finallyFlushQueued = true;
+    if (queueMicrotask == null) {
+      queueMicrotask = useQueueMicrotask();
+    }
+    if (queueMicrotask) {
+      NativeWindow.get().queueMicrotask(finallyFlushCallback);
+    } else {
+      if (resolvedPromise == null) {
+        resolvedPromise = Promise.resolve((Object) null);
+      }
+      resolvedPromise.then(finallyFlushThen);
     }
-    finallyCommands = push(finallyCommands, Task.create(cmd));
   }
 
-  @Override
-  public void scheduleFinally(ScheduledCommand cmd) {
-    if (finallyCommands == null) {
-      Promise.resolve((Object) null)
-          .then(
-              ignore -> {
-                flushFinallyCommands();
-                return null;
-              });
+  private void onFinallyMicrotask() {
+    finallyFlushQueued = false;
+    if (entryDepth > 0) {
+      // An entry was interrupted, the next one starts afresh
+      entryDepth = 0;
     }
-    finallyCommands = push(finallyCommands, Task.create(cmd));
+    flushFinallyCommands();
   }
 
-  @Override
-  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs) {
-    scheduleFixedDelayImpl(cmd, delayMs);
+  /** Starts an entry, running the entry commands unless it is nested in another one. */
+  private void enter() {
+    if (entryDepth++ == 0) {
+      flushEntryCommands();
+    }
   }
 
-  @Override
-  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs) {
-    scheduleFixedPeriodImpl(cmd, delayMs);
+  /**
+   * Starts an entry from a callback of the browser, which no other entry can be running around. One
+   * that seems to be was interrupted by a slow script warning, so the entry starts afresh.
+   */
+  private void enterFromEventLoop() {
+    entryDepth = 0;
+    enter();
   }
 
-  @Override
-  public void scheduleIncremental(RepeatingCommand cmd) {
-    // Push repeating commands onto the same initial queue for relative order
-    deferredCommands = push(deferredCommands, Task.create(cmd));
-    maybeSchedulePostEventPumpCommands();
+  /** Ends an entry, running the finally commands unless it is nested in another one. */
+  private void exit() {
+    try {
+      if (entryDepth == 1) {
+        flushFinallyCommands();
+      }
+    } finally {
+      entryDepth--;
+    }
   }
 
-  /** there for testing */
-  Duration createDuration() {
-    return new Duration();
+  /**
+   * Makes room for <code>cmd</code> in <code>queue</code> if it is full, according to the overflow
+   * policy, see {@link #setQueueCapacity}.
+   *
+   * @return whether <code>cmd</code> should be added to <code>queue</code>
+   */
+  private boolean admit(TaskQueue queue, Object cmd) {
+    if (queue.size() < queueCapacity) {
+      return true;
+    }
+    if (!queueFull) {
+      queueFull = true;
+      if (backpressureListener != null) {
+        backpressureListener.onQueueFull();
+      }
+    }
+    switch (overflowPolicy) {
+      case DROP_OLDEST:
+        // Incremental commands are not dropped before they had a chance to run
+        if (!queue.isRepeating(0)) {
+          drop(queue.getScheduled(0));
+          queue.removeFirst();
+          droppedCount++;
+          return true;
+        }
+        break;
+      case COALESCE:
+        // Each key is queued at most once, and only its latest command runs
+        if (isKeyed(cmd) && queue.size() - queueCapacity < queueCapacity) {
+          return true;
+        }
+        if (queue.containsRecent(cmd, COALESCE_WINDOW)) {
+          mergedCount++;
+          drop(cmd);
+          return false;
+        }
+        break;
+      case BLOCK_PRODUCER:
+        // Slack for the producer to react to the listener, up to twice the capacity
+        if (queue.size() - queueCapacity < queueCapacity) {
+          return true;
+        }
+        break;
+      default:
+        break;
+    }
+    droppedCount++;
+    drop(cmd);
+    return false;
   }
 
-  /** Called by Flusher. */
-  void flushPostEventPumpCommands() {
-    if (deferredCommands != null) {
-      JsArray<Task> oldDeferred = deferredCommands;
-      deferredCommands = null;
+  /** Releases a command that is dropped from a full queue without running. */
+  private static void drop(Object cmd) {
+    if (cmd instanceof CancelableScheduledCommand) {
+      ((CancelableScheduledCommand) cmd).release();
+    } else if (cmd instanceof CancelableRepeatingCommand) {
+      ((CancelableRepeatingCommand) cmd).release();
+    } else {
+      onDropped(cmd);
+    }
+  }
 
-      /* We might not have any incremental commands queued. */
-      if (incrementalCommands == null) {
-        incrementalCommands = createQueue();
+  /** Tells the backpressure listener once the queues are at most half full after an overflow. */
+  private void maybeReportDrained() {
+    int drained = queueCapacity / 2;
+    if (deferredCommands.size() <= drained
+        && userBlockingCommands.size() <= drained
+        && backgroundCommands.size() <= drained) {
+      queueFull = false;
+      if (backpressureListener != null) {
+        backpressureListener.onQueueDrained();
       }
-      runScheduledTasks(oldDeferred, incrementalCommands);
     }
+  }
 
-    if (incrementalCommands != null) {
-      incrementalCommands = runRepeatingTasks(incrementalCommands);
+  private TaskQueue queueFor(Priority priority) {
+    if (priority == Priority.USER_BLOCKING) {
+      return userBlockingCommands;
+    } else if (priority == Priority.BACKGROUND) {
+      if (backgroundCommands.isEmpty()) {
+        backgroundProgressMillis = currentTimeMillis();
+      }
+      return backgroundCommands;
     }
+    return deferredCommands;
   }
 
-  boolean isWorkQueued() {
-    return deferredCommands != null || incrementalCommands != null;
+  /**
+   * Runs the queued user-blocking, normal and background commands. User-blocking commands run
+   * first; normal and background commands are then interleaved {@link #NORMAL_WEIGHT} to one.
+   * Background commands only run within the time slice of the flush, unless they have been waiting
+   * for longer than {@link #MAX_BACKGROUND_WAIT}; the ones that didn't get to run stay queued.
+   * Commands scheduled during the flush are left for the next one.
+   *
+   * @return <code>false</code> if the flush used up its budget or yielded to input before all
+   *     commands ran, see {@link #setDeferredTimeBudget(double)} and {@link
+   *     #setYieldToInput(boolean)}
+   */
+  private boolean runDeferredTasks(double flushStart) {
+    runScheduledTasks(userBlockingCommands, incrementalCommands);
+
+    // Commands dropped from full queues meanwhile are taken out of the batches
+    backgroundCommands.startBatch();
+    int backgroundRan = 0;
+    double backgroundDeadline = Double.POSITIVE_INFINITY;
+    if (backgroundCommands.getBatchSize() > 0
+        && flushStart - backgroundProgressMillis < MAX_BACKGROUND_WAIT) {
+      backgroundDeadline =
+          flushStart
+              + timeSlicePolicy.getTimeSlice(
+                  frameIntervalMeter.getFrameInterval(), frameElapsedMillis);
+    }
+
+    deferredCommands.startBatch();
+
+    boolean completed = true;
+    for (int i = 1; deferredCommands.getBatchSize() > 0; i++) {
+      runFirstTask(deferredCommands, incrementalCommands);
+      if (i % NORMAL_WEIGHT == 0
+          && backgroundCommands.getBatchSize() > 0
+          && currentTimeMillis() < backgroundDeadline) {
+        runFirstTask(backgroundCommands, incrementalCommands);
+        backgroundRan++;
+      }
+      if (deferredCommands.getBatchSize() > 0 && shouldYield(deferredTimeBudget)) {
+        // The rest stays at the head of the queue, ahead of commands scheduled since
+        completed = false;
+        break;
+      }
+    }
+    while (completed
+        && backgroundCommands.getBatchSize() > 0
+        && currentTimeMillis() < backgroundDeadline) {
+      runFirstTask(backgroundCommands, incrementalCommands);
+      backgroundRan++;
+      if (backgroundCommands.getBatchSize() > 0 && shouldYield(deferredTimeBudget)) {
+        completed = false;
+      }
+    }
+
+    if (backgroundRan > 0) {
+      backgroundProgressMillis = currentTimeMillis();
+    }
+    return completed;
+  }
+
+  /**
+   * @param budgetMillis how long the current flush may run
+   * @return whether the current flush should stop early and leave the rest of its work to the next
+   *     one, because it used up its budget or so that the browser can handle pending input
+   */
+  private boolean shouldYield(double budgetMillis) {
+    double elapsedMillis = currentTimeMillis() - flushStartMillis;
+    return elapsedMillis >= budgetMillis || (yieldToInput && isInputPending(elapsedMillis));
   }
 
   private void maybeSchedulePostEventPumpCommands() {
@@ -356,67 +1541,136 @@ public class SchedulerImpl extends Scheduler {
       if (flusher == null) {
         flusher = new Flusher();
       }
-      scheduleFixedDelayImpl(flusher, FLUSHER_DELAY);
+      scheduleFlusher();
+    } else if (frameFlusher != null) {
+      frameFlusher.rescueMissedFrame();
+    }
+  }
 
-      if (rescue == null) {
-        rescue = new Rescuer();
+  private void scheduleFlusher() {
+    if (flushMode == FlushMode.ANIMATION_FRAME) {
+      if (frameFlusher == null) {
+        frameFlusher = new FrameFlusher();
       }
-      scheduleFixedDelayImpl(rescue, RESCUE_DELAY);
+      frameFlusher.schedule();
+    } else if (messageFlusher != null || useMessageChannel()) {
+      if (messageFlusher == null) {
+        messageFlusher = new MessageFlusher();
+      }
+      messageFlusher.schedule();
+    } else if (!timerFlushPending) {
+      if (timerFlusher == null) {
+        timerFlusher =
+            ignore -> {
+              timerFlushPending = false;
+              execute(flusher);
+            };
+      }
+      timerFlushPending = true;
+      DomGlobal.setTimeout(timerFlusher, FLUSHER_DELAY);
     }
   }
 
   /**
-   * Execute a list of Tasks that hold RepeatingCommands.
+   * Execute a list of Tasks that hold RepeatingCommands, for as long as the {@link TimeSlicePolicy}
+   * allows. The commands that are done, or that threw, are removed from <code>tasks</code> in
+   * place.
    *
-   * @return A replacement array that is possibly a shorter copy of <code>tasks</code>
+   * <p>The time slice is shared among the commands in proportion to their weights. Each command has
+   * a credit, which is topped up with its share at the start of the time slice and charged with the
+   * time each invocation takes; commands without credit are skipped. Credit is capped at one share,
+   * but a command that overran its share carries the debt over to the next time slices, so that
+   * over time every command gets its share no matter how long its invocations are.
+   *
+   * @param elapsedMillis the time already spent in the current frame
    */
-  private JsArray<Task> runRepeatingTasks(JsArray<Task> tasks) {
-    assert tasks != null : "tasks";
-
-    int length = tasks.length;
+  private void runRepeatingTasks(TaskQueue tasks, double elapsedMillis) {
+    int length = tasks.size();
     if (length == 0) {
-      return null;
+      return;
     }
 
     boolean canceledSomeTasks = false;
 
+    if (flushMode == FlushMode.DEFAULT) {
+      // Animation frames measure the frame interval themselves
+      frameIntervalMeter.sample();
+    }
+    double timeSlice =
+        timeSlicePolicy.getTimeSlice(frameIntervalMeter.getFrameInterval(), elapsedMillis);
+
+    int totalWeight = 0;
+    for (int i = 0; i < length; i++) {
+      totalWeight += tasks.getWeight(i);
+    }
+    addCredits(tasks, timeSlice / totalWeight);
+
+    boolean yielded = false;
     Duration duration = createDuration();
-    while (duration.elapsedMillis() < TIME_SLICE) {
+    while (duration.elapsedMillis() < timeSlice) {
       boolean executedSomeTask = false;
+      boolean skippedSomeTask = false;
       for (int i = 0; i < length; i++) {
-        assert tasks.length == length
-            : "Working array length changed " + tasks.length + " != " + length;
-        Task t = tasks.getAt(i);
-        if (t == null) {
+        assert tasks.size() == length
+            : "Working array length changed " + tasks.size() + " != " + length;
+        RepeatingCommand cmd = tasks.getRepeating(i);
+        if (cmd == null) {
+          continue;
+        }
+        if (tasks.getCredit(i) <= 0) {
+          skippedSomeTask = true;
           continue;
         }
         executedSomeTask = true;
 
-        assert t.isRepeating() : "Found a non-repeating Task";
-
-        if (!t.executeRepeating()) {
-          tasks.setAt(i, null);
+        SchedulerTracer tracer = this.tracer;
+        String label = tracer != null ? SchedulerTracer.getLabel(cmd) : null;
+        double start = currentTimeMillis();
+        boolean repeat = false;
+        try {
+          repeat = cmd.execute();
+        } catch (Throwable e) {
+          // Like in runFirstTask(), a command that throws is done, and the others keep running
+          reportUncaughtException(e);
+        }
+        double millis = currentTimeMillis() - start;
+        tasks.setCredit(i, tasks.getCredit(i) - millis);
+        if (SchedulerMetrics.ENABLED || longTaskSink != null || label != null) {
+          onExecuted(cmd, label, start, millis);
+        }
+        if (!repeat) {
+          tasks.clearAt(i);
           canceledSomeTasks = true;
         }
+        if (shouldYield(Double.POSITIVE_INFINITY)) {
+          yielded = true;
+          break;
+        }
       }
-      if (!executedSomeTask) {
-        // no work left to do, break to avoid busy waiting until TIME_SLICE is reached
+      if (yielded) {
         break;
       }
+      if (!executedSomeTask) {
+        if (!skippedSomeTask) {
+          // no work left to do, break to avoid busy waiting until the time slice is used up
+          break;
+        }
+        // All commands used up their share, but there is time left
+        addCredits(tasks, Math.max(1, timeSlice - duration.elapsedMillis()) / totalWeight);
+      }
+    }
+
+    int usedMillis = duration.elapsedMillis();
+    timeSlicePolicy.onTimeSliceEnd(timeSlice, usedMillis);
+    timeSliceCount++;
+    if (usedMillis > timeSlice) {
+      timeSliceOverrunCount++;
+      timeSliceOverrunMillis += usedMillis - timeSlice;
     }
 
     if (canceledSomeTasks) {
-      JsArray<Task> newTasks = createQueue();
       // Remove tombstones
-      for (int i = 0; i < length; i++) {
-        if (tasks.getAt(i) != null) {
-          newTasks.push(tasks.getAt(i));
-        }
-      }
-      assert newTasks.length < length;
-      return newTasks.length == 0 ? null : newTasks;
-    } else {
-      return tasks;
+      tasks.compact();
     }
   }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+/**
+ * Counters and latency histograms collected by a {@link SchedulerImpl}, see {@link
+ * SchedulerImpl#getMetrics()}.
+ *
+ * <p>Metrics are opt-in: they are only collected when the <code>gwt.scheduler.metrics</code>
+ * property is <code>true</code>, which is a configuration property in GWT 2 and a <code>goog.define
+ * </code> in J2CL. Otherwise {@link #ENABLED} is a constant <code>false</code>, and the compiler
+ * removes all code that collects them.
+ */
+public final class SchedulerMetrics {
+
+  /** Whether metrics are compiled in. */
+  public static final boolean ENABLED =
+      "true".equals(System.getProperty("gwt.scheduler.metrics", "false"));
+
+  /** Receives the metrics after each flush of deferred and incremental commands. */
+  public interface Listener {
+    /**
+     * Called at the end of each flush.
+     *
+     * @param metrics the metrics of the scheduler, including the flush that just ended
+     */
+    void onFlush(SchedulerMetrics metrics);
+  }
+
+  /**
+   * A histogram of durations in milliseconds. The buckets grow exponentially: the first one holds
+   * durations below 1ms, the next ones below 2ms, 4ms, and so on, and the last one everything from
+   * {@link #MAX_BUCKET_MILLIS}.
+   */
+  public static final class Histogram {
+    private static final int BUCKETS = 14;
+
+    /** The lower bound of the last bucket. */
+    public static final double MAX_BUCKET_MILLIS = 1 << (BUCKETS - 2);
+
+    private final int[] buckets = new int[BUCKETS];
+    private int count;
+    private double sum;
+    private double max;
+
+    /** @return the number of recorded durations */
+    public int getCount() {
+      return count;
+    }
+
+    /** @return the longest recorded duration, 0 if there is none */
+    public double getMax() {
+      return max;
+    }
+
+    /** @return the average of the recorded durations, 0 if there is none */
+    public double getMean() {
+      return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Estimates a percentile from the buckets.
+     *
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, but at most {@link #getMax()}
+     */
+    public double getPercentile(double percentile) {
+      assert percentile >= 0 && percentile <= 100 : "percentile";
+      double rank = count * percentile / 100;
+      int seen = 0;
+      for (int i = 0; i < BUCKETS - 1; i++) {
+        seen += buckets[i];
+        if (seen >= rank && seen > 0) {
+          return Math.min(1 << i, max);
+        }
+      }
+      return max;
+    }
+
+    /**
+     * @param bucket between 0 and 13
+     * @return the number of durations recorded in <code>bucket</code>
+     */
+    public int getBucketCount(int bucket) {
+      return buckets[bucket];
+    }
+
+    /** Records a duration. */
+    public void record(double millis) {
+      int bucket = 0;
+      while (bucket < BUCKETS - 1 && millis >= (1 << bucket)) {
+        bucket++;
+      }
+      buckets[bucket]++;
+      count++;
+      sum += millis;
+      max = Math.max(max, millis);
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] = 0;
+      }
+      count = 0;
+      sum = 0;
+      max = 0;
+    }
+  }
+
+  private final Histogram queueDelay = new Histogram();
+  private final Histogram executionTime = new Histogram();
+  private final Histogram flushDuration = new Histogram();
+
+  private int executedCount;
+  private int flushCount;
+  private int rescueCount;
+  private int coalescedCount;
+  private int deferredDepth;
+  private int incrementalDepth;
+  private int maxDeferredDepth;
+  private int maxIncrementalDepth;
+
+  private Listener listener;
+
+  /** @return the time commands spent in their queue before their first invocation */
+  public Histogram getQueueDelay() {
+    return queueDelay;
+  }
+
+  /** @return the time each invocation of a command took */
+  public Histogram getExecutionTime() {
+    return executionTime;
+  }
+
+  /** @return the time each flush of deferred and incremental commands took */
+  public Histogram getFlushDuration() {
+    return flushDuration;
+  }
+
+  /** @return the number of invocations of deferred, incremental and finally commands */
+  public int getExecutedCount() {
+    return executedCount;
+  }
+
+  /** @return the number of flushes of deferred and incremental commands */
+  public int getFlushCount() {
+    return flushCount;
+  }
+
+  /** @return the number of times a flush was rescheduled after it had been interrupted */
+  public int getRescueCount() {
+    return rescueCount;
+  }
+
+  /**
+   * @return the number of keyed commands that replaced a queued one, which is the number of
+   *     executions saved, see {@link org.gwtproject.core.client.Scheduler#scheduleDeferred(Object,
+   *     org.gwtproject.core.client.Scheduler.ScheduledCommand)}
+   */
+  public int getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /** @return the number of deferred commands queued at the start of the last flush */
+  public int getDeferredDepth() {
+    return deferredDepth;
+  }
+
+  /** @return the number of incremental commands queued at the start of the last flush */
+  public int getIncrementalDepth() {
+    return incrementalDepth;
+  }
+
+  /** @return the largest {@link #getDeferredDepth()} so far */
+  public int getMaxDeferredDepth() {
+    return maxDeferredDepth;
+  }
+
+  /** @return the largest {@link #getIncrementalDepth()} so far */
+  public int getMaxIncrementalDepth() {
+    return maxIncrementalDepth;
+  }
+
+  /**
+   * Sets the listener that is called after each flush.
+   *
+   * @param listener the listener, or <code>null</code> to remove it
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Clears all counters and histograms. */
+  public void reset() {
+    queueDelay.reset();
+    executionTime.reset();
+    flushDuration.reset();
+    executedCount = 0;
+    flushCount = 0;
+    rescueCount = 0;
+    coalescedCount = 0;
+    deferredDepth = 0;
+    incrementalDepth = 0;
+    maxDeferredDepth = 0;
+    maxIncrementalDepth = 0;
+  }
+
+  void recordExecution(double millis) {
+    executedCount++;
+    executionTime.record(millis);
+  }
+
+  void recordFlushStart(int deferredDepth, int incrementalDepth) {
+    this.deferredDepth = deferredDepth;
+    this.incrementalDepth = incrementalDepth;
+    maxDeferredDepth = Math.max(maxDeferredDepth, deferredDepth);
+    maxIncrementalDepth = Math.max(maxIncrementalDepth, incrementalDepth);
+  }
+
+  void recordFlushEnd(double millis) {
+    flushCount++;
+    flushDuration.record(millis);
+    if (listener != null) {
+      listener.onFlush(this);
+    }
+  }
+
+  void recordRescue() {
+    rescueCount++;
+  }
+
+  void recordCoalesced() {
+    coalescedCount++;
+  }
+}
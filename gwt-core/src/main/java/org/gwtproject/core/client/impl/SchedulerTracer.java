@@ -0,0 +1,286 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import jsinterop.base.JsPropertyMap;
+import org.gwtproject.core.client.Duration;
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+
+/**
+ * Traces the activity of a {@link SchedulerImpl}, see {@link SchedulerImpl#setTracer}: each flush
+ * of deferred and incremental commands, each batch of finally commands, and each run of a command
+ * labelled with {@link #label}.
+ *
+ * <p>Events can be added to the performance timeline as <code>performance.measure()</code> entries,
+ * so that they show up in the performance panel of the browser's developer tools, and kept in a
+ * ring buffer of the last events, which {@link #toChromeTrace()} exports in the Chrome trace event
+ * format for offline tools like <code>chrome://tracing</code> and Perfetto.
+ *
+ * <p>A scheduler without tracer only checks for it; the commands are only timed while it is set.
+ * Events are timed by the scheduler, on the clock of {@link
+ * org.gwtproject.core.client.Scheduler#currentTimeMillis()}, with the timestamps it takes anyway
+ * for its metrics and long task watchdog; the tracer moves them to the performance timeline.
+ */
+public class SchedulerTracer {
+
+  /** A command with a label, see {@link SchedulerTracer#label}. */
+  public interface Labelled {
+    /** @return the name of the command in traces, or <code>null</code> to leave it out */
+    String getLabel();
+  }
+
+  private static final class LabelledScheduledCommand implements ScheduledCommand, Labelled {
+    private final String label;
+    private final ScheduledCommand cmd;
+
+    LabelledScheduledCommand(String label, ScheduledCommand cmd) {
+      this.label = label;
+      this.cmd = cmd;
+    }
+
+    @Override
+    public void execute() {
+      cmd.execute();
+    }
+
+    @Override
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private static final class LabelledRepeatingCommand implements RepeatingCommand, Labelled {
+    private final String label;
+    private final RepeatingCommand cmd;
+
+    LabelledRepeatingCommand(String label, RepeatingCommand cmd) {
+      this.label = label;
+      this.cmd = cmd;
+    }
+
+    @Override
+    public boolean execute() {
+      return cmd.execute();
+    }
+
+    @Override
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  /* The categories of the events. */
+  static final String FLUSH = "flush";
+  static final String FINALLY = "finally";
+  static final String COMMAND = "command";
+
+  /**
+   * Labels a command, so that its runs are traced.
+   *
+   * @param label the name of the command in traces
+   * @param cmd the command to label
+   * @return a command that runs <code>cmd</code>, to schedule instead
+   */
+  public static ScheduledCommand label(String label, ScheduledCommand cmd) {
+    return new LabelledScheduledCommand(label, cmd);
+  }
+
+  /**
+   * Labels a repeating command, so that each of its runs is traced.
+   *
+   * @param label the name of the command in traces
+   * @param cmd the command to label
+   * @return a command that runs <code>cmd</code>, to schedule instead
+   */
+  public static RepeatingCommand label(String label, RepeatingCommand cmd) {
+    return new LabelledRepeatingCommand(label, cmd);
+  }
+
+  /** @return the label of <code>cmd</code>, or <code>null</code> if it has none */
+  static String getLabel(Object cmd) {
+    return cmd instanceof Labelled ? ((Labelled) cmd).getLabel() : null;
+  }
+
+  /** Whether the browser supports User Timing Level 3, until a measure fails. */
+  private static boolean userTimingSupported = true;
+
+  /**
+   * Adds a <code>performance.measure()</code> entry to the performance timeline. This is the only
+   * place the scheduler writes to User Timing, for traced events and long tasks alike.
+   *
+   * @param name the name of the entry
+   * @param start when the event started, on the clock of the performance timeline
+   * @param duration the duration of the event
+   * @param detail the category of the event, or <code>null</code>
+   */
+  static void measure(String name, double start, double duration, String detail) {
+    if (!userTimingSupported) {
+      return;
+    }
+    try {
+      SchedulerImpl.NativePerformance.get()
+          .measure(name, JsPropertyMap.of("start", start, "duration", duration, "detail", detail));
+    } catch (Throwable e) {
+      userTimingSupported = false;
+    }
+  }
+
+  /* The ring buffer of events, in parallel arrays. */
+  private final String[] categories;
+  private final String[] names;
+  private final double[] starts;
+  private final double[] durations;
+  private int head;
+  private int size;
+
+  private boolean userTiming = false;
+
+  /** The time origin of the performance timeline on the scheduler's clock, taken on first use. */
+  private double timeOrigin = Double.NaN;
+
+  /**
+   * @param bufferSize the number of events kept for {@link #toChromeTrace()}, the oldest ones being
+   *     overwritten, or 0 to only add them to the performance timeline
+   */
+  public SchedulerTracer(int bufferSize) {
+    assert bufferSize >= 0 : "bufferSize";
+    categories = new String[bufferSize];
+    names = new String[bufferSize];
+    starts = new double[bufferSize];
+    durations = new double[bufferSize];
+  }
+
+  /**
+   * Sets whether events are added to the performance timeline as <code>performance.measure()
+   * </code> entries. Browsers that don't support User Timing Level 3 are ignored. It is off by
+   * default.
+   *
+   * @param userTiming whether to add events to the performance timeline
+   */
+  public void setUserTiming(boolean userTiming) {
+    this.userTiming = userTiming;
+  }
+
+  /** @return the number of events in the buffer */
+  public int getEventCount() {
+    return size;
+  }
+
+  /** Removes all events from the buffer. */
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      names[physical(i)] = null;
+    }
+    head = 0;
+    size = 0;
+  }
+
+  /**
+   * Exports the events in the buffer, oldest first, as a JSON object in the Chrome trace event
+   * format. Timestamps are relative to the time origin of the page, in microseconds.
+   *
+   * @return the JSON, to save as a <code>.json</code> file
+   */
+  public String toChromeTrace() {
+    StringBuilder json = new StringBuilder("{\"traceEvents\":[");
+    for (int i = 0; i < size; i++) {
+      int index = physical(i);
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"name\":");
+      appendString(json, names[index]);
+      json.append(",\"cat\":");
+      appendString(json, categories[index]);
+      json.append(",\"ph\":\"X\",\"ts\":")
+          .append(Math.round((starts[index] - getTimeOrigin()) * 1000))
+          .append(",\"dur\":")
+          .append(Math.round(durations[index] * 1000))
+          .append(",\"pid\":1,\"tid\":1}");
+    }
+    return json.append("],\"displayTimeUnit\":\"ms\"}").toString();
+  }
+
+  /**
+   * there for testing
+   *
+   * @return the time origin of the performance timeline, on the clock of {@link Duration}
+   */
+  double timeOrigin() {
+    return Duration.currentTimeMillis() - SchedulerImpl.NativePerformance.get().now();
+  }
+
+  /**
+   * Records an event.
+   *
+   * @param category the category of the event
+   * @param name the name of the event
+   * @param start when the event started, on the clock of the scheduler
+   * @param duration how long the event took
+   */
+  void record(String category, String name, double start, double duration) {
+    if (categories.length > 0) {
+      int index;
+      if (size < categories.length) {
+        index = physical(size++);
+      } else {
+        // Overwrite the oldest event
+        index = head;
+        head = physical(1);
+      }
+      categories[index] = category;
+      names[index] = name;
+      starts[index] = start;
+      durations[index] = duration;
+    }
+    if (userTiming) {
+      measure(name, start - getTimeOrigin(), duration, category);
+    }
+  }
+
+  private double getTimeOrigin() {
+    if (Double.isNaN(timeOrigin)) {
+      timeOrigin = timeOrigin();
+    }
+    return timeOrigin;
+  }
+
+  private int physical(int index) {
+    int i = head + index;
+    return i < categories.length ? i : i - categories.length;
+  }
+
+  private static void appendString(StringBuilder json, String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        String hex = Integer.toHexString(c);
+        json.append("\\u");
+        for (int j = hex.length(); j < 4; j++) {
+          json.append('0');
+        }
+        json.append(hex);
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import org.gwtproject.core.client.Duration;
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+
+/**
+ * A queue of ScheduledCommands and RepeatingCommands, kept in parallel ring buffers: one for the
+ * commands, and the others for whether they are repeating, their weight and their credit, which
+ * {@link SchedulerImpl} uses to share time between incremental commands. The buffers only grow, so
+ * a queue that is reused across flushes doesn't allocate once it has reached its working size.
+ *
+ * <p>Indexes are relative to the head of the queue. A command can be replaced with <code>null
+ * </code> while the queue is iterated, and the resulting holes removed in place with {@link
+ * #compact()}.
+ *
+ * <p>When {@link SchedulerMetrics#ENABLED}, a third buffer holds the time each command was added.
+ *
+ * <p>A flush runs the commands that were queued when it started, its batch. Commands scheduled
+ * during the flush are added after the batch, and commands dropped from the head of a full queue
+ * are taken out of it, see {@link #startBatch()}.
+ */
+final class TaskQueue {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private Object[] commands;
+  private boolean[] repeating;
+  private int[] weights;
+  private double[] credits;
+  private double[] enqueuedMillis;
+  private int head;
+  private int size;
+  private int allocations;
+  private int batchSize;
+
+  /** @return the number of times the buffers have been allocated, for benchmarks */
+  int getAllocations() {
+    return allocations;
+  }
+
+  /** Makes the commands queued so far the batch, see {@link #getBatchSize()}. */
+  void startBatch() {
+    batchSize = size;
+  }
+
+  /** @return the number of commands of the batch that were not removed yet, at the head */
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void add(RepeatingCommand cmd) {
+    add(cmd, true, 1);
+  }
+
+  void add(RepeatingCommand cmd, int weight) {
+    add(cmd, true, weight);
+  }
+
+  void add(ScheduledCommand cmd) {
+    add(cmd, false, 1);
+  }
+
+  /** Appends all commands of <code>other</code>, in order. */
+  void addAll(TaskQueue other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.get(i), other.isRepeating(i), other.getWeight(i));
+    }
+  }
+
+  int getWeight(int index) {
+    assert index >= 0 && index < size : "index";
+    return weights[physical(index)];
+  }
+
+  /** @return the time the command at <code>index</code> may still run, 0 when it was added */
+  double getCredit(int index) {
+    assert index >= 0 && index < size : "index";
+    return credits[physical(index)];
+  }
+
+  void setCredit(int index, double credit) {
+    assert index >= 0 && index < size : "index";
+    credits[physical(index)] = credit;
+  }
+
+  boolean isRepeating(int index) {
+    assert index >= 0 && index < size : "index";
+    return repeating[physical(index)];
+  }
+
+  /** @return when the command at <code>index</code> was added, if metrics are enabled */
+  double getEnqueuedMillis(int index) {
+    assert SchedulerMetrics.ENABLED : "metrics";
+    assert index >= 0 && index < size : "index";
+    return enqueuedMillis[physical(index)];
+  }
+
+  RepeatingCommand getRepeating(int index) {
+    assert isRepeating(index) : "Found a non-repeating Task";
+    return (RepeatingCommand) get(index);
+  }
+
+  ScheduledCommand getScheduled(int index) {
+    assert !isRepeating(index) : "Found a repeating Task";
+    return (ScheduledCommand) get(index);
+  }
+
+  /** Replaces the command at <code>index</code> with a hole, see {@link #compact()}. */
+  void clearAt(int index) {
+    assert index >= 0 && index < size : "index";
+    commands[physical(index)] = null;
+  }
+
+  /** Removes the first command; it has to be read before. */
+  void removeFirst() {
+    assert size > 0 : "empty";
+    commands[head] = null;
+    head = physical(1);
+    size--;
+    if (batchSize > 0) {
+      batchSize--;
+    }
+  }
+
+  /** @return whether a command equal to <code>cmd</code> is among the last <code>count</code> */
+  boolean containsRecent(Object cmd, int count) {
+    for (int i = Math.max(0, size - count); i < size; i++) {
+      if (cmd.equals(commands[physical(i)])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return the index of <code>cmd</code>, compared by identity, or -1 if it isn't queued */
+  int indexOf(Object cmd) {
+    for (int i = 0; i < size; i++) {
+      if (commands[physical(i)] == cmd) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Removes the command at <code>index</code>, keeping the order of the other commands and taking
+   * it out of the batch. Use {@link #clearAt(int)} instead while the queue is iterated.
+   */
+  void removeAt(int index) {
+    clearAt(index);
+    if (index < batchSize) {
+      batchSize--;
+    }
+    compact();
+  }
+
+  /** Removes the holes left by {@link #clearAt(int)}, keeping the order of the other commands. */
+  void compact() {
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      int from = physical(i);
+      Object cmd = commands[from];
+      if (cmd == null) {
+        continue;
+      }
+      if (kept != i) {
+        int to = physical(kept);
+        commands[to] = cmd;
+        repeating[to] = repeating[from];
+        weights[to] = weights[from];
+        credits[to] = credits[from];
+        if (SchedulerMetrics.ENABLED) {
+          enqueuedMillis[to] = enqueuedMillis[from];
+        }
+        commands[from] = null;
+      }
+      kept++;
+    }
+    size = kept;
+  }
+
+  /** Removes all commands, keeping the buffers. */
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      commands[physical(i)] = null;
+    }
+    head = 0;
+    size = 0;
+    batchSize = 0;
+  }
+
+  private Object get(int index) {
+    assert index >= 0 && index < size : "index";
+    return commands[physical(index)];
+  }
+
+  private void add(Object cmd, boolean isRepeating, int weight) {
+    if (commands == null || size == commands.length) {
+      grow();
+    }
+    int index = physical(size);
+    commands[index] = cmd;
+    repeating[index] = isRepeating;
+    weights[index] = weight;
+    credits[index] = 0;
+    if (SchedulerMetrics.ENABLED) {
+      enqueuedMillis[index] = Duration.currentTimeMillis();
+    }
+    size++;
+  }
+
+  private int physical(int index) {
+    int i = head + index;
+    return i < commands.length ? i : i - commands.length;
+  }
+
+  private void grow() {
+    int capacity = commands == null ? INITIAL_CAPACITY : commands.length * 2;
+    Object[] newCommands = new Object[capacity];
+    boolean[] newRepeating = new boolean[capacity];
+    int[] newWeights = new int[capacity];
+    double[] newCredits = new double[capacity];
+    for (int i = 0; i < size; i++) {
+      int from = physical(i);
+      newCommands[i] = commands[from];
+      newRepeating[i] = repeating[from];
+      newWeights[i] = weights[from];
+      newCredits[i] = credits[from];
+    }
+    if (SchedulerMetrics.ENABLED) {
+      double[] newEnqueuedMillis = new double[capacity];
+      for (int i = 0; i < size; i++) {
+        newEnqueuedMillis[i] = enqueuedMillis[physical(i)];
+      }
+      enqueuedMillis = newEnqueuedMillis;
+    }
+    commands = newCommands;
+    repeating = newRepeating;
+    weights = newWeights;
+    credits = newCredits;
+    head = 0;
+    allocations++;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+/**
+ * Decides how long {@link SchedulerImpl} keeps running incremental commands before it returns
+ * control to the browser.
+ */
+public interface TimeSlicePolicy {
+
+  /**
+   * Returns a policy that gives incremental commands the same time slice in every flush, whatever
+   * the frame rate and the work already done in the frame.
+   *
+   * @param timeSlice the time slice in milliseconds
+   * @return the policy
+   */
+  static TimeSlicePolicy fixed(double timeSlice) {
+    return (frameInterval, elapsedMillis) -> timeSlice;
+  }
+
+  /**
+   * Returns the time incremental commands may use in the current flush.
+   *
+   * @param frameInterval the measured time between two frames of the display, in milliseconds
+   * @param elapsedMillis the time already spent in the current frame before incremental commands
+   *     run, for example by deferred commands of the same flush
+   * @return the time slice in milliseconds
+   */
+  double getTimeSlice(double frameInterval, double elapsedMillis);
+
+  /**
+   * Called after incremental commands ran for a time slice returned by {@link #getTimeSlice}. Since
+   * commands are only interrupted between two invocations, <code>usedMillis</code> may be larger
+   * than <code>timeSlice</code>.
+   *
+   * @param timeSlice the time slice that was returned by {@link #getTimeSlice}
+   * @param usedMillis the time incremental commands actually ran
+   */
+  default void onTimeSliceEnd(double timeSlice, double usedMillis) {}
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import elemental2.dom.DomGlobal;
+import elemental2.dom.DomGlobal.SetTimeoutCallbackFn;
+import org.gwtproject.core.client.Duration;
+import org.gwtproject.core.client.GWT;
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+
+/**
+ * A hierarchical timing wheel that runs fixed-delay and fixed-period commands from a single native
+ * timer. Time is divided into ticks of {@link #getTolerance()} milliseconds; commands due in the
+ * same tick run together, never before their deadline and at most one tick after it.
+ *
+ * <p>The wheel has {@link #LEVELS} levels of {@link #SLOTS} slots. A slot of level 0 holds the
+ * commands due in one tick, a slot of level <code>n</code> the commands due in the next <code>
+ * SLOTS^n</code> ticks, which are moved to the lower levels as their deadline comes closer.
+ * Scheduling and canceling a command are O(1).
+ *
+ * <p>While the document is hidden, commands are paused or stretched according to their {@link
+ * HiddenTimerPolicy} when they are due. Paused commands wait outside the wheel until the document
+ * is visible again, so that a hidden page with only paused commands has no native timer armed.
+ */
+class TimerWheel {
+
+  /** A scheduled command, linked into the list of its slot. */
+  private static final class Entry {
+    RepeatingCommand cmd;
+    final int delayMs;
+    final boolean fixedPeriod;
+    final HiddenTimerPolicy hiddenPolicy;
+    double deadline;
+    int slot = -1;
+    Entry previous;
+    Entry next;
+    /* Removed from the token once the command is done, so that the token doesn't retain it. */
+    CancellationToken.Registration registration;
+
+    /** The deadline before it was stretched, or NaN. */
+    double unstretchedDeadline = Double.NaN;
+
+    Entry(RepeatingCommand cmd, int delayMs, boolean fixedPeriod, HiddenTimerPolicy hiddenPolicy) {
+      this.cmd = cmd;
+      this.delayMs = delayMs;
+      this.fixedPeriod = fixedPeriod;
+      this.hiddenPolicy = hiddenPolicy;
+    }
+  }
+
+  private static final int SLOT_BITS = 6;
+  static final int SLOTS = 1 << SLOT_BITS;
+  static final int LEVELS = 4;
+  private static final int SLOT_MASK = SLOTS - 1;
+
+  /**
+   * The number of ticks after which the wheel counts its ticks from 0 again, so that they keep
+   * fitting in an int, see {@link #rebase}. Deadlines in the wheel are at most SLOTS^LEVELS ticks
+   * ahead, far below the headroom left.
+   */
+  private static final int REBASE_TICK = 1 << 29;
+
+  /** The tolerance used until {@link #setTolerance} is called. */
+  static final int DEFAULT_TOLERANCE = 4;
+
+  /**
+   * The shortest delay of {@link HiddenTimerPolicy#STRETCH} commands while the document is hidden.
+   */
+  static final int HIDDEN_INTERVAL = 10000;
+
+  private final SetTimeoutCallbackFn onTimer = ignore -> advance();
+
+  private final Entry[] slots = new Entry[LEVELS * SLOTS];
+
+  /** Ticks are counted from this time, so that they fit in an int. */
+  private double startMillis;
+
+  private int tolerance = DEFAULT_TOLERANCE;
+  private int currentTick;
+  private int size;
+
+  private boolean timerArmed;
+  private double timerId;
+  private int timerTick;
+
+  private boolean advancing;
+
+  private HiddenTimerPolicy defaultHiddenPolicy = HiddenTimerPolicy.RUN;
+
+  /** The commands paused while the document is hidden, linked through {@link Entry#next}. */
+  private Entry paused;
+
+  /** Whether a command was stretched since the document was last visible. */
+  private boolean stretched;
+
+  private boolean listeningForVisibility;
+
+  TimerWheel() {
+    startMillis = now();
+  }
+
+  /** @return the number of commands in the wheel */
+  int size() {
+    return size;
+  }
+
+  /** @return the time within which deadlines are coalesced, in milliseconds */
+  int getTolerance() {
+    return tolerance;
+  }
+
+  /**
+   * Changes the time within which deadlines are coalesced. Commands that are already scheduled keep
+   * their deadlines.
+   *
+   * @param tolerance the length of a tick of the wheel, in milliseconds
+   */
+  void setTolerance(int tolerance) {
+    assert tolerance > 0 : "tolerance";
+    Entry entries = removeAll();
+    this.tolerance = tolerance;
+    rebase(entries, now());
+    armTimer();
+  }
+
+  /** @param policy the policy of the commands scheduled without one */
+  void setDefaultHiddenPolicy(HiddenTimerPolicy policy) {
+    this.defaultHiddenPolicy = policy;
+  }
+
+  void scheduleFixedDelay(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    scheduleFixedDelay(cmd, delayMs, defaultHiddenPolicy, token);
+  }
+
+  void scheduleFixedDelay(
+      RepeatingCommand cmd, int delayMs, HiddenTimerPolicy policy, CancellationToken token) {
+    schedule(new Entry(cmd, delayMs, false, policy), token);
+  }
+
+  void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    scheduleFixedPeriod(cmd, delayMs, defaultHiddenPolicy, token);
+  }
+
+  void scheduleFixedPeriod(
+      RepeatingCommand cmd, int delayMs, HiddenTimerPolicy policy, CancellationToken token) {
+    schedule(new Entry(cmd, delayMs, true, policy), token);
+  }
+
+  /** @return the number of commands paused while the document is hidden, for testing */
+  int getPausedCount() {
+    int count = 0;
+    for (Entry entry = paused; entry != null; entry = entry.next) {
+      if (entry.cmd != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** there for testing */
+  double now() {
+    return Duration.currentTimeMillis();
+  }
+
+  /** there for testing */
+  double setTimer(SetTimeoutCallbackFn callback, double delayMs) {
+    return DomGlobal.setTimeout(callback, delayMs);
+  }
+
+  /** there for testing */
+  void clearTimer(double timerId) {
+    DomGlobal.clearTimeout(timerId);
+  }
+
+  /** there for testing */
+  boolean isHidden() {
+    return SchedulerImpl.isDocumentHidden();
+  }
+
+  /** there for testing */
+  void listenForVisibilityChange() {
+    DomGlobal.document.addEventListener("visibilitychange", ignore -> onVisibilityChange());
+  }
+
+  /** Resumes the paused and stretched commands once the document is visible again. */
+  void onVisibilityChange() {
+    if (isHidden()) {
+      return;
+    }
+    double now = now();
+    if (stretched) {
+      stretched = false;
+      Entry entries = removeAll();
+      while (entries != null) {
+        Entry entry = entries;
+        entries = entry.next;
+        if (!Double.isNaN(entry.unstretchedDeadline)) {
+          // A deadline that has passed runs on the next tick
+          entry.deadline = entry.unstretchedDeadline;
+          entry.unstretchedDeadline = Double.NaN;
+        }
+        insert(entry, currentTick + 1);
+      }
+    }
+    Entry entries = paused;
+    paused = null;
+    while (entries != null) {
+      Entry entry = entries;
+      entries = entry.next;
+      if (entry.cmd == null) {
+        // Canceled while paused
+        continue;
+      }
+      if (entry.hiddenPolicy == HiddenTimerPolicy.PAUSE_SKIP) {
+        skipMissedRuns(entry, now);
+      }
+      insert(entry, currentTick + 1);
+    }
+    armTimer();
+  }
+
+  /** Runs the commands that are due, and arms the native timer for the next ones. */
+  void advance() {
+    timerArmed = false;
+    advancing = true;
+    double now = now();
+    if (size == 0) {
+      // Nothing to keep the ticks of, count them from now on
+      rebase(null, now);
+    } else if ((now - startMillis) / tolerance >= REBASE_TICK) {
+      // From the tick before now on, so that the commands due run on this one
+      rebase(removeAll(), now - tolerance);
+    }
+    int targetTick = (int) ((now - startMillis) / tolerance);
+    while (currentTick < targetTick) {
+      // Skip the ticks without work, so that a long suspension isn't stepped through tick by tick
+      int tick = nextTick();
+      if (tick > targetTick) {
+        currentTick = targetTick;
+        break;
+      }
+      currentTick = tick;
+      cascade();
+      Entry head;
+      while ((head = slots[currentTick & SLOT_MASK]) != null) {
+        unlink(head);
+        run(head);
+      }
+    }
+    advancing = false;
+    armTimer();
+  }
+
+  private void schedule(Entry entry, CancellationToken token) {
+    if (entry.hiddenPolicy != HiddenTimerPolicy.RUN && !listeningForVisibility) {
+      listeningForVisibility = true;
+      listenForVisibilityChange();
+    }
+    double now = now();
+    if (size == 0 && !advancing) {
+      // The ticks counted while the wheel was empty could be many
+      rebase(null, now);
+    }
+    entry.deadline = now + entry.delayMs;
+    insert(entry, currentTick + 1);
+    if (token != null) {
+      entry.registration =
+          token.onCancel(
+              () -> {
+                entry.cmd = null;
+                if (entry.slot >= 0) {
+                  unlink(entry);
+                  armTimer();
+                }
+              });
+    }
+    armTimer();
+  }
+
+  private void run(Entry entry) {
+    boolean hidden = entry.hiddenPolicy != HiddenTimerPolicy.RUN && isHidden();
+    if (hidden
+        && (entry.hiddenPolicy == HiddenTimerPolicy.PAUSE_CATCH_UP
+            || entry.hiddenPolicy == HiddenTimerPolicy.PAUSE_SKIP)) {
+      entry.next = paused;
+      paused = entry;
+      return;
+    }
+    boolean repeat;
+    try {
+      repeat = entry.cmd.execute();
+    } catch (Throwable e) {
+      // Like a native timer, a command that threw is not run again
+      GWT.reportUncaughtException(e);
+      repeat = false;
+    }
+    // The command may have been canceled while it ran
+    if (!repeat || entry.cmd == null) {
+      if (entry.registration != null) {
+        entry.registration.remove();
+        entry.registration = null;
+      }
+      return;
+    }
+    double now = now();
+    skipMissedRuns(entry, now);
+    if (hidden && entry.delayMs < HIDDEN_INTERVAL) {
+      // Only STRETCH commands run while hidden
+      entry.unstretchedDeadline = entry.deadline;
+      entry.deadline = now + HIDDEN_INTERVAL;
+      stretched = true;
+    } else {
+      entry.unstretchedDeadline = Double.NaN;
+    }
+    insert(entry, currentTick + 1);
+  }
+
+  /** Moves the deadline of <code>entry</code> to its next run after <code>now</code>. */
+  private static void skipMissedRuns(Entry entry, double now) {
+    if (entry.fixedPeriod) {
+      // Skip the periods that have been missed, but keep the phase
+      do {
+        entry.deadline += entry.delayMs;
+      } while (entry.deadline <= now && entry.delayMs > 0);
+    } else {
+      entry.deadline = now + entry.delayMs;
+    }
+  }
+
+  /** Moves the commands of the higher level slots that start at the current tick down. */
+  private void cascade() {
+    for (int level = LEVELS - 1; level > 0; level--) {
+      int shift = level * SLOT_BITS;
+      if ((currentTick & ((1 << shift) - 1)) != 0) {
+        continue;
+      }
+      int slot = level * SLOTS + ((currentTick >>> shift) & SLOT_MASK);
+      Entry entries = slots[slot];
+      slots[slot] = null;
+      while (entries != null) {
+        Entry entry = entries;
+        entries = entry.next;
+        size--;
+        // Commands due on the current tick still run on it
+        insert(entry, currentTick);
+      }
+    }
+  }
+
+  /**
+   * Links <code>entry</code> into the slot of its deadline, but not before <code>minTick</code>.
+   */
+  private void insert(Entry entry, int minTick) {
+    // Never earlier than the deadline
+    int tick = (int) Math.ceil((entry.deadline - startMillis) / tolerance);
+    tick = Math.max(tick, minTick);
+
+    int level = 0;
+    while (level < LEVELS - 1
+        && (tick >>> (level * SLOT_BITS)) - (currentTick >>> (level * SLOT_BITS)) >= SLOTS) {
+      level++;
+    }
+    int shift = level * SLOT_BITS;
+    if ((tick >>> shift) - (currentTick >>> shift) >= SLOTS) {
+      // Beyond the range of the wheel, wait in the last slot and cascade again from there
+      tick = ((currentTick >>> shift) + SLOT_MASK) << shift;
+    }
+    int slot = level * SLOTS + ((tick >>> shift) & SLOT_MASK);
+
+    entry.slot = slot;
+    entry.previous = null;
+    entry.next = slots[slot];
+    if (entry.next != null) {
+      entry.next.previous = entry;
+    }
+    slots[slot] = entry;
+    size++;
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.previous != null) {
+      entry.previous.next = entry.next;
+    } else {
+      slots[entry.slot] = entry.next;
+    }
+    if (entry.next != null) {
+      entry.next.previous = entry.previous;
+    }
+    entry.slot = -1;
+    entry.previous = null;
+    entry.next = null;
+    size--;
+  }
+
+  /**
+   * Counts the ticks from <code>startMillis</code> on, and inserts <code>entries</code> again.
+   *
+   * @param entries the commands removed from the wheel, linked through {@link Entry#next}
+   */
+  private void rebase(Entry entries, double startMillis) {
+    this.startMillis = startMillis;
+    currentTick = 0;
+    while (entries != null) {
+      Entry entry = entries;
+      entries = entry.next;
+      insert(entry, currentTick + 1);
+    }
+  }
+
+  /** Empties the wheel, returning its commands linked through {@link Entry#next}. */
+  private Entry removeAll() {
+    Entry entries = null;
+    for (int slot = 0; slot < slots.length; slot++) {
+      Entry entry = slots[slot];
+      while (entry != null) {
+        Entry next = entry.next;
+        entry.next = entries;
+        entries = entry;
+        entry = next;
+      }
+      slots[slot] = null;
+    }
+    size = 0;
+    return entries;
+  }
+
+  /** Makes sure the native timer fires on the next tick that has work, and only then. */
+  private void armTimer() {
+    if (advancing) {
+      return;
+    }
+    if (size == 0) {
+      if (timerArmed) {
+        clearTimer(timerId);
+        timerArmed = false;
+      }
+      return;
+    }
+    int tick = nextTick();
+    if (timerArmed) {
+      if (timerTick <= tick) {
+        return;
+      }
+      clearTimer(timerId);
+    }
+    timerArmed = true;
+    timerTick = tick;
+    timerId = setTimer(onTimer, Math.max(0, startMillis + (double) tick * tolerance - now()));
+  }
+
+  /**
+   * @return the next tick on which a command is due, or on which commands are moved down from a
+   *     higher level
+   */
+  private int nextTick() {
+    int next = Integer.MAX_VALUE;
+    for (int level = 0; level < LEVELS; level++) {
+      int shift = level * SLOT_BITS;
+      int position = currentTick >>> shift;
+      for (int i = 1; i <= SLOTS; i++) {
+        if (slots[level * SLOTS + ((position + i) & SLOT_MASK)] != null) {
+          next = Math.min(next, (position + i) << shift);
+          break;
+        }
+      }
+    }
+    return next;
+  }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.testing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.gwtproject.core.client.Scheduler;
+
+/**
+ * A Scheduler for tests, which only runs commands when the test tells it to, on a virtual clock.
+ * Tests using it run synchronously and deterministically, without real timers or waiting, both on
+ * the JVM and in the browser.
+ *
+ * <p>Commands run in the same order as with the browser's scheduler:
+ *
+ * <ul>
+ *   <li>{@link #flush()} runs the deferred commands that were queued when it started, user-blocking
+ *       ones first and background ones last, then invokes each incremental command once, and then
+ *       runs the finally commands. Since no time passes, each invocation of an incremental command
+ *       stands for a full time slice.
+ *   <li>{@link #flushFinallyCommands()} runs the finally commands, as the browser does at the end
+ *       of the current event.
+ *   <li>{@link #runUntilIdle()} flushes until no deferred, incremental or finally commands are
+ *       left, and runs the fixed-delay and fixed-period commands that are due.
+ *   <li>{@link #advanceBy(double)} moves the clock forward, running the commands that become due in
+ *       order of their due time, and those scheduled at the same time in the order they were
+ *       scheduled. Each timer runs in an event of its own, followed by {@link #runUntilIdle()}.
+ *   <li>{@link #runEntry(ScheduledCommand)} runs the entry commands, the given command, and the
+ *       finally commands. Entry commands also run at the start of each flush and timer.
+ * </ul>
+ *
+ * <p>Exceptions thrown by commands are not caught: they are thrown by the method running the
+ * command, and the commands that did not run yet stay queued. As in the browser and on the JVM, an
+ * incremental command that throws is done, and is not invoked again.
+ *
+ * <p>Only the scheduler's clock is virtual: {@link org.gwtproject.core.client.Duration} still
+ * measures real time. The deadlines passed to idle commands are on the virtual clock.
+ *
+ * <pre>
+ * VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+ * scheduler.install();
+ * try {
+ *   widget.refreshIn(500);
+ *   scheduler.advanceBy(500);
+ *   assertTrue(widget.isRefreshed());
+ * } finally {
+ *   scheduler.uninstall();
+ * }
+ * </pre>
+ */
+public class VirtualTimeScheduler extends Scheduler {
+
+  /** The default of {@link #setMaxCommandsPerRun(int)}. */
+  public static final int DEFAULT_MAX_COMMANDS_PER_RUN = 100000;
+
+  /** A queued command, and for timers when it is due. */
+  private static final class Task implements Comparable<Task> {
+    private final ScheduledCommand scheduled;
+    private final RepeatingCommand repeating;
+    private final int delayMillis;
+    private final boolean fixedPeriod;
+    private double dueMillis;
+    private long sequence;
+    private CancellationToken.Registration registration;
+    private boolean canceled;
+
+    Task(ScheduledCommand cmd) {
+      this(cmd, null, 0, false);
+    }
+
+    Task(RepeatingCommand cmd) {
+      this(null, cmd, 0, false);
+    }
+
+    Task(RepeatingCommand cmd, int delayMillis, boolean fixedPeriod) {
+      this(null, cmd, delayMillis, fixedPeriod);
+    }
+
+    private Task(
+        ScheduledCommand scheduled,
+        RepeatingCommand repeating,
+        int delayMillis,
+        boolean fixedPeriod) {
+      this.scheduled = scheduled;
+      this.repeating = repeating;
+      this.delayMillis = delayMillis;
+      this.fixedPeriod = fixedPeriod;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      int compare = Double.compare(dueMillis, other.dueMillis);
+      return compare != 0 ? compare : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final Deque<Task> userBlockingCommands = new ArrayDeque<>();
+  private final Deque<Task> deferredCommands = new ArrayDeque<>();
+  private final Deque<Task> backgroundCommands = new ArrayDeque<>();
+  private final Deque<Task> entryCommands = new ArrayDeque<>();
+  private final Deque<Task> finallyCommands = new ArrayDeque<>();
+  private final List<Task> incrementalCommands = new ArrayList<>();
+
+  /** Fixed-delay and fixed-period commands, ordered by due time. */
+  private final PriorityQueue<Task> timers = new PriorityQueue<>();
+
+  private double currentTimeMillis;
+  private long nextSequence;
+  private int maxCommandsPerRun = DEFAULT_MAX_COMMANDS_PER_RUN;
+  private int executedCount;
+  private int commandsThisRun;
+
+  /** Whether a flush, a timer or an entry is running, see {@link #runEntry(ScheduledCommand)}. */
+  private boolean inEvent;
+
+  /** @return the time on the virtual clock, which starts at 0 */
+  @Override
+  public double currentTimeMillis() {
+    return currentTimeMillis;
+  }
+
+  /** @return the number of commands invoked so far, counting each invocation */
+  public int getExecutedCount() {
+    return executedCount;
+  }
+
+  /** @return the number of fixed-delay and fixed-period commands that are scheduled */
+  public int getTimerCount() {
+    return timers.size();
+  }
+
+  /** @return the time the next fixed-delay or fixed-period command is due, if any */
+  public double getNextTimerMillis() {
+    return timers.isEmpty() ? Double.POSITIVE_INFINITY : timers.peek().dueMillis;
+  }
+
+  /**
+   * @return whether no deferred, incremental or finally commands are queued, and no timer is due
+   */
+  public boolean isIdle() {
+    return !hasQueuedCommands() && getNextTimerMillis() > currentTimeMillis;
+  }
+
+  /**
+   * Sets how many commands {@link #runUntilIdle()} and {@link #advanceBy(double)} may invoke before
+   * they give up, so that a command that repeats forever fails the test instead of hanging it.
+   *
+   * @param maxCommandsPerRun the number of invocations
+   */
+  public void setMaxCommandsPerRun(int maxCommandsPerRun) {
+    assert maxCommandsPerRun > 0 : "maxCommandsPerRun must be positive";
+    this.maxCommandsPerRun = maxCommandsPerRun;
+  }
+
+  /** Makes {@link Scheduler#get()} return this scheduler, see {@link Scheduler#install}. */
+  public void install() {
+    Scheduler.install(this);
+  }
+
+  /** Makes {@link Scheduler#get()} return the default scheduler again. */
+  public void uninstall() {
+    Scheduler.install(null);
+  }
+
+  /**
+   * Runs the deferred commands that are queued, then each incremental command once, and then the
+   * finally commands.
+   */
+  public void flush() {
+    commandsThisRun = 0;
+    runFlush();
+  }
+
+  /** Runs the finally commands that are queued, and those they schedule. */
+  public void flushFinallyCommands() {
+    commandsThisRun = 0;
+    runFinallyCommands();
+  }
+
+  /**
+   * Runs commands until no deferred, incremental or finally commands are queued, and no timer is
+   * due. The clock does not move.
+   *
+   * @throws IllegalStateException if more than {@link #setMaxCommandsPerRun(int)} commands ran
+   */
+  public void runUntilIdle() {
+    commandsThisRun = 0;
+    runUntilIdle(currentTimeMillis);
+  }
+
+  /**
+   * Moves the clock forward by <code>millis</code>, and runs the commands that become due on the
+   * way, see {@link #runUntilIdle()}.
+   *
+   * @param millis the time to advance the clock by
+   * @throws IllegalStateException if more than {@link #setMaxCommandsPerRun(int)} commands ran
+   */
+  public void advanceBy(double millis) {
+    assert millis >= 0 : "millis must not be negative";
+    commandsThisRun = 0;
+    runUntilIdle(currentTimeMillis + millis);
+  }
+
+  /**
+   * Runs the entry commands, then <code>cmd</code>, and then the finally commands, as the browser's
+   * scheduler does for an entry point. Called from a command, it only runs <code>cmd</code>.
+   */
+  @Override
+  public void runEntry(ScheduledCommand cmd) {
+    if (inEvent) {
+      execute(new Task(cmd));
+      return;
+    }
+    commandsThisRun = 0;
+    runEvent(() -> execute(new Task(cmd)));
+  }
+
+  private void runFlush() {
+    int userBlockingCount = userBlockingCommands.size();
+    int deferredCount = deferredCommands.size();
+    int backgroundCount = backgroundCommands.size();
+    runEvent(
+        () -> {
+          runScheduledTasks(userBlockingCommands, userBlockingCount);
+          runScheduledTasks(deferredCommands, deferredCount);
+          runScheduledTasks(backgroundCommands, backgroundCount);
+          runRepeatingTasks();
+        });
+  }
+
+  /** Runs <code>body</code> between the entry and the finally commands. */
+  private void runEvent(ScheduledCommand body) {
+    inEvent = true;
+    try {
+      runEntryCommands();
+      body.execute();
+    } finally {
+      try {
+        runFinallyCommands();
+      } finally {
+        inEvent = false;
+      }
+    }
+  }
+
+  private void runFinallyCommands() {
+    // Repeating finally commands run again at the end of the next event
+    runQueue(finallyCommands);
+  }
+
+  private void runEntryCommands() {
+    // Repeating entry commands run again at the start of the next event
+    runQueue(entryCommands);
+  }
+
+  /** Runs the commands of <code>tasks</code>, and those they add, keeping the repeating ones. */
+  private void runQueue(Deque<Task> tasks) {
+    List<Task> rescheduled = new ArrayList<>();
+    try {
+      while (!tasks.isEmpty()) {
+        Task task = tasks.poll();
+        if (execute(task)) {
+          rescheduled.add(task);
+        }
+      }
+    } finally {
+      tasks.addAll(rescheduled);
+    }
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd) {
+    deferredCommands.add(new Task(cmd));
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority) {
+    queueFor(priority).add(new Task(cmd));
+  }
+
+  @Override
+  public void scheduleDeferred(ScheduledCommand cmd, Priority priority, CancellationToken token) {
+    schedule(queueFor(priority), new Task(cmd), token);
+  }
+
+  @Override
+  public void scheduleEntry(RepeatingCommand cmd) {
+    entryCommands.add(new Task(cmd));
+  }
+
+  @Override
+  public void scheduleEntry(ScheduledCommand cmd) {
+    entryCommands.add(new Task(cmd));
+  }
+
+  @Override
+  public void scheduleFinally(RepeatingCommand cmd) {
+    finallyCommands.add(new Task(cmd));
+  }
+
+  @Override
+  public void scheduleFinally(RepeatingCommand cmd, CancellationToken token) {
+    schedule(finallyCommands, new Task(cmd), token);
+  }
+
+  @Override
+  public void scheduleFinally(ScheduledCommand cmd) {
+    finallyCommands.add(new Task(cmd));
+  }
+
+  @Override
+  public void scheduleFinally(ScheduledCommand cmd, CancellationToken token) {
+    schedule(finallyCommands, new Task(cmd), token);
+  }
+
+  @Override
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs) {
+    addTimer(new Task(cmd, delayMs, false), currentTimeMillis + delayMs);
+  }
+
+  @Override
+  public void scheduleFixedDelay(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    if (!token.isCanceled()) {
+      Task timer = new Task(cmd, delayMs, false);
+      addTimer(timer, currentTimeMillis + delayMs);
+      timer.registration = token.onCancel(() -> remove(timer));
+    }
+  }
+
+  @Override
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs) {
+    addTimer(new Task(cmd, delayMs, true), currentTimeMillis + delayMs);
+  }
+
+  @Override
+  public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs, CancellationToken token) {
+    if (!token.isCanceled()) {
+      Task timer = new Task(cmd, delayMs, true);
+      addTimer(timer, currentTimeMillis + delayMs);
+      timer.registration = token.onCancel(() -> remove(timer));
+    }
+  }
+
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd) {
+    // Push repeating commands onto the same initial queue for relative order
+    deferredCommands.add(new Task(cmd));
+  }
+
+  @Override
+  public void scheduleIncremental(RepeatingCommand cmd, Priority priority) {
+    queueFor(priority).add(new Task(cmd));
+  }
+
+  @Override
+  public void scheduleIncremental(
+      RepeatingCommand cmd, Priority priority, CancellationToken token) {
+    schedule(queueFor(priority), new Task(cmd), token);
+  }
+
+  /** Queues a task that is taken out of its queue, or timers, as soon as the token is canceled. */
+  private void schedule(Deque<Task> queue, Task task, CancellationToken token) {
+    if (!token.isCanceled()) {
+      queue.add(task);
+      task.registration = token.onCancel(() -> remove(task));
+    }
+  }
+
+  /** Removes a canceled task from wherever it is queued; a running task is not run again. */
+  private void remove(Task task) {
+    task.canceled = true;
+    if (!timers.remove(task)
+        && !userBlockingCommands.remove(task)
+        && !deferredCommands.remove(task)
+        && !backgroundCommands.remove(task)
+        && !entryCommands.remove(task)
+        && !finallyCommands.remove(task)) {
+      incrementalCommands.remove(task);
+    }
+  }
+
+  private boolean hasQueuedCommands() {
+    return !userBlockingCommands.isEmpty()
+        || !deferredCommands.isEmpty()
+        || !backgroundCommands.isEmpty()
+        || !incrementalCommands.isEmpty()
+        || !finallyCommands.isEmpty();
+  }
+
+  private Deque<Task> queueFor(Priority priority) {
+    if (priority == Priority.USER_BLOCKING) {
+      return userBlockingCommands;
+    } else if (priority == Priority.BACKGROUND) {
+      return backgroundCommands;
+    }
+    return deferredCommands;
+  }
+
+  /** Runs the queued commands and then the timers due until <code>targetMillis</code>. */
+  private void runUntilIdle(double targetMillis) {
+    // The current event ends, and with it the finally commands scheduled by the test
+    runFinallyCommands();
+    while (true) {
+      while (hasQueuedCommands()) {
+        runFlush();
+      }
+      if (timers.isEmpty() || timers.peek().dueMillis > targetMillis) {
+        break;
+      }
+      Task timer = timers.poll();
+      currentTimeMillis = Math.max(currentTimeMillis, timer.dueMillis);
+      runEvent(
+          () -> {
+            if (execute(timer)) {
+              // A period of 0 isn't allowed, but runs the command as often as possible in the
+              // browser
+              int delayMillis = Math.max(1, timer.delayMillis);
+              addTimer(
+                  timer,
+                  timer.fixedPeriod
+                      ? timer.dueMillis + delayMillis
+                      : currentTimeMillis + delayMillis);
+            }
+          });
+    }
+    currentTimeMillis = Math.max(currentTimeMillis, targetMillis);
+  }
+
+  private void runScheduledTasks(Deque<Task> tasks, int count) {
+    for (int i = 0; i < count; i++) {
+      Task task = tasks.poll();
+      if (execute(task)) {
+        incrementalCommands.add(task);
+      }
+    }
+  }
+
+  private void runRepeatingTasks() {
+    List<Task> round = new ArrayList<>(incrementalCommands);
+    incrementalCommands.clear();
+    int i = 0;
+    try {
+      for (; i < round.size(); i++) {
+        Task task = round.get(i);
+        if (execute(task)) {
+          incrementalCommands.add(task);
+        }
+      }
+    } finally {
+      // Keep the commands that did not run when one throws
+      for (i++; i < round.size(); i++) {
+        incrementalCommands.add(round.get(i));
+      }
+    }
+  }
+
+  /** Queues a timer after the timers due before or at the same time. */
+  private void addTimer(Task timer, double dueMillis) {
+    timer.dueMillis = dueMillis;
+    timer.sequence = nextSequence++;
+    timers.add(timer);
+  }
+
+  /**
+   * @return whether the task is a RepeatingCommand that wants to repeat, and was not canceled while
+   *     it ran
+   */
+  private boolean execute(Task task) {
+    if (task.canceled) {
+      // Canceled by an earlier command of the same round
+      return false;
+    }
+    countExecution();
+    boolean repeat;
+    if (task.repeating != null) {
+      repeat = task.repeating.execute() && !task.canceled;
+    } else {
+      task.scheduled.execute();
+      repeat = false;
+    }
+    if (!repeat && task.registration != null) {
+      task.registration.remove();
+    }
+    return repeat;
+  }
+
+  private void countExecution() {
+    executedCount++;
+    if (++commandsThisRun > maxCommandsPerRun) {
+      commandsThisRun = 0;
+      throw new IllegalStateException(
+          "Still not idle after "
+              + maxCommandsPerRun
+              + " commands, a command probably repeats forever");
+    }
+  }
+}
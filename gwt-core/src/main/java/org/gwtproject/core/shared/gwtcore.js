@@ -16,4 +16,7 @@
 goog.provide('gwtcore');
 
 /** @define {string} */
-var superdevmode = goog.define("superdevmode", goog.DEBUG ? "on" : "off");
\ No newline at end of file
+var superdevmode = goog.define("superdevmode", goog.DEBUG ? "on" : "off");
+
+/** @define {string} */
+var schedulermetrics = goog.define("gwt.scheduler.metrics", "false");
\ No newline at end of file
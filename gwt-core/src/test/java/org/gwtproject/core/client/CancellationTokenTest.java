@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import static org.junit.Assert.assertEquals;
+
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.junit.Test;
+
+public class CancellationTokenTest {
+  private final StringBuilder order = new StringBuilder();
+
+  @Test
+  public void testCancel() {
+    CancellationToken token = new CancellationToken();
+    token.onCancel(() -> order.append("a "));
+    token.onCancel(() -> order.append("b "));
+    token.cancel();
+    token.cancel();
+    assertEquals("a b ", order.toString());
+
+    // Commands registered once canceled run right away
+    token.onCancel(() -> order.append("c "));
+    assertEquals("a b c ", order.toString());
+  }
+
+  @Test
+  public void testRemove() {
+    CancellationToken token = new CancellationToken();
+    CancellationToken.Registration a = token.onCancel(() -> order.append("a "));
+    CancellationToken.Registration b = token.onCancel(() -> order.append("b "));
+    CancellationToken.Registration c = token.onCancel(() -> order.append("c "));
+    token.onCancel(() -> order.append("d "));
+    b.remove();
+    b.remove();
+    a.remove();
+    token.cancel();
+    assertEquals("c d ", order.toString());
+
+    // Removing once canceled does nothing
+    c.remove();
+    token.onCancel(() -> order.append("e ")).remove();
+    assertEquals("c d e ", order.toString());
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.testing.VirtualTimeScheduler;
+import org.junit.Test;
+
+public class DebouncerTest {
+  private final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+  private final List<Double> runs = new ArrayList<>();
+  private final Debouncer debouncer =
+      new Debouncer(scheduler, () -> runs.add(scheduler.currentTimeMillis()), 100);
+
+  @Test
+  public void testTrailing() {
+    callAt(0, 50, 90);
+    assertTrue(runs.isEmpty());
+    assertTrue(debouncer.isPending());
+
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(190d), runs);
+    assertFalse(debouncer.isPending());
+    assertEquals(0, scheduler.getTimerCount());
+  }
+
+  @Test
+  public void testLeading() {
+    debouncer.setLeading(true);
+    debouncer.setTrailing(false);
+    callAt(0, 50);
+    assertEquals(Arrays.asList(0d), runs);
+
+    scheduler.advanceBy(200);
+    callAt(250);
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(0d, 250d), runs);
+  }
+
+  @Test
+  public void testLeadingAndTrailing() {
+    debouncer.setLeading(true);
+    callAt(0);
+    scheduler.advanceBy(1000);
+    // A single call only runs the command on the leading edge
+    assertEquals(Arrays.asList(0d), runs);
+
+    callAt(1000, 1050);
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(0d, 1000d, 1150d), runs);
+  }
+
+  @Test
+  public void testMaxWait() {
+    debouncer.setMaxWaitMillis(150);
+    callAt(0, 50, 100, 150, 200, 250, 300, 350, 400);
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(150d, 300d, 450d), runs);
+  }
+
+  @Test
+  public void testMaxWaitShorterThanWait() {
+    debouncer.setMaxWaitMillis(50);
+    callAt(0, 40, 80);
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(50d, 100d), runs);
+  }
+
+  @Test
+  public void testSingleTimer() {
+    for (int i = 0; i < 1000; i++) {
+      debouncer.call();
+      assertEquals(1, scheduler.getTimerCount());
+    }
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(100d), runs);
+  }
+
+  @Test
+  public void testCancellation() {
+    CancellationToken token = new CancellationToken();
+    debouncer.setCancellationToken(token);
+    callAt(0);
+    token.cancel();
+    assertFalse(debouncer.isPending());
+    assertEquals(0, scheduler.getTimerCount());
+
+    callAt(10);
+    scheduler.advanceBy(1000);
+    assertTrue(runs.isEmpty());
+  }
+
+  @Test
+  public void testReplacedCancellationToken() {
+    CancellationToken first = new CancellationToken();
+    CancellationToken second = new CancellationToken();
+    debouncer.setCancellationToken(first);
+    callAt(0);
+    debouncer.setCancellationToken(second);
+
+    // The Debouncer no longer listens to the token it was tied to before
+    first.cancel();
+    assertTrue(debouncer.isPending());
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(100d), runs);
+
+    callAt(1000);
+    second.cancel();
+    assertFalse(debouncer.isPending());
+    assertEquals(0, scheduler.getTimerCount());
+  }
+
+  @Test
+  public void testFlush() {
+    callAt(0, 50);
+    debouncer.flush();
+    assertEquals(Arrays.asList(50d), runs);
+    assertFalse(debouncer.isPending());
+
+    // Nothing to run
+    debouncer.flush();
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(50d), runs);
+  }
+
+  private void callAt(double... times) {
+    for (double time : times) {
+      scheduler.advanceBy(time - scheduler.currentTimeMillis());
+      debouncer.call();
+    }
+  }
+}
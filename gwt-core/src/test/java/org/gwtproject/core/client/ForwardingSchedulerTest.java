@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.FlushMode;
+import org.gwtproject.core.client.Scheduler.Priority;
+import org.gwtproject.core.client.impl.JreSchedulerImpl;
+import org.gwtproject.core.client.testing.VirtualTimeScheduler;
+import org.junit.After;
+import org.junit.Test;
+
+public class ForwardingSchedulerTest {
+
+  /** Records the commands scheduled through it. */
+  private static class RecordingScheduler extends ForwardingScheduler {
+    private final List<String> log;
+    private final String name;
+
+    RecordingScheduler(Scheduler delegate, List<String> log, String name) {
+      super(delegate);
+      this.log = log;
+      this.name = name;
+    }
+
+    @Override
+    public void scheduleDeferred(ScheduledCommand cmd) {
+      log.add(name);
+      super.scheduleDeferred(cmd);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    Scheduler.removeDecorators();
+    Scheduler.install(null);
+  }
+
+  @Test
+  public void testForwards() {
+    VirtualTimeScheduler delegate = new VirtualTimeScheduler();
+    ForwardingScheduler scheduler = new ForwardingScheduler(delegate);
+    assertSame(delegate, scheduler.getDelegate());
+    List<String> order = new ArrayList<>();
+
+    CancellationToken token = new CancellationToken();
+    scheduler.scheduleDeferred(() -> order.add("deferred"), Priority.BACKGROUND);
+    scheduler.scheduleDeferred(() -> order.add("user-blocking"), Priority.USER_BLOCKING, token);
+    scheduler.scheduleIncremental(() -> !order.add("incremental"), 2);
+    scheduler.scheduleFinally(
+        () -> {
+          order.add("finally");
+        },
+        token);
+    scheduler.scheduleFixedDelay(() -> !order.add("delay"), 10, token);
+    scheduler.scheduleFixedPeriod(() -> !order.add("period"), 20);
+    delegate.advanceBy(20);
+
+    assertEquals(
+        Arrays.asList("finally", "user-blocking", "incremental", "deferred", "delay", "period"),
+        order);
+
+    order.clear();
+    scheduler.scheduleEntry(
+        () -> {
+          order.add("entry");
+        });
+    scheduler.entry(() -> order.add("callback")).execute();
+    assertEquals(Arrays.asList("entry", "callback"), order);
+  }
+
+  @Test
+  public void testDecorate() {
+    List<String> log = new ArrayList<>();
+    Scheduler.decorate(scheduler -> new RecordingScheduler(scheduler, log, "inner"));
+    Scheduler.decorate(scheduler -> new RecordingScheduler(scheduler, log, "outer"));
+
+    Scheduler scheduler = Scheduler.get();
+    assertSame(scheduler, Scheduler.get());
+    // Both flush modes share the JVM implementation, and so its decorators
+    assertSame(scheduler, Scheduler.get(FlushMode.ANIMATION_FRAME));
+    ForwardingScheduler outer = (ForwardingScheduler) scheduler;
+    ForwardingScheduler inner = (ForwardingScheduler) outer.getDelegate();
+    assertSame(JreSchedulerImpl.INSTANCE, inner.getDelegate());
+
+    scheduler.scheduleDeferred(() -> {});
+    assertEquals(Arrays.asList("outer", "inner"), log);
+  }
+
+  @Test
+  public void testDecorateConcurrently() throws InterruptedException {
+    Scheduler.decorate(scheduler -> new ForwardingScheduler(scheduler));
+    Scheduler[] schedulers = new Scheduler[8];
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[schedulers.length];
+    for (int i = 0; i < threads.length; i++) {
+      int index = i;
+      threads[i] =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                schedulers[index] = Scheduler.get(FlushMode.ANIMATION_FRAME);
+              });
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // The default implementation is decorated once, whichever thread asks first
+    for (Scheduler scheduler : schedulers) {
+      assertSame(Scheduler.get(), scheduler);
+    }
+  }
+
+  @Test
+  public void testInstalledIsNotDecorated() {
+    VirtualTimeScheduler installed = new VirtualTimeScheduler();
+    Scheduler.decorate(scheduler -> new ForwardingScheduler(scheduler));
+    Scheduler.install(installed);
+    assertSame(installed, Scheduler.get());
+
+    Scheduler.install(null);
+    assertTrue(Scheduler.get() instanceof ForwardingScheduler);
+  }
+}
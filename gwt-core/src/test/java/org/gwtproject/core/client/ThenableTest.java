@@ -0,0 +1,176 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.gwtproject.core.client.Scheduler.ComputedCommand;
+import org.gwtproject.core.client.testing.VirtualTimeScheduler;
+import org.junit.Test;
+
+public class ThenableTest {
+  private final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+  private final List<String> order = new ArrayList<>();
+
+  /** Records the outcome of a Thenable. */
+  private class Recorder implements Callback<Object, Throwable> {
+    @Override
+    public void onFailure(Throwable reason) {
+      order.add("failure " + reason.getMessage());
+    }
+
+    @Override
+    public void onSuccess(Object result) {
+      order.add("success " + result);
+    }
+  }
+
+  @Test
+  public void testChainRunsInOneFlush() {
+    Thenable<Integer> result =
+        scheduler
+            .computeDeferred(() -> 1)
+            .then(value -> value + 1)
+            .thenCompose(value -> scheduler.computeFinally(() -> value * 10));
+    scheduler.scheduleDeferred(() -> order.add("other deferred"));
+    assertFalse(result.isDone());
+
+    result.whenDone(new Recorder());
+    scheduler.flush();
+    assertEquals(Arrays.asList("other deferred", "success 20"), order);
+    // The computations took no deferred commands of their own
+    assertEquals(3, scheduler.getExecutedCount());
+    assertTrue(scheduler.isIdle());
+  }
+
+  @Test
+  public void testRejection() {
+    Thenable<String> result =
+        scheduler
+            .computeDeferred(
+                () -> {
+                  throw new IllegalStateException("command");
+                })
+            .then(value -> "not called");
+    result.whenDone(new Recorder());
+    Thenable<String> recovered = result.recover(e -> "recovered from " + e.getMessage());
+    recovered.whenDone(new Recorder());
+
+    scheduler.runUntilIdle();
+    assertTrue(result.isRejected());
+    assertFalse(recovered.isRejected());
+    assertEquals(Arrays.asList("failure command", "success recovered from command"), order);
+
+    // Exceptions thrown by callbacks reject the next Thenable
+    Thenable.resolved("value")
+        .then(
+            value -> {
+              throw new IllegalArgumentException(value);
+            })
+        .whenDone(new Recorder());
+    assertEquals("failure value", order.get(2));
+  }
+
+  @Test
+  public void testThrowingCallback() {
+    Thread thread = Thread.currentThread();
+    Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+    thread.setUncaughtExceptionHandler((t, e) -> order.add("uncaught " + e.getMessage()));
+    try {
+      Thenable<String> result = scheduler.computeDeferred(() -> "value");
+      result.whenDone(
+          new Recorder() {
+            @Override
+            public void onSuccess(Object result) {
+              throw new IllegalStateException("callback");
+            }
+          });
+      // The callbacks after the one that threw are called, and chained Thenables settle
+      Thenable<String> next = result.then(value -> value + " again");
+      next.whenDone(new Recorder());
+
+      scheduler.runUntilIdle();
+      assertTrue(next.isDone());
+      assertEquals(Arrays.asList("uncaught callback", "success value again"), order);
+    } finally {
+      thread.setUncaughtExceptionHandler(handler);
+    }
+  }
+
+  @Test
+  public void testComputeDeferredAll() {
+    List<ComputedCommand<String>> cmds = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      String name = "cmd " + i;
+      cmds.add(
+          () -> {
+            order.add(name);
+            return name;
+          });
+    }
+    scheduler.scheduleDeferred(() -> order.add("before"));
+    Thenable<List<String>> result = scheduler.computeDeferredAll(cmds);
+    scheduler.scheduleDeferred(() -> order.add("after"));
+    result.whenDone(new Recorder());
+
+    scheduler.flush();
+    assertEquals(
+        Arrays.asList(
+            "before", "cmd 0", "cmd 1", "cmd 2", "success [cmd 0, cmd 1, cmd 2]", "after"),
+        order);
+    // A single deferred command for the whole batch
+    assertEquals(3, scheduler.getExecutedCount());
+  }
+
+  @Test
+  public void testAll() {
+    Thenable<Integer> first = new Thenable<>();
+    Thenable<Integer> second = new Thenable<>();
+    Thenable<List<Integer>> all = Thenable.all(Arrays.asList(first, second));
+    all.whenDone(new Recorder());
+
+    second.resolve(2);
+    assertFalse(all.isDone());
+    first.resolve(1);
+    assertEquals(Arrays.asList("success [1, 2]"), order);
+
+    Thenable.all(Collections.<Thenable<Integer>>emptyList()).whenDone(new Recorder());
+    RuntimeException error = new RuntimeException("rejected");
+    Thenable.all(Arrays.asList(new Thenable<Integer>(), Thenable.<Integer>rejected(error)))
+        .whenDone(new Recorder());
+    assertEquals(Arrays.asList("success [1, 2]", "success []", "failure rejected"), order);
+  }
+
+  @Test
+  public void testCallbacksAfterDone() {
+    Thenable<String> thenable = Thenable.resolved("done");
+    assertTrue(thenable.isDone());
+    thenable.whenDone(new Recorder());
+    assertEquals(Arrays.asList("success done"), order);
+
+    // Completing again has no effect
+    thenable.resolve("again");
+    thenable.reject(new RuntimeException());
+    thenable.whenDone(new Recorder());
+    assertEquals(Arrays.asList("success done", "success done"), order);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.testing.VirtualTimeScheduler;
+import org.junit.Test;
+
+public class ThrottlerTest {
+  private final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+  private final List<Double> runs = new ArrayList<>();
+  private final Throttler throttler =
+      new Throttler(scheduler, () -> runs.add(scheduler.currentTimeMillis()), 100);
+
+  @Test
+  public void testLeadingAndTrailing() {
+    callAt(0, 10, 20);
+    assertEquals(Arrays.asList(0d), runs);
+    assertTrue(throttler.isPending());
+
+    callAt(250);
+    assertEquals(Arrays.asList(0d, 100d, 250d), runs);
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(0d, 100d, 250d), runs);
+    assertEquals(0, scheduler.getTimerCount());
+  }
+
+  @Test
+  public void testSteadyCalls() {
+    for (int time = 0; time <= 500; time += 10) {
+      callAt(time);
+      assertTrue(scheduler.getTimerCount() <= 1);
+    }
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(0d, 100d, 200d, 300d, 400d, 500d, 600d), runs);
+  }
+
+  @Test
+  public void testTrailingOnly() {
+    throttler.setLeading(false);
+    callAt(0, 10);
+    assertTrue(runs.isEmpty());
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(100d), runs);
+  }
+
+  @Test
+  public void testLeadingOnly() {
+    throttler.setTrailing(false);
+    callAt(0, 10, 150);
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(0d, 150d), runs);
+    assertFalse(throttler.isPending());
+  }
+
+  @Test
+  public void testCancellation() {
+    CancellationToken token = new CancellationToken();
+    throttler.setCancellationToken(token);
+    callAt(0, 10);
+    token.cancel();
+    assertFalse(throttler.isPending());
+    assertEquals(0, scheduler.getTimerCount());
+
+    callAt(500);
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(0d), runs);
+  }
+
+  @Test
+  public void testFlush() {
+    callAt(0, 10);
+    throttler.flush();
+    assertEquals(Arrays.asList(0d, 10d), runs);
+    assertFalse(throttler.isPending());
+    scheduler.advanceBy(1000);
+    assertEquals(Arrays.asList(0d, 10d), runs);
+  }
+
+  private void callAt(double... times) {
+    for (double time : times) {
+      scheduler.advanceBy(time - scheduler.currentTimeMillis());
+      throttler.call();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveTimeSlicePolicyTest {
+  private static final double DELTA = 0.001;
+
+  @Test
+  public void testLeavesTimeForRendering() {
+    AdaptiveTimeSlicePolicy policy = new AdaptiveTimeSlicePolicy();
+    assertEquals(10, policy.getTimeSlice(1000.0 / 60, 0), DELTA);
+    assertEquals(5, policy.getTimeSlice(1000.0 / 120, 0), DELTA);
+  }
+
+  @Test
+  public void testSubtractsElapsedTime() {
+    AdaptiveTimeSlicePolicy policy = new AdaptiveTimeSlicePolicy();
+    assertEquals(6, policy.getTimeSlice(1000.0 / 60, 4), DELTA);
+    // Always leaves some time for incremental commands
+    assertEquals(1, policy.getTimeSlice(1000.0 / 60, 40), DELTA);
+  }
+
+  @Test
+  public void testLearnsFromOverruns() {
+    AdaptiveTimeSlicePolicy policy = new AdaptiveTimeSlicePolicy();
+    for (int i = 0; i < 20; i++) {
+      double timeSlice = policy.getTimeSlice(1000.0 / 60, 0);
+      policy.onTimeSliceEnd(timeSlice, timeSlice + 4);
+    }
+    double timeSlice = policy.getTimeSlice(1000.0 / 60, 0);
+    assertTrue(String.valueOf(timeSlice), timeSlice < 7);
+
+    // Slices that end in time make it grow again
+    for (int i = 0; i < 20; i++) {
+      policy.onTimeSliceEnd(policy.getTimeSlice(1000.0 / 60, 0), 0);
+    }
+    assertEquals(10, policy.getTimeSlice(1000.0 / 60, 0), 0.1);
+  }
+}
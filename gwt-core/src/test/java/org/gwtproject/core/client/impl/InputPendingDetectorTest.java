@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InputPendingDetectorTest {
+
+  @Test
+  public void testNoInput() {
+    InputPendingDetector detector = new InputPendingDetector();
+    assertFalse(detector.isInputPending(1000, 1000));
+  }
+
+  @Test
+  public void testRecentInput() {
+    InputPendingDetector detector = new InputPendingDetector();
+    detector.onInput(1000);
+
+    // Short flushes keep running while the user interacts
+    assertFalse(detector.isInputPending(1010, InputPendingDetector.INTERACTIVE_SLICE_MILLIS - 1));
+    assertTrue(detector.isInputPending(1010, InputPendingDetector.INTERACTIVE_SLICE_MILLIS));
+
+    // Once the user stops, flushes are no longer cut short
+    assertFalse(detector.isInputPending(1000 + InputPendingDetector.RECENT_INPUT_MILLIS, 1000));
+  }
+}
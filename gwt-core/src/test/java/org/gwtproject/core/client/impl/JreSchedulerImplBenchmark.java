@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of scheduling and running deferred commands with {@link
+ * JreSchedulerImpl}, on platform and virtual event loop threads. Not run by the build, run it with
+ * {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JreSchedulerImplBenchmark {
+
+  private static final int BATCH_SIZE = 1000;
+
+  @Param({"platform", "virtual"})
+  public String threads;
+
+  private JreSchedulerImpl scheduler;
+  private ScheduledCommand cmd;
+  private int executed;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    scheduler =
+        new JreSchedulerImpl(
+            "virtual".equals(threads)
+                ? JreSchedulerImpl.virtualThreadFactory()
+                : JreSchedulerImpl.platformThreadFactory());
+    cmd = () -> executed++;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  /** Schedules a batch of deferred commands from another thread, and waits until they have run. */
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void scheduleDeferred(Blackhole blackhole) throws InterruptedException {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      scheduler.scheduleDeferred(cmd);
+    }
+    if (!scheduler.awaitIdle(10, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("The scheduler didn't become idle");
+    }
+    blackhole.consume(executed);
+  }
+
+  /** Schedules a batch of deferred commands from the event loop, as most code would. */
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void scheduleDeferredFromEventLoop(Blackhole blackhole) throws InterruptedException {
+    scheduler.scheduleDeferred(
+        () -> {
+          for (int i = 0; i < BATCH_SIZE; i++) {
+            scheduler.scheduleDeferred(cmd);
+          }
+        });
+    if (!scheduler.awaitIdle(10, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("The scheduler didn't become idle");
+    }
+    blackhole.consume(executed);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(JreSchedulerImplBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.gwtproject.core.client.Scheduler;
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.FlushMode;
+import org.gwtproject.core.client.Scheduler.Priority;
+import org.junit.After;
+import org.junit.Test;
+
+public class JreSchedulerImplTest {
+  private final JreSchedulerImpl scheduler =
+      new JreSchedulerImpl(JreSchedulerImpl.platformThreadFactory());
+
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testGet() {
+    assertSame(JreSchedulerImpl.INSTANCE, Scheduler.get());
+    assertSame(JreSchedulerImpl.INSTANCE, Scheduler.get(FlushMode.ANIMATION_FRAME));
+  }
+
+  @Test
+  public void testOrdering() throws InterruptedException {
+    List<String> order = new ArrayList<>();
+    // Schedule from the event loop, so that the flush can't start before everything is queued
+    scheduler.scheduleDeferred(
+        () -> {
+          scheduler.scheduleDeferred(
+              () -> {
+                order.add("deferred");
+                scheduler.scheduleDeferred(() -> order.add("next flush"));
+                scheduler.scheduleFinally(
+                    () -> {
+                      order.add("finally");
+                    });
+              });
+          scheduler.scheduleIncremental(
+              new Scheduler.RepeatingCommand() {
+                private int count = 0;
+
+                @Override
+                public boolean execute() {
+                  order.add("incremental " + count);
+                  return ++count < 3;
+                }
+              });
+          scheduler.scheduleDeferred(() -> order.add("background"), Priority.BACKGROUND);
+          scheduler.scheduleDeferred(() -> order.add("user-blocking"), Priority.USER_BLOCKING);
+          scheduler.scheduleDeferred(() -> order.add("deferred 2"));
+        });
+
+    assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+    assertEquals(
+        Arrays.asList(
+            "user-blocking",
+            "deferred",
+            "incremental 0",
+            "deferred 2",
+            "background",
+            "incremental 1",
+            "incremental 2",
+            "finally",
+            "next flush"),
+        order);
+  }
+
+  @Test
+  public void testBackgroundInterleaving() throws InterruptedException {
+    List<String> order = new ArrayList<>();
+    scheduler.scheduleDeferred(
+        () -> {
+          for (int i = 1; i <= 3; i++) {
+            String name = "b" + i;
+            scheduler.scheduleDeferred(() -> order.add(name), Priority.BACKGROUND);
+          }
+          for (int i = 1; i <= 8; i++) {
+            String name = "n" + i;
+            scheduler.scheduleDeferred(() -> order.add(name));
+          }
+        });
+
+    assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+    // One background command after every four normal ones, the rest last
+    assertEquals(
+        Arrays.asList("n1", "n2", "n3", "n4", "b1", "n5", "n6", "n7", "n8", "b2", "b3"), order);
+  }
+
+  @Test
+  public void testRunsOnEventLoop() throws InterruptedException {
+    Thread[] threads = new Thread[2];
+    scheduler.scheduleDeferred(() -> threads[0] = Thread.currentThread());
+    scheduler.scheduleFinally(() -> threads[1] = Thread.currentThread());
+    assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+    assertNotNull(threads[0]);
+    assertSame(threads[0], threads[1]);
+    assertEquals("gwt-scheduler", threads[0].getName());
+    assertTrue(threads[0].isDaemon());
+  }
+
+  @Test
+  public void testEntryCommands() throws InterruptedException {
+    List<String> order = new ArrayList<>();
+    scheduler.scheduleEntry(
+        () -> {
+          order.add("entry");
+        });
+    // From another thread, the entry is posted to the event loop
+    scheduler.runEntry(
+        () -> {
+          order.add("cmd");
+          scheduler.scheduleFinally(
+              () -> {
+                order.add("finally");
+              });
+          scheduler.runEntry(() -> order.add("nested"));
+        });
+    assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("entry", "cmd", "nested", "finally"), order);
+  }
+
+  @Test
+  public void testFixedDelayAndPeriod() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(2);
+    int[] counts = {0, 0};
+    scheduler.scheduleFixedDelay(
+        () -> {
+          if (++counts[0] < 3) {
+            return true;
+          }
+          done.countDown();
+          return false;
+        },
+        5);
+    scheduler.scheduleFixedPeriod(
+        () -> {
+          if (++counts[1] < 3) {
+            return true;
+          }
+          done.countDown();
+          return false;
+        },
+        5);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    // Repeating commands stop once they return false
+    Thread.sleep(50);
+    assertEquals(3, counts[0]);
+    assertEquals(3, counts[1]);
+  }
+
+  @Test
+  public void testCancellation() throws InterruptedException {
+    int[] counts = {0, 0, 0};
+    CancellationToken token = new CancellationToken();
+    CancellationToken running = new CancellationToken();
+    scheduler.scheduleDeferred(
+        () -> {
+          scheduler.scheduleIncremental(() -> ++counts[0] > 0, token);
+          scheduler.scheduleDeferred(() -> counts[1]++, token);
+          token.cancel();
+
+          scheduler.scheduleIncremental(
+              () -> {
+                if (++counts[2] == 2) {
+                  running.cancel();
+                }
+                return true;
+              },
+              running);
+        });
+    assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+    assertEquals(0, counts[0]);
+    assertEquals(0, counts[1]);
+    // A running command stops once it is canceled
+    assertEquals(2, counts[2]);
+  }
+
+  @Test
+  public void testCancellationRemovesCommands() throws InterruptedException {
+    CancellationToken token = new CancellationToken();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    // Keeps the event loop busy, so that the commands below stay queued
+    scheduler.scheduleDeferred(
+        () -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    scheduler.scheduleFixedDelay(() -> true, 60000, token);
+    scheduler.scheduleFixedPeriod(() -> true, 60000, token);
+    scheduler.scheduleDeferred(() -> {}, token);
+    scheduler.scheduleIncremental(() -> true, Priority.BACKGROUND, token);
+    assertEquals(2, scheduler.getQueuedTaskCount());
+    assertTrue(scheduler.isWorkQueued());
+
+    // Canceled commands are released without waiting for their turn
+    token.cancel();
+    assertEquals(0, scheduler.getQueuedTaskCount());
+    assertFalse(scheduler.isWorkQueued());
+    release.countDown();
+    assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testExceptions() throws InterruptedException {
+    List<Throwable> reported = new ArrayList<>();
+    JreSchedulerImpl scheduler =
+        new JreSchedulerImpl(
+            runnable -> {
+              Thread thread = new Thread(runnable);
+              thread.setDaemon(true);
+              thread.setUncaughtExceptionHandler((t, e) -> reported.add(e));
+              return thread;
+            });
+    RuntimeException exception = new RuntimeException();
+    boolean[] ran = {false};
+    scheduler.scheduleDeferred(
+        () -> {
+          throw exception;
+        });
+    scheduler.scheduleDeferred(() -> ran[0] = true);
+    assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+    scheduler.shutdown();
+    assertEquals(Arrays.asList(exception), reported);
+    assertTrue(ran[0]);
+  }
+
+  @Test
+  public void testVirtualThreadFactory() throws InterruptedException {
+    // Falls back to platform threads on older JVMs
+    JreSchedulerImpl scheduler = new JreSchedulerImpl(JreSchedulerImpl.virtualThreadFactory());
+    boolean[] ran = {false};
+    scheduler.scheduleDeferred(() -> ran[0] = true);
+    assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+    scheduler.shutdown();
+    assertTrue(ran[0]);
+    assertFalse(scheduler.isWorkQueued());
+  }
+}
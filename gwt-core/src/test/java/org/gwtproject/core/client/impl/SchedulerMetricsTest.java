@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import org.gwtproject.core.client.impl.SchedulerMetrics.Histogram;
+import org.junit.Test;
+
+public class SchedulerMetricsTest {
+  private static final double DELTA = 0.001;
+
+  @Test
+  public void testDisabledByDefault() {
+    assertFalse(SchedulerMetrics.ENABLED);
+  }
+
+  @Test
+  public void testHistogram() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getMean(), DELTA);
+    assertEquals(0, histogram.getPercentile(50), DELTA);
+
+    histogram.record(0.5);
+    histogram.record(1);
+    histogram.record(3);
+    histogram.record(100_000);
+    assertEquals(4, histogram.getCount());
+    assertEquals(1, histogram.getBucketCount(0));
+    assertEquals(1, histogram.getBucketCount(1));
+    assertEquals(1, histogram.getBucketCount(2));
+    assertEquals(1, histogram.getBucketCount(13));
+    assertEquals(100_000, histogram.getMax(), DELTA);
+    assertEquals(25_001.125, histogram.getMean(), DELTA);
+
+    assertEquals(1, histogram.getPercentile(25), DELTA);
+    assertEquals(4, histogram.getPercentile(75), DELTA);
+    assertEquals(100_000, histogram.getPercentile(99), DELTA);
+  }
+
+  @Test
+  public void testListenerAndReset() {
+    SchedulerMetrics metrics = new SchedulerMetrics();
+    SchedulerMetrics[] notified = {null};
+    metrics.setListener(m -> notified[0] = m);
+
+    metrics.recordFlushStart(5, 2);
+    metrics.recordExecution(3);
+    metrics.recordFlushEnd(4);
+    metrics.recordFlushStart(1, 0);
+    metrics.recordRescue();
+    metrics.recordCoalesced();
+    assertSame(metrics, notified[0]);
+    assertEquals(1, metrics.getDeferredDepth());
+    assertEquals(5, metrics.getMaxDeferredDepth());
+    assertEquals(2, metrics.getMaxIncrementalDepth());
+    assertEquals(1, metrics.getExecutedCount());
+    assertEquals(1, metrics.getFlushCount());
+    assertEquals(1, metrics.getRescueCount());
+    assertEquals(1, metrics.getCoalescedCount());
+
+    metrics.reset();
+    assertEquals(0, metrics.getMaxDeferredDepth());
+    assertEquals(0, metrics.getFlushDuration().getCount());
+    assertEquals(0, metrics.getExecutionTime().getCount());
+    assertEquals(0, metrics.getCoalescedCount());
+  }
+}
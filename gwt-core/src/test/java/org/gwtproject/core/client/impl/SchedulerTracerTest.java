@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+import org.junit.Test;
+
+public class SchedulerTracerTest {
+
+  /** Puts the time origin of the performance timeline at 1000 on the scheduler's clock. */
+  private static class FakeClockTracer extends SchedulerTracer {
+    FakeClockTracer(int bufferSize) {
+      super(bufferSize);
+    }
+
+    @Override
+    double timeOrigin() {
+      return 1000;
+    }
+  }
+
+  @Test
+  public void testLabel() {
+    boolean[] ran = {false};
+    ScheduledCommand scheduled =
+        SchedulerTracer.label(
+            "render",
+            () -> {
+              ran[0] = true;
+            });
+    RepeatingCommand repeating = SchedulerTracer.label("load", () -> false);
+    assertEquals("render", SchedulerTracer.getLabel(scheduled));
+    assertEquals("load", SchedulerTracer.getLabel(repeating));
+    assertNull(SchedulerTracer.getLabel((ScheduledCommand) () -> {}));
+
+    scheduled.execute();
+    assertTrue(ran[0]);
+  }
+
+  @Test
+  public void testChromeTrace() {
+    FakeClockTracer tracer = new FakeClockTracer(10);
+    tracer.record(SchedulerTracer.FLUSH, "flush", 1001.5, 2.5);
+    tracer.record(SchedulerTracer.COMMAND, "say \"hi\"\n", 1004, 0);
+
+    assertEquals(
+        "{\"traceEvents\":["
+            + "{\"name\":\"flush\",\"cat\":\"flush\",\"ph\":\"X\",\"ts\":1500,\"dur\":2500,"
+            + "\"pid\":1,\"tid\":1},"
+            + "{\"name\":\"say \\\"hi\\\"\\u000a\",\"cat\":\"command\",\"ph\":\"X\",\"ts\":4000,"
+            + "\"dur\":0,\"pid\":1,\"tid\":1}"
+            + "],\"displayTimeUnit\":\"ms\"}",
+        tracer.toChromeTrace());
+  }
+
+  @Test
+  public void testRingBuffer() {
+    FakeClockTracer tracer = new FakeClockTracer(3);
+    for (int i = 0; i < 5; i++) {
+      tracer.record(SchedulerTracer.COMMAND, "cmd" + i, i, 0);
+    }
+    // Only the last events are kept, oldest first
+    assertEquals(3, tracer.getEventCount());
+    String trace = tracer.toChromeTrace();
+    assertEquals(-1, trace.indexOf("cmd1"));
+    assertTrue(trace.indexOf("cmd2") < trace.indexOf("cmd3"));
+    assertTrue(trace.indexOf("cmd3") < trace.indexOf("cmd4"));
+
+    tracer.clear();
+    assertEquals(0, tracer.getEventCount());
+    assertEquals("{\"traceEvents\":[],\"displayTimeUnit\":\"ms\"}", tracer.toChromeTrace());
+
+    // Without a buffer, nothing is kept
+    FakeClockTracer unbuffered = new FakeClockTracer(0);
+    unbuffered.record(SchedulerTracer.FLUSH, "flush", 0, 0);
+    assertEquals(0, unbuffered.getEventCount());
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.gwtproject.core.client.Scheduler.ScheduledCommand;
+import org.junit.Test;
+
+public class TaskQueueTest {
+
+  @Test
+  public void testFifo() {
+    TaskQueue queue = new TaskQueue();
+    ScheduledCommand scheduled = () -> {};
+    RepeatingCommand repeating = () -> false;
+    queue.add(scheduled);
+    queue.add(repeating);
+    assertEquals(2, queue.size());
+
+    assertFalse(queue.isRepeating(0));
+    assertSame(scheduled, queue.getScheduled(0));
+    queue.removeFirst();
+    assertTrue(queue.isRepeating(0));
+    assertSame(repeating, queue.getRepeating(0));
+    queue.removeFirst();
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testReusesBuffers() {
+    TaskQueue queue = new TaskQueue();
+    ScheduledCommand cmd = () -> {};
+    for (int i = 0; i < 10; i++) {
+      queue.add(cmd);
+    }
+    assertEquals(1, queue.getAllocations());
+
+    // Wrapping around the end of the ring doesn't allocate
+    for (int i = 0; i < 1000; i++) {
+      queue.removeFirst();
+      queue.add(cmd);
+    }
+    assertEquals(10, queue.size());
+    assertEquals(1, queue.getAllocations());
+  }
+
+  @Test
+  public void testGrowKeepsOrder() {
+    TaskQueue queue = new TaskQueue();
+    ScheduledCommand[] commands = new ScheduledCommand[40];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = () -> {};
+    }
+    // Start in the middle of the ring, so that growing has to unwrap it
+    for (int i = 0; i < 10; i++) {
+      queue.add(commands[0]);
+      queue.removeFirst();
+    }
+    for (ScheduledCommand cmd : commands) {
+      queue.add(cmd);
+    }
+    assertEquals(commands.length, queue.size());
+    for (int i = 0; i < commands.length; i++) {
+      assertSame(commands[i], queue.getScheduled(i));
+    }
+  }
+
+  @Test
+  public void testCompact() {
+    TaskQueue queue = new TaskQueue();
+    RepeatingCommand[] commands = new RepeatingCommand[16];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = () -> true;
+    }
+    for (int i = 0; i < 10; i++) {
+      queue.add(commands[0]);
+      queue.removeFirst();
+    }
+    for (RepeatingCommand cmd : commands) {
+      queue.add(cmd);
+    }
+    for (int i = 0; i < commands.length; i += 2) {
+      queue.clearAt(i);
+    }
+    assertNull(queue.getRepeating(0));
+
+    queue.compact();
+    assertEquals(8, queue.size());
+    for (int i = 0; i < 8; i++) {
+      assertSame(commands[2 * i + 1], queue.getRepeating(i));
+    }
+    assertEquals(1, queue.getAllocations());
+  }
+
+  @Test
+  public void testWeightsAndCredits() {
+    TaskQueue queue = new TaskQueue();
+    RepeatingCommand[] commands = new RepeatingCommand[20];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = () -> true;
+      queue.add(commands[i], i + 1);
+      queue.setCredit(i, i * 0.5);
+    }
+    assertEquals(2, queue.getAllocations());
+    queue.clearAt(0);
+    queue.compact();
+
+    assertEquals(19, queue.size());
+    for (int i = 0; i < queue.size(); i++) {
+      assertSame(commands[i + 1], queue.getRepeating(i));
+      assertEquals(i + 2, queue.getWeight(i));
+      assertEquals((i + 1) * 0.5, queue.getCredit(i), 0);
+    }
+
+    // Added commands start without credit
+    queue.removeFirst();
+    queue.add(commands[0]);
+    assertEquals(1, queue.getWeight(18));
+    assertEquals(0, queue.getCredit(18), 0);
+  }
+
+  @Test
+  public void testAddAll() {
+    TaskQueue queue = new TaskQueue();
+    TaskQueue other = new TaskQueue();
+    ScheduledCommand scheduled = () -> {};
+    RepeatingCommand repeating = () -> false;
+    queue.add(scheduled);
+    other.add(repeating);
+    other.add(scheduled);
+
+    queue.addAll(other);
+    other.clear();
+    assertTrue(other.isEmpty());
+    assertEquals(3, queue.size());
+    assertSame(repeating, queue.getRepeating(1));
+    assertSame(scheduled, queue.getScheduled(2));
+  }
+
+  @Test
+  public void testBatch() {
+    TaskQueue queue = new TaskQueue();
+    ScheduledCommand cmd = () -> {};
+    ScheduledCommand other = () -> {};
+    queue.add(cmd);
+    queue.add(cmd);
+    queue.startBatch();
+    queue.add(cmd);
+    assertEquals(2, queue.getBatchSize());
+    queue.add(other);
+    assertTrue(queue.containsRecent(cmd, 2));
+    assertFalse(queue.containsRecent(cmd, 1));
+    assertTrue(queue.containsRecent(other, 1));
+
+    // Commands removed from the head leave the batch, whether they ran or were dropped
+    queue.removeFirst();
+    queue.removeFirst();
+    assertEquals(0, queue.getBatchSize());
+    queue.removeFirst();
+    assertEquals(0, queue.getBatchSize());
+    queue.removeFirst();
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testRemoveAt() {
+    TaskQueue queue = new TaskQueue();
+    ScheduledCommand first = () -> {};
+    ScheduledCommand second = () -> {};
+    ScheduledCommand third = () -> {};
+    queue.add(first);
+    queue.add(second);
+    queue.startBatch();
+    queue.add(third);
+    assertEquals(1, queue.indexOf(second));
+    assertEquals(-1, queue.indexOf((ScheduledCommand) () -> {}));
+
+    // A command removed from the batch leaves it
+    queue.removeAt(queue.indexOf(second));
+    assertEquals(2, queue.size());
+    assertEquals(1, queue.getBatchSize());
+    assertSame(first, queue.getScheduled(0));
+    assertSame(third, queue.getScheduled(1));
+    queue.removeAt(queue.indexOf(third));
+    assertEquals(1, queue.getBatchSize());
+  }
+}
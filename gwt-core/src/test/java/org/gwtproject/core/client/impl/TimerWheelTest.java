@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import elemental2.dom.DomGlobal.SetTimeoutCallbackFn;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+  /** A wheel on virtual time, that keeps track of the native timer it would arm. */
+  private static class FakeTimerWheel extends TimerWheel {
+    double time;
+    double timerDue;
+    int timersSet;
+    boolean hidden;
+    int visibilityListeners;
+    private SetTimeoutCallbackFn timer;
+
+    @Override
+    double now() {
+      return time;
+    }
+
+    @Override
+    double setTimer(SetTimeoutCallbackFn callback, double delayMs) {
+      assertTrue("Only one native timer at a time", timer == null);
+      timer = callback;
+      timerDue = time + delayMs;
+      return ++timersSet;
+    }
+
+    @Override
+    void clearTimer(double timerId) {
+      timer = null;
+    }
+
+    @Override
+    boolean isHidden() {
+      return hidden;
+    }
+
+    @Override
+    void listenForVisibilityChange() {
+      visibilityListeners++;
+    }
+
+    boolean isTimerArmed() {
+      return timer != null;
+    }
+
+    /** Moves the time forward to the native timer, and runs it. */
+    void fireTimer() {
+      assertTrue("No native timer armed", timer != null);
+      SetTimeoutCallbackFn callback = timer;
+      timer = null;
+      time = Math.max(time, timerDue);
+      callback.onInvoke();
+    }
+  }
+
+  @Test
+  public void testCoalescesDeadlines() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    double[] ranAt = new double[100];
+    for (int i = 0; i < ranAt.length; i++) {
+      int index = i;
+      wheel.scheduleFixedDelay(
+          () -> {
+            ranAt[index] = wheel.time;
+            return false;
+          },
+          index + 1,
+          null);
+    }
+    assertEquals(100, wheel.size());
+    assertEquals(1, wheel.timersSet);
+
+    while (wheel.isTimerArmed()) {
+      wheel.fireTimer();
+    }
+    assertEquals(0, wheel.size());
+    // One native timer per tick of 4ms
+    assertEquals(25, wheel.timersSet);
+    for (int i = 0; i < ranAt.length; i++) {
+      assertTrue(ranAt[i] >= i + 1);
+      assertTrue(ranAt[i] < i + 1 + TimerWheel.DEFAULT_TOLERANCE);
+    }
+  }
+
+  @Test
+  public void testTolerance() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    wheel.setTolerance(20);
+    int[] counts = {0};
+    for (int i = 0; i < 20; i++) {
+      wheel.scheduleFixedDelay(() -> ++counts[0] < 0, i + 1, null);
+    }
+    wheel.fireTimer();
+    assertEquals(20, counts[0]);
+    assertEquals(20, wheel.time, 0);
+    assertFalse(wheel.isTimerArmed());
+  }
+
+  @Test
+  public void testFixedDelay() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    wheel.setTolerance(1);
+    int[] counts = {0};
+    wheel.scheduleFixedDelay(
+        () -> {
+          // The next delay starts after the command returns
+          wheel.time += 5;
+          return ++counts[0] < 3;
+        },
+        10,
+        null);
+
+    wheel.fireTimer();
+    assertEquals(1, counts[0]);
+    assertEquals(25, wheel.timerDue, 0);
+    wheel.fireTimer();
+    wheel.fireTimer();
+    assertEquals(3, counts[0]);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testFixedPeriod() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    wheel.setTolerance(1);
+    int[] counts = {0};
+    wheel.scheduleFixedPeriod(() -> ++counts[0] > 0, 10, null);
+
+    wheel.fireTimer();
+    assertEquals(10, wheel.time, 0);
+    wheel.fireTimer();
+    assertEquals(20, wheel.time, 0);
+    assertEquals(2, counts[0]);
+
+    // A late timer skips the missed periods, but keeps the phase
+    wheel.time = 45;
+    wheel.fireTimer();
+    assertEquals(3, counts[0]);
+    assertEquals(50, wheel.timerDue, 0);
+  }
+
+  @Test
+  public void testLongDelays() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    int[] delays = {1000, 100_000, 10_000_000, 100_000_000};
+    double[] ranAt = new double[delays.length];
+    for (int i = 0; i < delays.length; i++) {
+      int index = i;
+      wheel.scheduleFixedDelay(
+          () -> {
+            ranAt[index] = wheel.time;
+            return false;
+          },
+          delays[i],
+          null);
+    }
+
+    while (wheel.isTimerArmed()) {
+      wheel.fireTimer();
+    }
+    for (int i = 0; i < delays.length; i++) {
+      assertTrue(ranAt[i] >= delays[i]);
+      assertTrue(ranAt[i] < delays[i] + TimerWheel.DEFAULT_TOLERANCE);
+    }
+    // Waking up to move commands down the levels is rare
+    assertTrue(String.valueOf(wheel.timersSet), wheel.timersSet < 20);
+  }
+
+  @Test
+  public void testLongSuspension() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    wheel.setTolerance(1);
+    int[] counts = {0};
+    wheel.scheduleFixedPeriod(() -> ++counts[0] > 0, 1000, null);
+
+    // As if the computer had been suspended for 30 days, more ticks than fit in an int
+    double suspended = 30 * 24 * 3600 * 1000.0;
+    wheel.time = suspended;
+    wheel.fireTimer();
+    assertEquals(1, counts[0]);
+    while (counts[0] < 2) {
+      wheel.fireTimer();
+    }
+    assertEquals(suspended + 1000, wheel.time, 0);
+
+    // An empty wheel counts its ticks from the next command on
+    FakeTimerWheel empty = new FakeTimerWheel();
+    empty.setTolerance(1);
+    empty.time = suspended;
+    empty.scheduleFixedDelay(() -> ++counts[0] < 0, 10, null);
+    empty.fireTimer();
+    assertEquals(3, counts[0]);
+    assertEquals(suspended + 10, empty.time, 0);
+  }
+
+  @Test
+  public void testRebase() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    wheel.setTolerance(1);
+    double day = 24 * 3600 * 1000.0;
+    int[] counts = {0};
+    wheel.scheduleFixedPeriod(() -> ++counts[0] > 0, (int) day, null);
+
+    // Ten days are more ticks of 1ms than the wheel counts before it counts from 0 again
+    for (int i = 1; i <= 10; i++) {
+      while (counts[0] < i) {
+        wheel.fireTimer();
+      }
+      assertEquals(i * day, wheel.time, 0);
+    }
+  }
+
+  @Test
+  public void testCancel() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    int[] counts = {0, 0};
+    CancellationToken token = new CancellationToken();
+    wheel.scheduleFixedPeriod(() -> ++counts[0] > 0, 10, token);
+    wheel.scheduleFixedDelay(() -> ++counts[1] > 0, 100, token);
+    assertEquals(2, wheel.size());
+
+    wheel.fireTimer();
+    assertEquals(1, counts[0]);
+    token.cancel();
+    assertEquals(0, wheel.size());
+    assertFalse(wheel.isTimerArmed());
+    assertEquals(0, counts[1]);
+  }
+
+  @Test
+  public void testCancelWhileRunning() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    CancellationToken token = new CancellationToken();
+    int[] counts = {0};
+    wheel.scheduleFixedPeriod(
+        () -> {
+          token.cancel();
+          return ++counts[0] > 0;
+        },
+        10,
+        token);
+
+    wheel.fireTimer();
+    assertEquals(1, counts[0]);
+    assertEquals(0, wheel.size());
+    assertFalse(wheel.isTimerArmed());
+  }
+
+  @Test
+  public void testHiddenPause() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    wheel.setTolerance(1);
+    List<Double> catchUp = new ArrayList<>();
+    List<Double> skip = new ArrayList<>();
+    List<Double> run = new ArrayList<>();
+    wheel.scheduleFixedPeriod(recorder(wheel, catchUp), 10, HiddenTimerPolicy.PAUSE_CATCH_UP, null);
+    wheel.scheduleFixedDelay(recorder(wheel, skip), 10, HiddenTimerPolicy.PAUSE_SKIP, null);
+    wheel.scheduleFixedPeriod(recorder(wheel, run), 10, null);
+    assertEquals(1, wheel.visibilityListeners);
+
+    wheel.fireTimer();
+    wheel.hidden = true;
+    while (wheel.timerDue <= 55) {
+      wheel.fireTimer();
+    }
+    assertEquals(Arrays.asList(10.0, 20.0, 30.0, 40.0, 50.0), run);
+    assertEquals(Arrays.asList(10.0), catchUp);
+    assertEquals(Arrays.asList(10.0), skip);
+    assertEquals(2, wheel.getPausedCount());
+    assertEquals(1, wheel.size());
+
+    // One catch-up run right away, then back to the period; the fixed delay starts over
+    wheel.time = 55;
+    wheel.hidden = false;
+    wheel.onVisibilityChange();
+    assertEquals(0, wheel.getPausedCount());
+    while (wheel.timerDue <= 65) {
+      wheel.fireTimer();
+    }
+    assertEquals(Arrays.asList(10.0, 55.0, 60.0), catchUp);
+    assertEquals(Arrays.asList(10.0, 65.0), skip);
+  }
+
+  @Test
+  public void testHiddenCancel() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    CancellationToken token = new CancellationToken();
+    List<Double> times = new ArrayList<>();
+    wheel.scheduleFixedDelay(recorder(wheel, times), 10, HiddenTimerPolicy.PAUSE_SKIP, token);
+    wheel.hidden = true;
+    wheel.fireTimer();
+    assertEquals(1, wheel.getPausedCount());
+    // Paused commands don't keep a native timer armed
+    assertFalse(wheel.isTimerArmed());
+
+    token.cancel();
+    wheel.hidden = false;
+    wheel.onVisibilityChange();
+    assertEquals(0, wheel.size());
+    assertFalse(wheel.isTimerArmed());
+    assertTrue(times.isEmpty());
+  }
+
+  @Test
+  public void testHiddenStretch() {
+    FakeTimerWheel wheel = new FakeTimerWheel();
+    wheel.setTolerance(1);
+    List<Double> times = new ArrayList<>();
+    wheel.scheduleFixedPeriod(recorder(wheel, times), 100, HiddenTimerPolicy.STRETCH, null);
+
+    // The timer also fires to move commands down the levels of the wheel
+    while (times.isEmpty()) {
+      wheel.fireTimer();
+    }
+    wheel.hidden = true;
+    while (wheel.timerDue < 5000) {
+      wheel.fireTimer();
+    }
+    // The first run while hidden is on time, the next one is stretched
+    assertEquals(Arrays.asList(100.0, 200.0), times);
+
+    // Back to the period, keeping its phase, right away since the deadline passed
+    wheel.time = 5000;
+    wheel.hidden = false;
+    wheel.onVisibilityChange();
+    while (times.size() < 4) {
+      wheel.fireTimer();
+    }
+    assertEquals(Arrays.asList(100.0, 200.0, 5000.0, 5100.0), times);
+  }
+
+  private static RepeatingCommand recorder(FakeTimerWheel wheel, List<Double> times) {
+    return () -> times.add(wheel.time);
+  }
+}
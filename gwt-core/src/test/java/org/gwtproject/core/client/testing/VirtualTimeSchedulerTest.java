@@ -0,0 +1,319 @@
+/*
+ * Copyright © 2019 The GWT Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gwtproject.core.client.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.gwtproject.core.client.Scheduler;
+import org.gwtproject.core.client.Scheduler.CancellationToken;
+import org.gwtproject.core.client.Scheduler.FlushMode;
+import org.gwtproject.core.client.Scheduler.Priority;
+import org.gwtproject.core.client.Scheduler.RepeatingCommand;
+import org.junit.After;
+import org.junit.Test;
+
+public class VirtualTimeSchedulerTest {
+  private final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+  private final List<String> order = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    scheduler.uninstall();
+  }
+
+  @Test
+  public void testInstall() {
+    Scheduler original = Scheduler.get();
+    assertNotSame(scheduler, original);
+
+    scheduler.install();
+    assertSame(scheduler, Scheduler.get());
+    assertSame(scheduler, Scheduler.get(FlushMode.ANIMATION_FRAME));
+
+    scheduler.uninstall();
+    assertSame(original, Scheduler.get());
+  }
+
+  @Test
+  public void testOrdering() {
+    scheduler.scheduleDeferred(
+        () -> {
+          order.add("deferred");
+          scheduler.scheduleDeferred(() -> order.add("next flush"));
+          scheduler.scheduleFinally(
+              () -> {
+                order.add("finally");
+              });
+        });
+    scheduler.scheduleIncremental(counter("incremental", 3));
+    scheduler.scheduleDeferred(() -> order.add("background"), Priority.BACKGROUND);
+    scheduler.scheduleDeferred(() -> order.add("user-blocking"), Priority.USER_BLOCKING);
+    scheduler.scheduleDeferred(() -> order.add("deferred 2"));
+    assertFalse(scheduler.isIdle());
+
+    scheduler.flush();
+    assertEquals(
+        Arrays.asList(
+            "user-blocking",
+            "deferred",
+            "incremental 0",
+            "deferred 2",
+            "background",
+            "incremental 1",
+            "finally"),
+        order);
+
+    order.clear();
+    scheduler.runUntilIdle();
+    assertEquals(Arrays.asList("next flush", "incremental 2"), order);
+    assertTrue(scheduler.isIdle());
+    assertEquals(0, scheduler.currentTimeMillis(), 0);
+  }
+
+  @Test
+  public void testFinallyCommands() {
+    scheduler.scheduleFinally(counter("finally", 2));
+    scheduler.flushFinallyCommands();
+    assertEquals(Arrays.asList("finally 0"), order);
+
+    // A repeating finally command runs again at the end of the next event
+    scheduler.scheduleDeferred(() -> order.add("deferred"));
+    scheduler.flush();
+    assertEquals(Arrays.asList("finally 0", "deferred", "finally 1"), order);
+    assertTrue(scheduler.isIdle());
+  }
+
+  @Test
+  public void testEntryCommands() {
+    scheduler.scheduleEntry(counter("entry", 2));
+    scheduler.scheduleEntry(
+        () -> {
+          order.add("entry once");
+        });
+    scheduler.runEntry(
+        () -> {
+          order.add("cmd");
+          scheduler.scheduleFinally(
+              () -> {
+                order.add("finally");
+              });
+          scheduler.runEntry(() -> order.add("nested"));
+        });
+    assertEquals(Arrays.asList("entry 0", "entry once", "cmd", "nested", "finally"), order);
+
+    // Flushes and timers are entries too
+    order.clear();
+    scheduler.scheduleFixedDelay(counter("timer", 1), 10);
+    scheduler.scheduleDeferred(() -> order.add("deferred"));
+    scheduler.advanceBy(10);
+    assertEquals(Arrays.asList("entry 1", "deferred", "timer 0"), order);
+  }
+
+  @Test
+  public void testKeyedCommands() {
+    assertFalse(scheduler.scheduleDeferred("layout", () -> order.add("layout 1")));
+    scheduler.scheduleDeferred(() -> order.add("deferred"));
+    assertTrue(scheduler.scheduleDeferred("layout", () -> order.add("layout 2")));
+    assertFalse(scheduler.scheduleDeferred("other", () -> order.add("other")));
+    assertFalse(scheduler.scheduleFinally("layout", () -> order.add("finally layout 1")));
+    assertTrue(scheduler.scheduleFinally("layout", () -> order.add("finally layout 2")));
+
+    // The last command runs once, in the place of the first
+    scheduler.flush();
+    assertEquals(Arrays.asList("layout 2", "deferred", "other", "finally layout 2"), order);
+
+    // Once run, the key queues a new command
+    order.clear();
+    scheduler.scheduleDeferred(
+        "layout",
+        () -> {
+          order.add("layout 3");
+          assertFalse(scheduler.scheduleDeferred("layout", () -> order.add("layout 4")));
+        });
+    scheduler.runUntilIdle();
+    assertEquals(Arrays.asList("layout 3", "layout 4"), order);
+  }
+
+  @Test
+  public void testTimers() {
+    scheduler.scheduleFixedPeriod(counter("period", 3), 10);
+    scheduler.scheduleFixedDelay(counter("delay", 2), 15);
+    scheduler.scheduleFixedDelay(
+        () -> {
+          order.add("delay 10");
+          scheduler.scheduleDeferred(() -> order.add("deferred"));
+          return false;
+        },
+        10);
+    assertEquals(3, scheduler.getTimerCount());
+    assertEquals(10, scheduler.getNextTimerMillis(), 0);
+
+    scheduler.advanceBy(9);
+    assertTrue(order.isEmpty());
+    assertEquals(9, scheduler.currentTimeMillis(), 0);
+
+    // Timers due at the same time run in the order they were scheduled, each followed by the
+    // commands it scheduled
+    scheduler.advanceBy(1);
+    assertEquals(Arrays.asList("period 0", "delay 10", "deferred"), order);
+
+    scheduler.advanceBy(100);
+    assertEquals(
+        Arrays.asList(
+            "period 0", "delay 10", "deferred", "delay 0", "period 1", "delay 1", "period 2"),
+        order);
+    assertEquals(110, scheduler.currentTimeMillis(), 0);
+    assertEquals(0, scheduler.getTimerCount());
+  }
+
+  @Test
+  public void testCancellation() {
+    CancellationToken token = new CancellationToken();
+    scheduler.scheduleFixedPeriod(counter("period", 100), 10, token);
+    scheduler.scheduleDeferred(() -> order.add("deferred"), token);
+    scheduler.advanceBy(25);
+    assertEquals(Arrays.asList("deferred", "period 0", "period 1"), order);
+
+    token.cancel();
+    scheduler.advanceBy(100);
+    assertEquals(Arrays.asList("deferred", "period 0", "period 1"), order);
+    assertEquals(0, scheduler.getTimerCount());
+  }
+
+  @Test
+  public void testCancellationRemovesCommands() {
+    CancellationToken token = new CancellationToken();
+    scheduler.scheduleFixedDelay(counter("delay", 100), 10, token);
+    scheduler.scheduleIncremental(counter("incremental", 100), token);
+    scheduler.flush();
+    scheduler.scheduleDeferred(() -> order.add("deferred"), token);
+    assertEquals(1, scheduler.getTimerCount());
+    assertFalse(scheduler.isIdle());
+
+    // Canceled commands are released without waiting for their turn
+    token.cancel();
+    assertEquals(0, scheduler.getTimerCount());
+    assertTrue(scheduler.isIdle());
+  }
+
+  @Test
+  public void testExceptions() {
+    RuntimeException exception = new RuntimeException();
+    scheduler.scheduleDeferred(
+        () -> {
+          throw exception;
+        });
+    scheduler.scheduleDeferred(() -> order.add("deferred"));
+    try {
+      scheduler.runUntilIdle();
+      fail();
+    } catch (RuntimeException e) {
+      assertSame(exception, e);
+    }
+    assertTrue(order.isEmpty());
+
+    // The commands that didn't run yet are still queued
+    scheduler.runUntilIdle();
+    assertEquals(Arrays.asList("deferred"), order);
+  }
+
+  @Test
+  public void testIncrementalException() {
+    RuntimeException exception = new RuntimeException();
+    int[] count = {0};
+    scheduler.scheduleIncremental(
+        () -> {
+          if (++count[0] == 2) {
+            throw exception;
+          }
+          return true;
+        });
+    scheduler.scheduleIncremental(counter("incremental", 3));
+    try {
+      scheduler.runUntilIdle();
+      fail();
+    } catch (RuntimeException e) {
+      assertSame(exception, e);
+    }
+
+    // The command that threw is dropped, the other one keeps running
+    scheduler.runUntilIdle();
+    assertEquals(2, count[0]);
+    assertEquals(Arrays.asList("incremental 0", "incremental 1", "incremental 2"), order);
+  }
+
+  @Test
+  public void testIdleDeadline() {
+    double[] timeRemaining = new double[2];
+    scheduler.scheduleIdle(
+        deadline -> {
+          timeRemaining[0] = deadline.timeRemaining();
+          try {
+            // Real time doesn't use up the deadline
+            Thread.sleep(20);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          timeRemaining[1] = deadline.timeRemaining();
+          return false;
+        });
+    scheduler.runUntilIdle();
+    assertEquals(16, timeRemaining[0], 0);
+    assertEquals(16, timeRemaining[1], 0);
+  }
+
+  @Test
+  public void testRunaway() {
+    scheduler.setMaxCommandsPerRun(50);
+    scheduler.scheduleIncremental(() -> true);
+    try {
+      scheduler.runUntilIdle();
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(51, scheduler.getExecutedCount());
+  }
+
+  @Test
+  public void testLongVirtualTime() {
+    // Many virtual seconds of timers, which take no real time
+    int[] count = {0};
+    scheduler.scheduleFixedPeriod(() -> ++count[0] < 10000, 1000);
+    scheduler.advanceBy(10000 * 1000);
+    assertEquals(10000, count[0]);
+  }
+
+  private RepeatingCommand counter(String name, int times) {
+    return new RepeatingCommand() {
+      private int count = 0;
+
+      @Override
+      public boolean execute() {
+        order.add(name + " " + count);
+        return ++count < times;
+      }
+    };
+  }
+}